@@ -1,4 +1,4 @@
--- Generated by FunctionJ.io ( https://functionalj.io ) on 2024-05-12T11:37:29.523967405 
+-- Generated by FunctionJ.io ( https://functionalj.io ) on 2026-10-17T05:50:27.863035265 
 module Cape exposing
     ( Cape(..)
     , capeEncoder
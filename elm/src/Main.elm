@@ -1,4 +1,4 @@
-module Main exposing (main)
+port module Main exposing (main)
 
 import Browser
 import Html exposing (..)
@@ -8,6 +8,10 @@ import Person exposing (..)
 import Http exposing (..)
 import Maybe exposing (..)
 import Cape exposing (Cape(..))
+import Json.Decode as Decode
+
+-- The changes made by others -- pushed by the server as Server-Sent Events (see index.html).
+port personChanges : (Decode.Value -> msg) -> Sub msg
 
 main : Program () Model Msg
 main = Browser.element { 
@@ -27,10 +31,15 @@ type alias Data =
 
 type Model = Loading | Failure | Display Data
 
+type PersonChange = Upserted Person | Removed String | Reset
+
 type Msg
   = Reloaded
   | LoadPersons (Result Error (List Person))
   | LoadPerson  (Result Error Person)
+  | PersonSaved   (Result Error Person)
+  | PersonDeleted String (Result Error ())
+  | PersonChanged Decode.Value
   | ViewPerson   String
   | AddPerson    Person
   | ChangePerson Person
@@ -96,8 +105,32 @@ update msg model =
             Display data -> ((Display (Data data.persons person      Viewing)), Cmd.none)
             Loading      -> ((Display (Data []           emptyPerson Listing)), Cmd.none)
             Failure      -> (Failure, Cmd.none)
-        Err _            -> (Failure, Cmd.none)
+        Err _ ->
+          case model of
+            Display data -> ((Display (Data data.persons emptyPerson Listing)), Cmd.none)
+            _            -> (Failure, Cmd.none)
     
+    -- The list is updated in place (rather than reloaded) with the saved person and with the changes made by others.
+    PersonSaved result ->
+      case (result, model) of
+        (Ok person, Display data) -> ((Display (Data (upsertPerson person data.persons) emptyPerson Listing)), Cmd.none)
+        (Ok _,      _)            -> (model, loadPersons)
+        -- The page is kept (rather than failed) and the person is reloaded to show how it is now (e.g., changed by others).
+        (Err _,     Display data) -> (model, data.person.id |> Maybe.map loadPerson |> withDefault Cmd.none)
+        (Err _,     _)            -> (model, Cmd.none)
+
+    PersonDeleted personId result ->
+      case (result, model) of
+        (Ok _, Display data) -> ((Display (Data (removePerson personId data.persons) emptyPerson Listing)), Cmd.none)
+        _                    -> (model, loadPersons)
+
+    PersonChanged value ->
+      case (Decode.decodeValue personChangeDecoder value, model) of
+        (Ok (Upserted person),  Display data) -> (Display { data | persons = upsertPerson person   data.persons }, Cmd.none)
+        (Ok (Removed personId), Display data) -> (Display { data | persons = removePerson personId data.persons }, Cmd.none)
+        (Ok Reset,              _)            -> (model, loadPersons)
+        _                                     -> (model, Cmd.none)
+
     AddPerson    person   -> (model, addPerson    person)
     ViewPerson   personId -> (model, loadPerson   personId)
     ChangePerson person   -> (model, changePerson person)
@@ -117,7 +150,7 @@ update msg model =
 -- SUBSCRIPTIONS
 
 subscriptions : Model -> Sub Msg
-subscriptions _ = Sub.none
+subscriptions _ = personChanges PersonChanged
 
 
 -- VIEW
@@ -232,13 +265,13 @@ addPerson : Person -> (Cmd Msg)
 addPerson person = post {
     url    = "/api/persons/",
     body   = jsonBody (personEncoder (Person Nothing person.firstName person.lastName person.nickName person.cape)),
-    expect = expectWhatever (\_ -> Reloaded)
+    expect = expectJson PersonSaved personDecoder
   }
 
 deletePerson : String -> (Cmd Msg)
 deletePerson id = delete { 
     url    = "/api/persons/" ++ id, 
-    expect = expectWhatever (\_ -> Reloaded)  -- Reloaded or Show error 
+    expect = expectWhatever (PersonDeleted id)
   }
 
 changePerson : Person -> (Cmd Msg)
@@ -248,10 +281,34 @@ changePerson person =
       Just id -> change {
           url    = "/api/persons/" ++ id,
           body   = jsonBody (personEncoder person),
-          expect = expectWhatever (\_ -> Reloaded)  -- Reloaded or Show error 
+          expect = expectJson PersonSaved personDecoder
         }
 
 
+-- CHANGES
+
+personChangeDecoder : Decode.Decoder PersonChange
+personChangeDecoder =
+  Decode.field "type" Decode.string
+    |> Decode.andThen (\changeType ->
+        case changeType of
+          "post"   -> Decode.map Upserted (Decode.field "data" personDecoder)
+          "put"    -> Decode.map Upserted (Decode.field "data" personDecoder)
+          "delete" -> Decode.map Removed  (Decode.field "id"   Decode.string)
+          _        -> Decode.succeed Reset
+      )
+
+upsertPerson : Person -> List Person -> List Person
+upsertPerson person persons =
+  if persons |> List.any (\each -> each.id == person.id)
+  then persons |> List.map (\each -> if each.id == person.id then person else each)
+  else persons ++ [ person ]
+
+removePerson : String -> List Person -> List Person
+removePerson personId persons =
+  persons |> List.filter (\each -> each.id /= Just personId)
+
+
 -- utility functions --
 
 -- stop : Cmd msg
@@ -1,4 +1,4 @@
--- Generated by FunctionJ.io ( https://functionalj.io ) on 2024-05-12T11:37:29.522061032 
+-- Generated by FunctionJ.io ( https://functionalj.io ) on 2026-10-17T05:50:27.836468272 
 module Person exposing
     ( Person
     , personEncoder
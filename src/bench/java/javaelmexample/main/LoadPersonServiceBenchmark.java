@@ -0,0 +1,84 @@
+package javaelmexample.main;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.stream.JsonWriter;
+
+import javaelmexample.services.Cape;
+import javaelmexample.services.Person;
+import javaelmexample.services.PersonCodec;
+import javaelmexample.services.PersonSnapshot;
+
+/**
+ * Loading the persons at the startup -- from the JSON seed and from the binary snapshot at several sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadPersonServiceBenchmark {
+    
+    @Param({ "1000", "10000", "100000" })
+    public int size;
+    
+    @Param({ "json", "snapshot" })
+    public String format;
+    
+    private Path seedPath;
+    
+    @Setup
+    public void setup() throws IOException {
+        var persons = new ArrayList<Person>(size);
+        for (int i = 0; i < size; i++) {
+            var cape = (i % 2 == 0) ? Cape.None() : Cape.Color("Red");
+            persons.add(new Person(String.valueOf(i), "First" + i, "Last" + (i % 100), "Nick" + i, cape));
+        }
+        
+        if (format.equals("snapshot")) {
+            seedPath = Files.createTempFile("persons", PersonSnapshot.EXTENSION);
+            PersonSnapshot.write(seedPath, persons, 0L);
+        } else {
+            seedPath = Files.createTempFile("persons", ".json");
+            var codec = new PersonCodec();
+            try (var writer = new JsonWriter(new OutputStreamWriter(Files.newOutputStream(seedPath), StandardCharsets.UTF_8))) {
+                writer.beginArray();
+                for (var person : persons) {
+                    codec.write(writer, person);
+                }
+                writer.endArray();
+            }
+        }
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(seedPath);
+    }
+    
+    @Benchmark
+    public int load() {
+        return Main.loadPersonService(seedPath.toString()).count();
+    }
+    
+}
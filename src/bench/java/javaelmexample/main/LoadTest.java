@@ -0,0 +1,365 @@
+package javaelmexample.main;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javaelmexample.server.EngineMode;
+import javaelmexample.server.ExecutorMode;
+import javaelmexample.server.LatencyHistogram;
+import javaelmexample.server.Server;
+import javaelmexample.server.ServerSettings;
+import javaelmexample.services.Cape;
+import javaelmexample.services.Person;
+import javaelmexample.services.PersonService;
+
+/**
+ * This is an open-loop HTTP load generator that runs the server in-process on a loopback port.
+ *
+ * The requests are sent at a fixed rate regardless of how fast the server responds. Each latency is measured
+ *   from the time the request was scheduled to be sent (not when it was actually sent) so the latency is corrected
+ *   for the coordinated omission -- a stalled server is not hidden by the load generator waiting for it.
+ *
+ * Run with `mvn -Pbenchmark compile exec:exec@load-test -Dload.args="..."` -- see `--help` for the options.
+ */
+public class LoadTest {
+    
+    /** The kinds of requests that the load is made of. */
+    enum Operation {
+        LIST, GET, POST, PUT, DELETE, STATIC
+    }
+    
+    private static final String DEFAULT_MIX = "list:10,get:50,post:10,put:15,delete:5,static:10";
+    
+    // How long to wait for the outstanding responses after the last request is sent
+    //   -- the ones still outstanding then are failures with the latency up to that deadline.
+    private static final int MAX_DRAIN_SECONDS = 60;
+    
+    // A request sent and not yet answered.
+    private static final class Outstanding {
+        
+        final Operation operation;
+        final long      intendedNanos;
+        final long      sentNanos;
+        final boolean   isMeasured;
+        
+        Outstanding(Operation operation, long intendedNanos, long sentNanos, boolean isMeasured) {
+            this.operation     = operation;
+            this.intendedNanos = intendedNanos;
+            this.sentNanos     = sentNanos;
+            this.isMeasured    = isMeasured;
+        }
+    }
+    
+    // The results of a run.
+    private static final class Results {
+        
+        final Map<Operation, LatencyHistogram> responseTimes = new LinkedHashMap<>();
+        final Map<Operation, LatencyHistogram> serviceTimes  = new LinkedHashMap<>();
+        final Map<String, LongAdder>           statuses      = new ConcurrentHashMap<>();
+        final LongAdder                        failures      = new LongAdder();
+        final LongAdder                        unanswered    = new LongAdder();
+        
+        Results() {
+            for (var operation : Operation.values()) {
+                responseTimes.put(operation, new LatencyHistogram());
+                serviceTimes .put(operation, new LatencyHistogram());
+            }
+        }
+        
+        LatencyHistogram total(Map<Operation, LatencyHistogram> histograms) {
+            var total = new LatencyHistogram();
+            histograms.values().forEach(total::add);
+            return total;
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        if (List.of(args).contains("--help")) {
+            System.out.println("Run the server in-process and measure it with an open-loop load.");
+            System.out.println("Paramerers: ");
+            System.out.println("    --engine=jdk            : the HTTP engines to compare (comma separated) -- `jdk` or `nio`.");
+            System.out.println("    --acceptors=1           : the numbers of the acceptors to compare (comma separated) -- more than one for `nio` only.");
+            System.out.println("    --executor=cached       : the executor modes to compare (comma separated) -- `virtual`, `bounded` or `cached`.");
+            System.out.println("    --threads=<count>       : the number of threads for the bounded executor.");
+            System.out.println("    --queue=<count>         : the queue capacity of the bounded executor.");
+            System.out.println("    --rate=1000             : the number of requests per second.");
+            System.out.println("    --duration=10           : the number of seconds to measure.");
+            System.out.println("    --warmup=3              : the number of seconds to run before measuring.");
+            System.out.println("    --persons=1000          : the number of persons in the service at the start.");
+            System.out.println("    --client-threads=16     : the number of threads of the HTTP client.");
+            System.out.println("    --mix=" + DEFAULT_MIX + " : the weights of the requests.");
+            return;
+        }
+        
+        var engineModes   = option(args, "engine",   "jdk")   .split(",");
+        var executorModes = option(args, "executor", "cached").split(",");
+        var acceptorsList = option(args, "acceptors", "1")    .split(",");
+        var results       = new LinkedHashMap<String, Results>();
+        for (var engineName : engineModes) {
+            for (var executorName : executorModes) {
+                for (var acceptorsText : acceptorsList) {
+                    var engine    = EngineMode  .from(engineName);
+                    var mode      = ExecutorMode.from(executorName);
+                    var acceptors = Integer.parseInt(acceptorsText.trim());
+                    System.out.println(format("== Engine: %s, Executor: %s, Acceptors: %d ==", engine, mode, acceptors));
+                    var result = run(engine, mode, acceptors, args);
+                    report(result, intOption(args, "duration", 10));
+                    results.put(engine + "/" + mode + ((acceptorsList.length > 1) ? ("/" + acceptors) : ""), result);
+                }
+            }
+        }
+        if (results.size() > 1) {
+            compare(results, intOption(args, "duration", 10));
+        }
+        System.exit(0);
+    }
+    
+    private static Results run(EngineMode engineMode, ExecutorMode executorMode, int acceptors, String[] args) throws Exception {
+        var rate          = intOption(args, "rate",           1000);
+        var duration      = intOption(args, "duration",       10);
+        var warmup        = intOption(args, "warmup",         3);
+        var personCount   = intOption(args, "persons",        1000);
+        var clientThreads = intOption(args, "client-threads", 16);
+        var mix           = mixOf(option(args, "mix", DEFAULT_MIX));
+        
+        var port     = freePort();
+        var persons  = new PersonService();
+        for (int i = 0; i < personCount; i++) {
+            persons.post(newPerson(idOf(i), i));
+        }
+        var settings = new ServerSettings()
+                     .withEngineMode  (engineMode)
+                     .withAcceptors   (acceptors)
+                     .withExecutorMode(executorMode)
+                     .withMaxThreads  (intOption(args, "threads", 0))
+                     .withMaxQueue    (intOption(args, "queue",   0));
+        var server   = new Server(port, settings, Map.of("persons", persons));
+        server.start();
+        
+        var clientExecutor = Executors.newFixedThreadPool(clientThreads);
+        var client         = HttpClient.newBuilder()
+                           .version (HttpClient.Version.HTTP_1_1)
+                           .executor(clientExecutor)
+                           .connectTimeout(Duration.ofSeconds(10))
+                           .build();
+        try {
+            var baseUri     = "http://127.0.0.1:" + port;
+            var results     = new Results();
+            var postedId    = new AtomicInteger(0);
+            var outstanding = new ConcurrentHashMap<Long, Outstanding>();
+            
+            var interval     = TimeUnit.SECONDS.toNanos(1) / rate;
+            var startNanos   = System.nanoTime();
+            var measureNanos = startNanos + TimeUnit.SECONDS.toNanos(warmup);
+            var endNanos     = measureNanos + TimeUnit.SECONDS.toNanos(duration);
+            for (long i = 0; ; i++) {
+                var intendedNanos = startNanos + i*interval;
+                if (intendedNanos >= endNanos)
+                    break;
+                
+                // Wait for the scheduled time -- if the sending is late, the latency still counts from the scheduled time.
+                var waitNanos = intendedNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                }
+                
+                var operation  = pick(mix);
+                var request    = requestOf(operation, baseUri, personCount, postedId);
+                var isMeasured = (intendedNanos >= measureNanos);
+                var sentNanos  = System.nanoTime();
+                var index      = i;
+                outstanding.put(index, new Outstanding(operation, intendedNanos, sentNanos, isMeasured));
+                client.sendAsync(request, BodyHandlers.discarding()).whenComplete((response, exception) -> {
+                    var doneNanos = System.nanoTime();
+                    // No longer outstanding if it is already counted as unanswered (after the deadline).
+                    if ((outstanding.remove(index) == null) || !isMeasured)
+                        return;
+                    
+                    if (exception != null) {
+                        results.failures.increment();
+                    } else {
+                        results.statuses.computeIfAbsent(operation + " " + response.statusCode(), __ -> new LongAdder()).increment();
+                    }
+                    results.responseTimes.get(operation).record(doneNanos - intendedNanos);
+                    results.serviceTimes .get(operation).record(doneNanos - sentNanos);
+                });
+            }
+            var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(MAX_DRAIN_SECONDS);
+            while (!outstanding.isEmpty() && (System.nanoTime() < deadline)) {
+                Thread.sleep(10);
+            }
+            
+            // The slowest requests must not be dropped from the results -- they are failures that took (at least) until now.
+            var doneNanos = System.nanoTime();
+            for (var index : outstanding.keySet()) {
+                var unanswered = outstanding.remove(index);
+                if ((unanswered == null) || !unanswered.isMeasured)
+                    continue;
+                
+                results.failures  .increment();
+                results.unanswered.increment();
+                results.responseTimes.get(unanswered.operation).record(doneNanos - unanswered.intendedNanos);
+                results.serviceTimes .get(unanswered.operation).record(doneNanos - unanswered.sentNanos);
+            }
+            return results;
+        } finally {
+            server.stop();
+            shutdown(clientExecutor);
+        }
+    }
+    
+    private static HttpRequest requestOf(Operation operation, String baseUri, int personCount, AtomicInteger postedId) {
+        var random = ThreadLocalRandom.current();
+        var id     = idOf(random.nextInt(Math.max(personCount, 1)));
+        var json   = "application/json";
+        switch (operation) {
+            case LIST:   return HttpRequest.newBuilder(URI.create(baseUri + "/api/persons?limit=20&cursor=" + id)).GET().build();
+            case GET:    return HttpRequest.newBuilder(URI.create(baseUri + "/api/persons/" + id)).GET().build();
+            case POST:   return HttpRequest.newBuilder(URI.create(baseUri + "/api/persons"))
+                                .header("Content-Type", json)
+                                .POST(BodyPublishers.ofString(personJson("posted-" + postedId.incrementAndGet(), random.nextInt())))
+                                .build();
+            case PUT:    return HttpRequest.newBuilder(URI.create(baseUri + "/api/persons/" + id))
+                                .header("Content-Type", json)
+                                .PUT(BodyPublishers.ofString(personJson(id, random.nextInt())))
+                                .build();
+            case DELETE: return HttpRequest.newBuilder(URI.create(baseUri + "/api/persons/posted-" + (random.nextInt(Math.max(postedId.get(), 1)) + 1))).DELETE().build();
+            case STATIC: return HttpRequest.newBuilder(URI.create(baseUri + "/main.css")).GET().build();
+            default:     throw new IllegalArgumentException("Unknown operation: " + operation);
+        }
+    }
+    
+    private static void report(Results results, int durationSeconds) {
+        var total = results.total(results.responseTimes).count();
+        System.out.println(format("Throughput: %.1f requests/s (%d requests in %d s, %d failed -- %d unanswered within %d s after the last)",
+                total / (double)durationSeconds, total, durationSeconds, results.failures.sum(),
+                results.unanswered.sum(), MAX_DRAIN_SECONDS));
+        System.out.println();
+        System.out.println("Response time (from the scheduled send -- corrected for coordinated omission) in ms:");
+        printTable(results.responseTimes, results.total(results.responseTimes));
+        System.out.println();
+        System.out.println("Service time (from the actual send -- NOT corrected) in ms:");
+        printTable(results.serviceTimes, results.total(results.serviceTimes));
+        System.out.println();
+        System.out.println("Statuses:");
+        results.statuses.entrySet().stream()
+                .sorted ((a, b) -> a.getKey().compareTo(b.getKey()))
+                .forEach(entry -> System.out.println(format("    %-12s %d", entry.getKey(), entry.getValue().sum())));
+        System.out.println();
+    }
+    
+    private static void compare(Map<String, Results> results, int durationSeconds) {
+        System.out.println("== Comparison (response time in ms -- corrected for coordinated omission) ==");
+        System.out.println(format("%-20s %12s %10s %10s %10s %10s %10s", "engine/executor", "requests/s", "p50", "p90", "p99", "p99.9", "max"));
+        results.forEach((mode, result) -> {
+            var total = result.total(result.responseTimes);
+            System.out.println(format("%-20s %12.1f %10.2f %10.2f %10.2f %10.2f %10.2f",
+                    mode, total.count() / (double)durationSeconds,
+                    millis(total.valueAtPercentile(50)), millis(total.valueAtPercentile(90)),
+                    millis(total.valueAtPercentile(99)), millis(total.valueAtPercentile(99.9)), millis(total.max())));
+        });
+    }
+    
+    private static void printTable(Map<Operation, LatencyHistogram> histograms, LatencyHistogram total) {
+        System.out.println(format("    %-8s %10s %10s %10s %10s %10s %10s", "request", "count", "p50", "p90", "p99", "p99.9", "max"));
+        histograms.forEach((operation, histogram) -> printRow(operation.name(), histogram));
+        printRow("ALL", total);
+    }
+    
+    private static void printRow(String name, LatencyHistogram histogram) {
+        if (histogram.count() == 0)
+            return;
+        
+        System.out.println(format("    %-8s %10d %10.2f %10.2f %10.2f %10.2f %10.2f",
+                name, histogram.count(),
+                millis(histogram.valueAtPercentile(50)), millis(histogram.valueAtPercentile(90)),
+                millis(histogram.valueAtPercentile(99)), millis(histogram.valueAtPercentile(99.9)), millis(histogram.max())));
+    }
+    
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+    
+    //== The load ==
+    
+    private static List<Operation> mixOf(String mix) {
+        var operations = new ArrayList<Operation>();
+        for (var each : mix.split(",")) {
+            var parts     = each.trim().split(":");
+            var weight    = (parts.length > 1) ? Integer.parseInt(parts[1].trim()) : 1;
+            var operation = Operation.valueOf(parts[0].trim().toUpperCase());
+            for (int i = 0; i < weight; i++) {
+                operations.add(operation);
+            }
+        }
+        if (operations.isEmpty())
+            throw new IllegalArgumentException("Empty mix: " + mix);
+        
+        return operations;
+    }
+    
+    private static Operation pick(List<Operation> mix) {
+        return mix.get(ThreadLocalRandom.current().nextInt(mix.size()));
+    }
+    
+    private static String idOf(int index) {
+        return format("%08d", index);
+    }
+    
+    private static Person newPerson(String id, int index) {
+        var cape = (index % 2 == 0) ? Cape.None() : Cape.Color("Red");
+        return new Person(id, "First" + index, "Last" + (Math.abs(index) % 100), null, cape);
+    }
+    
+    private static String personJson(String id, int index) {
+        return format("{\"id\":\"%s\",\"firstName\":\"First%d\",\"lastName\":\"Last%d\",\"cape\":{\"__tagged\":\"None\"}}",
+                id, index, Math.abs(index) % 100);
+    }
+    
+    //== Utilities ==
+    
+    private static String option(String[] args, String name, String defaultValue) {
+        var prefix = "--" + name + "=";
+        for (var arg : args) {
+            if (arg.startsWith(prefix))
+                return arg.substring(prefix.length());
+        }
+        return defaultValue;
+    }
+    
+    private static int intOption(String[] args, String name, int defaultValue) {
+        return Integer.parseInt(option(args, name, String.valueOf(defaultValue)));
+    }
+    
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+    
+    private static void shutdown(ExecutorService executor) throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+    
+}
@@ -0,0 +1,159 @@
+package javaelmexample.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * An in-memory exchange so the request handling can be benchmarked without the network.
+ * The response body is discarded -- only its size is kept.
+ */
+public class BenchExchange extends HttpExchange {
+    
+    private final String              method;
+    private final URI                 uri;
+    private final byte[]              requestBody;
+    private final Headers             requestHeaders  = new Headers();
+    private final Headers             responseHeaders = new Headers();
+    private final Map<String, Object> attributes      = new HashMap<>();
+    
+    private InputStream  requestStream;
+    private OutputStream responseStream;
+    private int          responseCode  = -1;
+    private long         responseBytes = 0;
+    
+    public BenchExchange(String method, String path) {
+        this(method, path, new byte[0]);
+    }
+    
+    public BenchExchange(String method, String path, byte[] requestBody) {
+        this.method      = method;
+        this.uri         = URI.create(path);
+        this.requestBody = requestBody;
+        reset();
+    }
+    
+    /** Reset the exchange so it can be handled again. */
+    public BenchExchange reset() {
+        responseHeaders.clear();
+        attributes.clear();
+        requestStream  = new ByteArrayInputStream(requestBody);
+        responseStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                responseBytes++;
+            }
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                responseBytes += length;
+            }
+        };
+        responseCode  = -1;
+        responseBytes = 0;
+        return this;
+    }
+    
+    /** @return  the number of bytes written to the response body. */
+    public long responseBytes() {
+        return responseBytes;
+    }
+    
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+    
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+    
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+    
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+    
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+    
+    @Override
+    public void close() {
+    }
+    
+    @Override
+    public InputStream getRequestBody() {
+        return requestStream;
+    }
+    
+    @Override
+    public OutputStream getResponseBody() {
+        return responseStream;
+    }
+    
+    @Override
+    public void sendResponseHeaders(int responseCode, long responseLength) {
+        this.responseCode = responseCode;
+    }
+    
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return new InetSocketAddress("127.0.0.1", 0);
+    }
+    
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+    
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return new InetSocketAddress("127.0.0.1", 0);
+    }
+    
+    @Override
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+    
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+    
+    @Override
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+    
+    @Override
+    public void setStreams(InputStream inputStream, OutputStream outputStream) {
+        if (inputStream != null) {
+            requestStream = inputStream;
+        }
+        if (outputStream != null) {
+            responseStream = outputStream;
+        }
+    }
+    
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+    
+}
@@ -0,0 +1,59 @@
+package javaelmexample.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javaelmexample.services.Cape;
+import javaelmexample.services.Person;
+import javaelmexample.services.PersonCodec;
+
+/**
+ * The JSON conversion of a person -- with the codec and with the generic map-based conversion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+    
+    @Param({ "codec", "map" })
+    public String conversion;
+    
+    private Http          http;
+    private Person        person;
+    private BenchExchange exchange;
+    
+    @Setup
+    public void setup() {
+        http     = conversion.equals("codec") ? new Http(Map.of(Person.class, new PersonCodec())) : new Http();
+        person   = new Person("1", "Clark", "Kent", "Superman", Cape.Color("Red"));
+        exchange = new BenchExchange("POST", "/api/persons", Http.toJson(person).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    @Benchmark
+    public String toJson() {
+        return Http.toJson(http.codecs, person);
+    }
+    
+    @Benchmark
+    public Person fromJson() throws IOException {
+        return http.extractBody(exchange.reset(), Person.class);
+    }
+    
+}
@@ -0,0 +1,102 @@
+package javaelmexample.server;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javaelmexample.services.Cape;
+import javaelmexample.services.Person;
+import javaelmexample.services.PersonService;
+
+/**
+ * The API routing and the dispatch to the service handler (with the response written to memory).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerBenchmark {
+    
+    private static final int PERSON_COUNT = 1000;
+    
+    private Server        server;
+    private BenchExchange getExchange;
+    private BenchExchange listExchange;
+    private BenchExchange listAllExchange;
+    private BenchExchange notModifiedExchange;
+    private BenchExchange missingExchange;
+    
+    @Setup
+    public void setup() {
+        var persons = new PersonService();
+        for (int i = 0; i < PERSON_COUNT; i++) {
+            persons.post(new Person(format("%06d", i), "First" + i, "Last" + (i % 100), null, Cape.None()));
+        }
+        server          = new Server(0, Map.of("persons", persons));
+        getExchange     = new BenchExchange("GET", "/api/persons/000500");
+        listExchange    = new BenchExchange("GET", "/api/persons?limit=20&cursor=000500");
+        listAllExchange = new BenchExchange("GET", "/api/persons");
+        missingExchange = new BenchExchange("GET", "/api/unknown/1");
+        
+        notModifiedExchange = new BenchExchange("GET", "/api/persons");
+        try {
+            handle(listAllExchange);
+        } catch (IOException exception) {
+            throw new IllegalStateException(exception);
+        }
+        notModifiedExchange.getRequestHeaders().set("If-None-Match", listAllExchange.getResponseHeaders().getFirst("ETag"));
+    }
+    
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+    
+    @Benchmark
+    public long handleGet() throws IOException {
+        return handle(getExchange);
+    }
+    
+    @Benchmark
+    public long handleList() throws IOException {
+        return handle(listExchange);
+    }
+    
+    @Benchmark
+    public long handleListAll() throws IOException {
+        return handle(listAllExchange);
+    }
+    
+    @Benchmark
+    public long handleListAllNotModified() throws IOException {
+        return handle(notModifiedExchange);
+    }
+    
+    @Benchmark
+    public long handleNotFound() throws IOException {
+        return handle(missingExchange);
+    }
+    
+    private long handle(BenchExchange exchange) throws IOException {
+        exchange.reset();
+        server.handleApi(exchange.getRequestURI().getPath(), exchange);
+        return exchange.responseBytes();
+    }
+    
+}
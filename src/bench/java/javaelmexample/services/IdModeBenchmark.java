@@ -0,0 +1,50 @@
+package javaelmexample.services;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The ID of new persons by the modes -- with many writers at the same time (alone and with the post).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(32)
+@Fork(1)
+public class IdModeBenchmark {
+    
+    @Param({ "RANDOM", "TIME_ORDERED" })
+    public IdMode mode;
+    
+    private PersonService service;
+    
+    @Setup
+    public void setup() {
+        service = new PersonService(null, mode);
+    }
+    
+    @Benchmark
+    public String nextId() {
+        return mode.nextId();
+    }
+    
+    @Benchmark
+    public Person post() {
+        return service.post(new Person(null, "First", "Last", null, Cape.None())).getCurrentResult().get();
+    }
+    
+}
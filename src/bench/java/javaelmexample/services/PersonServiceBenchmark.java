@@ -0,0 +1,106 @@
+package javaelmexample.services;
+
+import static java.lang.String.format;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import functionalj.list.FuncList;
+import functionalj.map.FuncMap;
+import javaelmexample.server.ListQuery;
+
+/**
+ * The operations of the person service -- alone and mixed (reads, lists and writes at the same time).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersonServiceBenchmark {
+    
+    @Param({ "10000" })
+    public int size;
+    
+    private PersonService service;
+    
+    @Setup
+    public void setup() {
+        service = new PersonService();
+        for (int i = 0; i < size; i++) {
+            service.post(newPerson(i, 0));
+        }
+    }
+    
+    @Benchmark
+    public Person get() {
+        return service.get(randomId()).getCurrentResult().get();
+    }
+    
+    @Benchmark
+    public FuncList<Person> listPage() {
+        return service.list(new ListQuery().withLimit(20).withCursor(randomId())).getCurrentResult().get();
+    }
+    
+    @Benchmark
+    public FuncList<Person> listByLastName() {
+        var filters = FuncMap.of("lastName", "last" + ThreadLocalRandom.current().nextInt(100));
+        return service.list(new ListQuery().withLimit(20).withFilters(filters)).getCurrentResult().get();
+    }
+    
+    @Benchmark
+    public Person put() {
+        var index = ThreadLocalRandom.current().nextInt(size);
+        return service.put(idOf(index), newPerson(index, 1)).getCurrentResult().get();
+    }
+    
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(4)
+    public Person mixedGet() {
+        return get();
+    }
+    
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public FuncList<Person> mixedList() {
+        return listPage();
+    }
+    
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public Person mixedPut() {
+        return put();
+    }
+    
+    private String randomId() {
+        return idOf(ThreadLocalRandom.current().nextInt(size));
+    }
+    
+    private static String idOf(int index) {
+        return format("%08d", index);
+    }
+    
+    private static Person newPerson(int index, int version) {
+        var cape = (index % 3 == 0) ? Cape.None() : Cape.Color((index % 3 == 1) ? "Red" : "Blue");
+        return new Person(idOf(index), "First" + index + "." + version, "Last" + (index % 100), null, cape);
+    }
+    
+}
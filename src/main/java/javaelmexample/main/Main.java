@@ -5,34 +5,50 @@ import static functionalj.list.FuncList.ListOf;
 import static functionalj.map.FuncMap.mapOf;
 import static functionalj.stream.StreamPlus.streamOf;
 import static java.lang.String.format;
+import static nullablej.nullable.Nullable.nullable;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Map;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.Scanner;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.TimeUnit;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
+import com.google.gson.stream.JsonReader;
 
 import functionalj.lens.Access;
 import functionalj.list.FuncList;
 import functionalj.map.ImmutableFuncMap;
 import functionalj.types.Struct;
+import javaelmexample.server.EngineMode;
+import javaelmexample.server.ExecutorMode;
 import javaelmexample.server.Server;
+import javaelmexample.server.ServerSettings;
 import javaelmexample.server.WithDemoMode;
+import javaelmexample.services.IdMode;
 import javaelmexample.services.Person;
+import javaelmexample.services.PersonCodec;
+import javaelmexample.services.PersonJournal;
 import javaelmexample.services.PersonService;
+import javaelmexample.services.PersonSnapshot;
 
 /**
  * This main create a web service exposing to the port (specify using `--port=<port-number>`, default to 8081).
  */
 public class Main {
     
+    // The seed data in the class path.
+    private static final String DEFAULT_SEED = "data/persons.json";
+    
     // List of the browser to try on Linux.
     private static final FuncList<String> browsers = ListOf("chromium", "firefox", "mozilla", "opera");
     
@@ -42,9 +58,41 @@ public class Main {
         var portNumber  = determinePortNumber(args);
         var openBrowser = streamOf(args).containsNoneOf("--browser=false");
         var demoMode    = streamOf(args).containsAnyOf ("--demo=true");
+        var fingerprint = streamOf(args).containsAnyOf ("--fingerprint=true");
+        var seedPath    = nullable(determineStringOption(args, "seed")).orElse(DEFAULT_SEED);
+        var convertTo   = determineStringOption(args, "convert-seed");
+        if (convertTo != null) {
+            convertSeed(seedPath, Paths.get(convertTo));
+            return;
+        }
         
-        var services = mapOf("persons", loadPersonService("data/persons.json"));
-        var server   = new Server(portNumber, services);
+        var settings = new ServerSettings()
+                     .withFingerprintAssets  (fingerprint)
+                     .withEngineMode         (determineEngineMode(args))
+                     .withAcceptors          (determineIntOption(args, "acceptors",            0))
+                     .withExecutorMode       (determineExecutorMode(args))
+                     .withMaxThreads         (determineIntOption(args, "threads",              0))
+                     .withMaxQueue           (determineIntOption(args, "queue",                0))
+                     .withBacklog            (determineIntOption(args, "backlog",              0))
+                     .withIdleTimeoutSeconds (determineIntOption(args, "idle-timeout",         0))
+                     .withMaxConnections     (determineIntOption(args, "max-connections",      0))
+                     .withMaxIdleConnections (determineIntOption(args, "max-idle-connections", 0))
+                     .withMaxRequestHeaders  (determineIntOption(args, "max-request-headers",  0))
+                     .withMaxRequestBytes    (determineIntOption(args, "max-request-bytes",    0))
+                     .withReadTimeoutSeconds (determineIntOption(args, "read-timeout",         0))
+                     .withWriteTimeoutSeconds(determineIntOption(args, "write-timeout",        0));
+        var dataDir  = determineStringOption(args, "data-dir");
+        var journal  = (dataDir == null) ? null : PersonJournal.open(Paths.get(dataDir), PersonJournal.DEFAULT_SNAPSHOT_INTERVAL_MILLIS);
+        var idMode   = determineIdMode(args);
+        var persons  = (journal == null) ? new PersonService(null, idMode) : PersonService.persistent(journal, idMode);
+        if (persons.count() == 0) {
+            var startTime = System.nanoTime();
+            loadPersonService(seedPath, persons);
+            var loadTime  = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+            System.out.println(format("Loaded %d persons from `%s` in %d ms.", persons.count(), seedPath, loadTime));
+        }
+        var services = mapOf("persons", persons);
+        var server   = new Server(portNumber, settings, services);
         var timer    = new Timer();
         
         if (demoMode) {
@@ -71,9 +119,12 @@ public class Main {
         
         System.out.println("Shutting down the server ...");
         timer.cancel();
-        server.stop(() -> System.out.println("Server is successfully stopped."));
+        server.stop(() -> {
+            closeJournal(journal);
+            System.out.println("Server is successfully stopped.");
+        });
     }
-
+    
     private static void setupDemoMode(ImmutableFuncMap<String, PersonService> services, Timer timer) {
         services
         .values()
@@ -86,8 +137,20 @@ public class Main {
     private static void displayHelpMessage(String[] args) {
         var askForHelp      = streamOf(args).containsAnyOf("--help");
         var unknownArgument = streamOf(args)
-                        .excludeAny("--help", "--browser=false", "--browser=true", "--demo=false", "--demo=true")
+                        .excludeAny("--help", "--browser=false", "--browser=true", "--demo=false", "--demo=true",
+                                    "--fingerprint=false", "--fingerprint=true")
                         .exclude(Access.$S.thatStartsWith("--port"))
+                        .exclude(Access.$S.thatMatches("^--engine=(jdk|nio)$"))
+                        .exclude(Access.$S.thatMatches("^--acceptors=[0-9]+$"))
+                        .exclude(Access.$S.thatMatches("^--executor=(virtual|bounded|cached)$"))
+                        .exclude(Access.$S.thatMatches("^--threads=[0-9]+$"))
+                        .exclude(Access.$S.thatMatches("^--queue=[0-9]+$"))
+                        .exclude(Access.$S.thatMatches("^--(backlog|idle-timeout|max-connections|max-idle-connections)=[0-9]+$"))
+                        .exclude(Access.$S.thatMatches("^--(max-request-headers|max-request-bytes|read-timeout|write-timeout)=[0-9]+$"))
+                        .exclude(Access.$S.thatMatches("^--ids=(time|random)$"))
+                        .exclude(Access.$S.thatMatches("^--data-dir=.+$"))
+                        .exclude(Access.$S.thatMatches("^--seed=.+$"))
+                        .exclude(Access.$S.thatMatches("^--convert-seed=.+$"))
                         .findAny();
         unknownArgument.ifPresent(argument -> {
             System.out.println("Unknown argument: " + argument);
@@ -97,10 +160,28 @@ public class Main {
         if (askForHelp || unknownArgument.isPresent()) {
             System.out.println("Run a simple web server.");
             System.out.println("Paramerers: ");
-            System.out.println("    --help               : print this message.");
-            System.out.println("    --browser=false      : disable the attempt to open a browser.");
-            System.out.println("    --demo=false         : demo mode -- data is reset every 5 mins.");
-            System.out.println("    --port=<port-number> : specify the port number -- default to 8081.");
+            System.out.println("    --help                      : print this message.");
+            System.out.println("    --browser=false             : disable the attempt to open a browser.");
+            System.out.println("    --demo=false                : demo mode -- data is reset every 5 mins.");
+            System.out.println("    --fingerprint=false         : serve the assets with content hashes in their paths so they can be cached for good.");
+            System.out.println("    --port=<port-number>        : specify the port number -- default to 8081.");
+            System.out.println("    --engine=jdk                : the HTTP engine -- `jdk` (com.sun.net.httpserver) or `nio` (NIO selector with zero-copy files).");
+            System.out.println("    --acceptors=<count>         : the number of the acceptors on the port (with SO_REUSEPORT) -- `nio` only, default to 1.");
+            System.out.println("    --executor=cached           : how requests are run -- `virtual` (Java 21+), `bounded` or `cached`.");
+            System.out.println("    --threads=<count>           : the number of threads for the bounded executor.");
+            System.out.println("    --queue=<count>             : the queue capacity of the bounded executor -- more requests get 503.");
+            System.out.println("    --backlog=<count>           : the number of the connections waiting to be accepted -- default to the system's.");
+            System.out.println("    --idle-timeout=30           : the seconds an idle kept-alive connection is kept open.");
+            System.out.println("    --max-connections=<count>   : the number of the open connections -- default to no limit.");
+            System.out.println("    --max-idle-connections=200  : the number of the idle kept-alive connections.");
+            System.out.println("    --max-request-headers=200   : the number of the headers of a request.");
+            System.out.println("    --max-request-bytes=<bytes> : the size of a request body -- larger ones get 413 (default to no limit).");
+            System.out.println("    --read-timeout=<seconds>    : the time to receive a request -- default to no limit.");
+            System.out.println("    --write-timeout=<seconds>   : the time to send a response -- default to no limit.");
+            System.out.println("    --ids=<mode>                : the IDs of the new persons -- `time` (time-ordered UUIDs) or `random` (random UUIDs), default to `time`.");
+            System.out.println("    --data-dir=<path>           : persist the data (journal and snapshots) in the directory -- default to in-memory only.");
+            System.out.println("    --seed=<path>               : the initial data -- a JSON array or a binary `.snapshot` file (default to the built-in JSON).");
+            System.out.println("    --convert-seed=<path>       : convert the seed to a binary `.snapshot` file (fast to load) and exit.");
             
             var code = askForHelp ? 0 : 1;
             System.exit(code);
@@ -115,6 +196,62 @@ public class Main {
                 .orElse   (8081);
     }
     
+    private static EngineMode determineEngineMode(String[] args) {
+        return streamOf(args)
+                .filter   ($S.thatStartsWith("--engine="))
+                .map      ($S.replaceFirst("--engine=", ""))
+                .map      (EngineMode::from)
+                .findFirst()
+                .orElse   (EngineMode.JDK);
+    }
+    
+    private static ExecutorMode determineExecutorMode(String[] args) {
+        return streamOf(args)
+                .filter   ($S.thatStartsWith("--executor="))
+                .map      ($S.replaceFirst("--executor=", ""))
+                .map      (ExecutorMode::from)
+                .findFirst()
+                .orElse   (ExecutorMode.CACHED);
+    }
+    
+    private static IdMode determineIdMode(String[] args) {
+        return streamOf(args)
+                .filter   ($S.thatStartsWith("--ids="))
+                .map      ($S.replaceFirst("--ids=", ""))
+                .map      (IdMode::from)
+                .findFirst()
+                .orElse   (IdMode.TIME_ORDERED);
+    }
+    
+    private static int determineIntOption(String[] args, String name, int defaultValue) {
+        var prefix = "--" + name + "=";
+        return streamOf(args)
+                .filter   ($S.thatMatches("^" + prefix + "[0-9]+$"))
+                .mapToInt ($S.replaceFirst(prefix, "").parseInteger().get())
+                .findFirst()
+                .orElse   (defaultValue);
+    }
+    
+    private static String determineStringOption(String[] args, String name) {
+        var prefix = "--" + name + "=";
+        return streamOf(args)
+                .filter   ($S.thatStartsWith(prefix))
+                .map      ($S.replaceFirst(prefix, ""))
+                .findFirst()
+                .orElse   (null);
+    }
+    
+    private static void closeJournal(PersonJournal journal) {
+        if (journal == null)
+            return;
+        
+        try {
+            journal.close();
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+    
     private static boolean attemptOpenBrowser(String url) {
         try {
             var os = System.getProperty("os.name").toLowerCase();
@@ -178,22 +315,13 @@ public class Main {
     
     //== Loader Persons from file ==
     
-    @SuppressWarnings("unchecked")
     static PersonService loadPersonService(String initialDataPath) {
-        var service = new PersonService();
-        
+        return loadPersonService(initialDataPath, new PersonService());
+    }
+    
+    static PersonService loadPersonService(String initialDataPath, PersonService service) {
         try {
-            var resource = Server.class.getClassLoader().getResourceAsStream(initialDataPath);
-            var buffer = new ByteArrayOutputStream();
-            resource.transferTo(buffer);
-            var content = new String(buffer.toByteArray());
-            var gson    = new Gson();
-            var list    = gson.fromJson(content, JsonArray.class);
-            for (var each : list) {
-                var map    = gson.fromJson(each, Map.class);
-                var person = Person.fromMap(map);
-                service.post(person);
-            }
+            service.loadAll(readSeed(initialDataPath));
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -201,6 +329,33 @@ public class Main {
         return service;
     }
     
+    // The seed is a binary snapshot (memory-mapped) or a JSON array (streamed) -- from the file system or the class path.
+    static List<Person> readSeed(String seedPath) throws IOException {
+        var persons = new ArrayList<Person>();
+        var file    = Paths.get(seedPath);
+        if (seedPath.endsWith(PersonSnapshot.EXTENSION)) {
+            PersonSnapshot.read(file, persons::add);
+            return persons;
+        }
+        
+        var codec = new PersonCodec();
+        try (var input  = Files.isRegularFile(file) ? Files.newInputStream(file) : Server.class.getClassLoader().getResourceAsStream(seedPath);
+             var reader = new JsonReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                persons.add(codec.read(reader));
+            }
+            reader.endArray();
+        }
+        return persons;
+    }
+    
+    static void convertSeed(String seedPath, Path snapshotPath) throws IOException {
+        var persons = readSeed(seedPath);
+        PersonSnapshot.write(snapshotPath, persons, 0L);
+        System.out.println(format("Converted %d persons from `%s` to `%s`.", persons.size(), seedPath, snapshotPath));
+    }
+    
     static TimerTask timerTask(Runnable action) {
         return new TimerTask() {
             
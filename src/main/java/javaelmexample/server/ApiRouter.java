@@ -0,0 +1,90 @@
+package javaelmexample.server;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * This class is the routing table of the API -- it dispatches `/api/<service>[/<id>]` to the handler of the service.
+ *
+ * The routes are compiled once (when the server is created) and the path is scanned in place
+ *   -- no list of the path parts is created, only the item ID is cut out of the path.
+ * The service names are matched against the path region directly; there are few services so a scan is the fastest.
+ **/
+final class ApiRouter {
+    
+    /** The prefix of the API paths. */
+    public static final String API_PREFIX = "/api/";
+    
+    private final String[]            names;
+    private final ServiceHandler<?>[] handlers;
+    
+    /** Create the routing table of the handlers by the service names. */
+    ApiRouter(Map<String, ? extends ServiceHandler<?>> handlers) {
+        this.names    = new String[handlers.size()];
+        this.handlers = new ServiceHandler<?>[handlers.size()];
+        
+        var index = 0;
+        for (var entry : handlers.entrySet()) {
+            this.names   [index] = entry.getKey();
+            this.handlers[index] = entry.getValue();
+            index++;
+        }
+    }
+    
+    /**
+     * Route the request to its service handler.
+     *
+     * The empty path parts are ignored (e.g., `/api//persons/` is the same as `/api/persons`).
+     *
+     * @return  false if no service handles the path -- nothing is responded then.
+     */
+    boolean route(String path, HttpExchange exchange) throws IOException {
+        if (!path.startsWith(API_PREFIX))
+            return false;
+        
+        var length       = path.length();
+        var serviceStart = skipSlashes(path, API_PREFIX.length());
+        var serviceEnd   = partEnd(path, serviceStart);
+        var handler      = handlerOf(path, serviceStart, serviceEnd);
+        if (handler == null)
+            return false;
+        
+        var itemStart = skipSlashes(path, serviceEnd);
+        if (itemStart == length)
+            return handler.handle((String)null, exchange);
+        
+        var itemEnd = partEnd(path, itemStart);
+        if (skipSlashes(path, itemEnd) != length)
+            return false;
+        
+        return handler.handle(path.substring(itemStart, itemEnd), exchange);
+    }
+    
+    private ServiceHandler<?> handlerOf(String path, int start, int end) {
+        var length = end - start;
+        if (length == 0)
+            return null;
+        
+        for (int index = 0; index < names.length; index++) {
+            var name = names[index];
+            if ((name.length() == length) && path.startsWith(name, start))
+                return handlers[index];
+        }
+        return null;
+    }
+    
+    private static int skipSlashes(String path, int index) {
+        while ((index < path.length()) && (path.charAt(index) == '/')) {
+            index++;
+        }
+        return index;
+    }
+    
+    private static int partEnd(String path, int index) {
+        var end = path.indexOf('/', index);
+        return (end < 0) ? path.length() : end;
+    }
+    
+}
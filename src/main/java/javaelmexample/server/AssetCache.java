@@ -0,0 +1,278 @@
+package javaelmexample.server;
+
+import static javaelmexample.server.Http.extContentTypes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class holds the static assets (from the class path) in memory so they are only read (and compressed) once.
+ *
+ * The cache is populated lazily and is bounded by the total number of bytes it holds.
+ * Assets that does not fit are still served but are read from the class path every time.
+ *
+ * When fingerprinting is enabled, an asset can also be requested as `name.[hash].ext` (e.g. `main.0a1b2c3d4e.js`)
+ *   and the references to local assets in HTML files are rewritten to those fingerprinted paths.
+ * The fingerprinted paths never change content so they can be cached by the browser for good.
+ */
+public class AssetCache {
+    
+    /** The default maximum number of bytes to be cached -- 32 MB. */
+    public static final long DEFAULT_MAX_BYTES = 32L*1024*1024;
+    
+    /** The number of hex digits of the content hash used in the fingerprinted path. */
+    public static final int FINGERPRINT_LENGTH = 10;
+    
+    /** The gzip variant is only kept when it is at least this much smaller than the original. */
+    private static final double MIN_COMPRESSION_RATIO = 0.9;
+    
+    private static final Pattern fingerprintedPath = Pattern.compile("^(.*)\\.([0-9a-f]{" + FINGERPRINT_LENGTH + "})(\\.[^./]+)$");
+    private static final Pattern htmlReference     = Pattern.compile("(\\s(?:src|href)=)([\"'])([^\"':?#]+)\\2");
+    
+    /**
+     * A static asset and its precompressed variant.
+     */
+    public static final class Asset {
+        
+        public final String path;
+        public final String contentType;
+        public final String hash;
+        public final String etag;
+        public final String gzipEtag;
+        public final long   lastModified;
+        
+        /** The file of the asset if it is on the file system (and served as is) -- for sending it without copying. */
+        public final Path   file;
+        
+        private final byte[] bytes;
+        private final byte[] gzipBytes;
+        
+        Asset(String path, String contentType, byte[] bytes, byte[] gzipBytes, long lastModified) {
+            this(path, contentType, bytes, gzipBytes, lastModified, null);
+        }
+        
+        Asset(String path, String contentType, byte[] bytes, byte[] gzipBytes, long lastModified, Path file) {
+            this.path         = path;
+            this.contentType  = contentType;
+            this.bytes        = bytes;
+            this.gzipBytes    = gzipBytes;
+            this.hash         = sha256Hex(bytes);
+            this.etag         = "\"" + hash + "\"";
+            this.gzipEtag     = "\"" + hash + "-gzip\"";
+            this.lastModified = lastModified;
+            this.file         = file;
+        }
+        
+        /** @return  the raw content -- the returned array MUST NOT be modified. */
+        public byte[] bytes() {
+            return bytes;
+        }
+        
+        /** @return  the gzip content or null if this asset is not worth compressing -- the array MUST NOT be modified. */
+        public byte[] gzipBytes() {
+            return gzipBytes;
+        }
+        
+        /** @return  the path of this asset with the content hash in it (e.g. `main.0a1b2c3d4e.js`). */
+        public String fingerprintedPath() {
+            var dotIndex = path.lastIndexOf('.');
+            return path.substring(0, dotIndex) + "." + hash.substring(0, FINGERPRINT_LENGTH) + path.substring(dotIndex);
+        }
+        
+        /** @return  the total number of bytes held by this asset. */
+        public long size() {
+            return bytes.length + ((gzipBytes != null) ? gzipBytes.length : 0);
+        }
+    }
+    
+    private final ClassLoader        classLoader;
+    private final long               maxBytes;
+    private final boolean            fingerprint;
+    private final Map<String, Asset> assets     = new ConcurrentHashMap<>();
+    private final AtomicLong         totalBytes = new AtomicLong(0);
+    private final long               startTime  = System.currentTimeMillis();
+    
+    public AssetCache() {
+        this(false);
+    }
+    
+    public AssetCache(boolean fingerprint) {
+        this(AssetCache.class.getClassLoader(), DEFAULT_MAX_BYTES, fingerprint);
+    }
+    
+    public AssetCache(ClassLoader classLoader, long maxBytes, boolean fingerprint) {
+        this.classLoader = classLoader;
+        this.maxBytes    = maxBytes;
+        this.fingerprint = fingerprint;
+    }
+    
+    /** @return  the content type of the given path based on its extension or null if the extension is not allowed. */
+    public static String contentTypeOf(String path) {
+        var dotIndex   = path.lastIndexOf('.');
+        var slashIndex = path.lastIndexOf('/');
+        if (dotIndex == -1 || dotIndex < slashIndex)
+            return null;
+        
+        return extContentTypes.get(path.substring(dotIndex));
+    }
+    
+    /** @return  {@code true} if the fingerprinted paths are supported. */
+    public boolean isFingerprinting() {
+        return fingerprint;
+    }
+    
+    /**
+     * Returns the asset for the path (relative to the class path root).
+     *
+     * @return  the asset or null if there is no such resource.
+     **/
+    public Asset get(String path) throws IOException {
+        var asset = assets.get(path);
+        if (asset != null)
+            return asset;
+        
+        asset = load(path);
+        if (asset == null)
+            return null;
+        
+        if (totalBytes.addAndGet(asset.size()) <= maxBytes) {
+            var existing = assets.putIfAbsent(path, asset);
+            if (existing != null) {
+                totalBytes.addAndGet(-asset.size());
+                return existing;
+            }
+        } else {
+            totalBytes.addAndGet(-asset.size());
+        }
+        return asset;
+    }
+    
+    /**
+     * Returns the asset for the fingerprinted path (e.g. `main.0a1b2c3d4e.js`).
+     *
+     * @return  the asset or null if fingerprinting is disabled, the path is not fingerprinted or the hash does not match.
+     **/
+    public Asset getFingerprinted(String path) throws IOException {
+        if (!fingerprint)
+            return null;
+        
+        var matcher = fingerprintedPath.matcher(path);
+        if (!matcher.matches())
+            return null;
+        
+        var asset = get(matcher.group(1) + matcher.group(3));
+        if ((asset == null) || !asset.hash.startsWith(matcher.group(2)))
+            return null;
+        
+        return asset;
+    }
+    
+    /** @return  the total number of bytes currently cached. */
+    public long cachedBytes() {
+        return totalBytes.get();
+    }
+    
+    private Asset load(String path) throws IOException {
+        var contentType = contentTypeOf(path);
+        if (contentType == null)
+            return null;
+        
+        var url = classLoader.getResource(path);
+        if (url == null)
+            return null;
+        
+        var connection   = url.openConnection();
+        var lastModified = connection.getLastModified();
+        var file         = url.getProtocol().equals("file") ? fileOf(url) : null;
+        try (var resource = connection.getInputStream()) {
+            var bytes = resource.readAllBytes();
+            if (fingerprint && contentType.startsWith("text/html")) {
+                bytes = fingerprintReferences(path, bytes);
+                // The rewritten content depends on the referenced assets too.
+                lastModified = startTime;
+                file         = null;
+            }
+            
+            var gzipBytes = isCompressible(contentType) ? gzip(bytes) : null;
+            // Whole seconds as that is the precision of the `Last-Modified` header.
+            var modified  = ((lastModified > 0) ? lastModified : startTime) / 1000 * 1000;
+            return new Asset(path, contentType, bytes, gzipBytes, modified, file);
+        }
+    }
+    
+    private static Path fileOf(URL url) {
+        try {
+            return Paths.get(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException exception) {
+            return null;
+        }
+    }
+    
+    private byte[] fingerprintReferences(String htmlPath, byte[] htmlBytes) throws IOException {
+        var slashIndex = htmlPath.lastIndexOf('/');
+        var baseDir    = (slashIndex == -1) ? "" : htmlPath.substring(0, slashIndex + 1);
+        var html       = new String(htmlBytes, StandardCharsets.UTF_8);
+        var matcher    = htmlReference.matcher(html);
+        var buffer     = new StringBuilder();
+        while (matcher.find()) {
+            var reference  = matcher.group(3);
+            var isAbsolute = reference.startsWith("/");
+            var assetPath  = isAbsolute ? reference.substring(1) : baseDir + reference;
+            var asset      = (contentTypeOf(assetPath) != null) && !assetPath.endsWith(".html") ? get(assetPath) : null;
+            if (asset != null) {
+                var fingerprinted = asset.fingerprintedPath();
+                var newReference  = isAbsolute ? "/" + fingerprinted : fingerprinted.substring(baseDir.length());
+                matcher.appendReplacement(buffer, Matcher.quoteReplacement(matcher.group(1) + matcher.group(2) + newReference + matcher.group(2)));
+            } else {
+                matcher.appendReplacement(buffer, Matcher.quoteReplacement(matcher.group()));
+            }
+        }
+        matcher.appendTail(buffer);
+        return buffer.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/")
+            || contentType.startsWith("application/javascript")
+            || contentType.startsWith("application/json")
+            || contentType.equals("image/x-icon");
+    }
+    
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        var buffer = new ByteArrayOutputStream(bytes.length / 2 + 64);
+        try (var gzipStream = new GZIPOutputStream(buffer)) {
+            gzipStream.write(bytes);
+        }
+        var gzipBytes = buffer.toByteArray();
+        return (gzipBytes.length < bytes.length*MIN_COMPRESSION_RATIO) ? gzipBytes : null;
+    }
+    
+    private static String sha256Hex(byte[] bytes) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            var hex    = new StringBuilder(digest.length*2);
+            for (var each : digest) {
+                hex.append(Character.forDigit((each >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(each & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException exception) {
+            // SHA-256 is required to be supported by every Java platform.
+            throw new IllegalStateException(exception);
+        }
+    }
+    
+}
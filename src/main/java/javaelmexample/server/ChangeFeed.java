@@ -0,0 +1,251 @@
+package javaelmexample.server;
+
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is the feed of the changes of a {@link RestService} -- the subscribers get each change as it is made
+ *   so the clients do not have to poll the whole list to see the changes made by others.
+ *
+ * Each change has a sequence number. The last {@link #RETAINED_CHANGES} changes are kept (in a ring) so a subscriber can resume
+ *   from the last change it saw (the `Last-Event-ID` of Server-Sent Events) -- all the subscribers read the changes from there.
+ * If that change is no longer kept (or the ID is from another run of the server), the subscriber gets a {@link Type#RESET}
+ *   which means the client should reload the list.
+ * A subscriber that falls too far behind is dropped (and will resume from where it was when it comes back)
+ *   so a slow client never holds the memory nor slows the changes down.
+ **/
+public final class ChangeFeed<DATA extends RestData> {
+    
+    /** The number of the most recent changes kept for the subscribers to resume from -- a power of two. */
+    public static final int RETAINED_CHANGES = 4096;
+    
+    /** The number of the changes waiting to be sent to a subscriber after which the subscriber is dropped -- less than {@link #RETAINED_CHANGES}. */
+    public static final int SUBSCRIBER_QUEUE_SIZE = 1024;
+    
+    /** The number of the subscribers after which the new ones are refused. */
+    public static final int MAX_SUBSCRIBERS = 256;
+    
+    /** The types of the changes. */
+    public static enum Type {
+        POST, PUT, DELETE,
+        /** Everything may have changed (e.g., the demo mode reset) -- the list should be reloaded. */
+        RESET;
+        
+        /** @return  the name of the event as sent to the clients. */
+        public String eventName() {
+            return name().toLowerCase();
+        }
+    }
+    
+    /**
+     * A change -- the data is null for {@link Type#DELETE} and {@link Type#RESET}.
+     */
+    public static final class Change {
+        
+        public final String epoch;
+        public final long   sequence;
+        public final Type   type;
+        public final String id;
+        public final Object data;
+        
+        // The JSON is made when first sent and then shared by all the subscribers.
+        private volatile String json;
+        
+        Change(String epoch, long sequence, Type type, String id, Object data) {
+            this.epoch    = epoch;
+            this.sequence = sequence;
+            this.type     = type;
+            this.id       = id;
+            this.data     = data;
+        }
+        
+        /** @return  the ID of the event for the client to resume from -- unique across the runs of the server. */
+        public String eventId() {
+            return epoch + "-" + sequence;
+        }
+        
+        /** @return  the change as JSON: `{"sequence":..,"type":..,"id":..,"data":..}` -- the data with its codec if there is one. */
+        public String toJson(Map<Class<?>, JsonCodec<?>> codecs) {
+            var json = this.json;
+            if (json == null) {
+                var idJson   = (id   == null) ? "null" : Http.toJson(id);
+                var dataJson = (data == null) ? "null" : Http.toJson(codecs, data);
+                json = "{\"sequence\":" + sequence + ",\"type\":\"" + type.eventName() + "\",\"id\":" + idJson + ",\"data\":" + dataJson + "}";
+                this.json = json;
+            }
+            return json;
+        }
+    }
+    
+    /**
+     * The subscription to the changes -- it must be closed once done.
+     *
+     * It reads the changes from the retained ones (in the order of their sequences) so publishing a change does nothing
+     *   per subscriber.
+     */
+    public final class Subscription implements AutoCloseable {
+        
+        // The changes the subscriber can fall behind (from the publishing) before it is dropped.
+        private final long maxBehind;
+        
+        // The change to send before the retained ones (the reset when the subscriber cannot resume).
+        private Change first;
+        private long   next;
+        
+        // The thread waiting for the next change -- woken up by the publishing.
+        private volatile Thread  waiter    = null;
+        private volatile boolean isDropped = false;
+        
+        Subscription(Change first, long next, long behind) {
+            this.first     = first;
+            this.next      = next;
+            this.maxBehind = behind + SUBSCRIBER_QUEUE_SIZE;
+        }
+        
+        /** @return  the next change or null if there is none within the timeout or the subscription is dropped. */
+        public Change poll(long timeout, TimeUnit unit) throws InterruptedException {
+            if (first != null) {
+                var change = first;
+                first = null;
+                return change;
+            }
+            
+            var deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isDropped) {
+                var change = retained.get(slotOf(next));
+                if ((change != null) && (change.sequence == next)) {
+                    next++;
+                    return change;
+                }
+                if (((change != null) && (change.sequence > next)) || (sequence.get() - next >= maxBehind)) {
+                    drop();
+                    return null;
+                }
+                
+                var remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return null;
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                
+                // Looked again once the waiter is set so a change put in between is not missed.
+                waiter = Thread.currentThread();
+                if (retained.get(slotOf(next)) == change) {
+                    LockSupport.parkNanos(this, remaining);
+                }
+                waiter = null;
+            }
+            return null;
+        }
+        
+        /** @return  {@code true} if the subscriber fell too far behind (or the feed is closed) and should end. */
+        public boolean isDropped() {
+            return isDropped;
+        }
+        
+        @Override
+        public void close() {
+            subscriptions.remove(this);
+        }
+        
+        void drop() {
+            isDropped = true;
+            subscriptions.remove(this);
+            wakeUp();
+        }
+        
+        void wakeUp() {
+            var waiter = this.waiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+    
+    // The epoch tells the IDs of this run of the server from the ones of the previous runs.
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    
+    // The change of each sequence is at its slot until replaced by the one RETAINED_CHANGES later.
+    private final AtomicReferenceArray<Change>       retained      = new AtomicReferenceArray<>(RETAINED_CHANGES);
+    private final AtomicLong                         sequence      = new AtomicLong(0);
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    
+    /**
+     * Publish the change -- the changes to the same ID must be published in the order they are made.
+     *
+     * This takes no lock: the change gets its sequence and is put at its slot (then the waiting subscribers are woken up)
+     *   -- the subscribers read the changes in the order of the sequences (waiting for one still being put)
+     *   so they see the changes of an ID in order.
+     **/
+    public void publish(Type type, String id, DATA data) {
+        var change = new Change(epoch, sequence.incrementAndGet(), type, id, ((type == Type.DELETE) ? null : data));
+        retained.set(slotOf(change.sequence), change);
+        for (var subscription : subscriptions) {
+            subscription.wakeUp();
+        }
+    }
+    
+    /**
+     * Subscribe to the changes after the given event ID (see {@link Change#eventId()}) -- null for only the new changes.
+     *
+     * @return  the subscription or null if there are too many subscribers.
+     */
+    public synchronized Subscription subscribe(String lastEventId) {
+        if (subscriptions.size() >= MAX_SUBSCRIBERS)
+            return null;
+        
+        var subscription = subscriptionAfter(lastEventId);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+    
+    /** @return  the number of the subscribers. */
+    public int subscriberCount() {
+        return subscriptions.size();
+    }
+    
+    /** End all the subscriptions (e.g., when the server stops) -- the clients will resume when they reconnect. */
+    public void closeSubscriptions() {
+        for (var subscription : subscriptions) {
+            subscription.drop();
+        }
+    }
+    
+    private Subscription subscriptionAfter(String lastEventId) {
+        var current = sequence.get();
+        if (lastEventId == null)
+            return new Subscription(null, current + 1, 0);
+        
+        // The changes older than the retained ones may be replaced by the time they are read -- those are not resumed from.
+        var lastSequence = sequenceOf(lastEventId);
+        var oldest       = Math.max(current - RETAINED_CHANGES + SUBSCRIBER_QUEUE_SIZE, 1);
+        if ((lastSequence < oldest - 1) || (lastSequence > current)) {
+            // Unknown or too old -- resuming after the reset is the same as starting now.
+            return new Subscription(new Change(epoch, current, Type.RESET, null, null), current + 1, 0);
+        }
+        return new Subscription(null, lastSequence + 1, current - lastSequence);
+    }
+    
+    // RETAINED_CHANGES is a power of two.
+    private static int slotOf(long sequence) {
+        return (int)(sequence & (RETAINED_CHANGES - 1));
+    }
+    
+    // The sequence of the event ID of this run of the server -- -1 for any other ID.
+    private long sequenceOf(String eventId) {
+        var dashIndex = eventId.indexOf('-');
+        if ((dashIndex < 0) || !eventId.regionMatches(0, epoch, 0, dashIndex) || (dashIndex != epoch.length()))
+            return -1;
+        
+        try {
+            return Long.parseLong(eventId.substring(dashIndex + 1));
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+    }
+    
+}
@@ -0,0 +1,65 @@
+package javaelmexample.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The HTTP engines that the server can run on.
+ */
+public enum EngineMode {
+    
+    /** The JDK server (`com.sun.net.httpserver`) -- it has a single acceptor (its dispatcher thread). */
+    JDK {
+        @Override
+        HttpEngine createEngine(ServerSettings settings) {
+            if (settings.acceptors > 1)
+                throw new IllegalArgumentException("The JDK engine has only one acceptor -- use the NIO engine for more: " + settings.acceptors);
+            
+            return new HttpEngine() {
+                private HttpServer      httpServer;
+                private ExecutorService overloaded;
+                
+                @Override
+                public void start(InetSocketAddress address, int backlog, ExecutorService executor, HttpHandler handler) throws IOException {
+                    overloaded = ExecutorMode.newOverloadedExecutor();
+                    httpServer = HttpServer.create(address, backlog);
+                    httpServer.setExecutor(ExecutorMode.withOverloadedFallback(executor, overloaded));
+                    httpServer.createContext("/", handler);
+                    httpServer.start();
+                }
+                
+                @Override
+                public void stop(int delaySeconds) {
+                    httpServer.stop(delaySeconds);
+                    overloaded.shutdownNow();
+                }
+            };
+        }
+    },
+    
+    /**
+     * A server on the NIO selector -- the request headers are read into the direct buffers without a thread per connection,
+     *   then the request is handled (and the response written straight to the socket) by the executor.
+     * The static files are sent with `FileChannel.transferTo` when they are on the file system.
+     * It can have several acceptors on the same port (see {@link ServerSettings#acceptors}).
+     */
+    NIO {
+        @Override
+        HttpEngine createEngine(ServerSettings settings) {
+            return new NioHttpEngine(settings);
+        }
+    };
+    
+    /** Create the engine for this mode. */
+    abstract HttpEngine createEngine(ServerSettings settings);
+    
+    /** @return  the mode with the given name (case insensitive). */
+    public static EngineMode from(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+    
+}
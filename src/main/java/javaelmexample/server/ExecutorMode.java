@@ -0,0 +1,151 @@
+package javaelmexample.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ways the server can run the request handling.
+ */
+public enum ExecutorMode {
+    
+    /** A new virtual thread per request -- requires Java 21+ (falls back to {@link #CACHED} otherwise). */
+    VIRTUAL {
+        @Override
+        ExecutorService createExecutor(int maxThreads, int maxQueue) {
+            try {
+                var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService)factory.invoke(null);
+            } catch (ReflectiveOperationException exception) {
+                System.err.println("Virtual threads are not supported by this JVM, use the cached thread pool instead.");
+                return CACHED.createExecutor(maxThreads, maxQueue);
+            }
+        }
+    },
+    
+    /**
+     * A fixed number of threads with a bounded queue.
+     * When the queue is full, the request is rejected (see {@link Rejections}) and answered with `503 Service Unavailable`
+     *   -- by the NIO engine right away and by the JDK engine on a small separate executor (see {@link #withOverloadedFallback}).
+     */
+    BOUNDED {
+        @Override
+        ExecutorService createExecutor(int maxThreads, int maxQueue) {
+            var threads  = (maxThreads > 0) ? maxThreads : DEFAULT_MAX_THREADS;
+            var capacity = (maxQueue   > 0) ? maxQueue   : DEFAULT_MAX_QUEUE;
+            var queue    = new ArrayBlockingQueue<Runnable>(capacity);
+            return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, queue, new Rejections());
+        }
+    },
+    
+    /** An unbounded pool that creates thread as needed and reuse the idle ones. */
+    CACHED {
+        @Override
+        ExecutorService createExecutor(int maxThreads, int maxQueue) {
+            return Executors.newCachedThreadPool();
+        }
+    };
+    
+    /** The default number of threads for the {@link #BOUNDED} mode. */
+    public static final int DEFAULT_MAX_THREADS = Runtime.getRuntime().availableProcessors()*4;
+    
+    /** The default queue capacity for the {@link #BOUNDED} mode. */
+    public static final int DEFAULT_MAX_QUEUE = 1024;
+    
+    /** The number of threads answering the rejected requests for the JDK engine (see {@link #withOverloadedFallback}). */
+    public static final int OVERLOADED_THREADS = 2;
+    
+    /** The number of the rejected requests waiting to be answered -- the connections of the ones after that are dropped. */
+    public static final int OVERLOADED_QUEUE = 64;
+    
+    private static final ThreadLocal<Boolean> overloaded = ThreadLocal.withInitial(() -> false);
+    
+    /**
+     * Create the executor for this mode.
+     *
+     * @param maxThreads  the number of threads (for {@link #BOUNDED}) -- zero or less for the default.
+     * @param maxQueue    the queue capacity (for {@link #BOUNDED}) -- zero or less for the default.
+     **/
+    abstract ExecutorService createExecutor(int maxThreads, int maxQueue);
+    
+    /** @return  the mode with the given name (case insensitive). */
+    public static ExecutorMode from(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+    
+    /** @return  {@code true} if the current thread is handling a request that was rejected by the executor. */
+    static boolean isOverloaded() {
+        return overloaded.get();
+    }
+    
+    /**
+     * @return  a new executor for the fallback of {@link #withOverloadedFallback} -- to be shut down with the engine.
+     *          Its queue is bounded (so is the memory when overloaded) and it throws when full.
+     **/
+    static ExecutorService newOverloadedExecutor() {
+        var queue = new ArrayBlockingQueue<Runnable>(OVERLOADED_QUEUE);
+        return new ThreadPoolExecutor(OVERLOADED_THREADS, OVERLOADED_THREADS, 60L, TimeUnit.SECONDS, queue, runnable -> {
+            var thread = new Thread(runnable, "http-overloaded");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * The JDK engine reads the request in the task it gives to the executor so a rejected exchange cannot be answered
+     *   without running it (and its dispatcher closes the connection with no response if the executor throws).
+     * The tasks the executor rejects are then run on the fallback in overloaded mode (see {@link #isOverloaded()})
+     *   which makes the server respond with `503 Service Unavailable` without doing any actual work
+     *   -- and without holding the dispatcher thread.
+     * When the fallback is full too (e.g., its threads wait for slow clients), the rejection is thrown to the dispatcher
+     *   which drops the connection.
+     *
+     * @return  the executor for the JDK engine.
+     **/
+    static Executor withOverloadedFallback(ExecutorService executor, ExecutorService fallback) {
+        return task -> {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException exception) {
+                if (executor.isShutdown())
+                    throw exception;
+                
+                // Throws (to drop the connection) if the fallback is full.
+                fallback.execute(() -> runOverloaded(task));
+            }
+        };
+    }
+    
+    private static void runOverloaded(Runnable task) {
+        overloaded.set(true);
+        try {
+            task.run();
+        } finally {
+            overloaded.set(false);
+        }
+    }
+    
+    /** The rejection of the {@link #BOUNDED} executor -- it counts the rejected tasks and throws. */
+    static final class Rejections implements RejectedExecutionHandler {
+        
+        private final LongAdder count = new LongAdder();
+        
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            count.increment();
+            throw new RejectedExecutionException("The executor is overloaded.");
+        }
+        
+        /** @return  the number of the rejected tasks. */
+        long count() {
+            return count.sum();
+        }
+    }
+    
+}
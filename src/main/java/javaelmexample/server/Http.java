@@ -2,18 +2,49 @@ package javaelmexample.server;
 
 import static functionalj.list.FuncList.listOf;
 import static functionalj.map.FuncMap.newMap;
+import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
 import static java.util.Collections.unmodifiableMap;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 import com.sun.net.httpserver.HttpExchange;
 
+import functionalj.function.FuncUnit0;
+import functionalj.function.FuncUnit1;
 import functionalj.promise.Promise;
 import functionalj.result.Result;
 import functionalj.types.IData;
@@ -26,9 +57,37 @@ public class Http {
     
     private static final ThreadLocal<Gson> gson = ThreadLocal.withInitial(() -> new Gson());
     
+    private static final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "http-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // The event streams are open for long so they have their own threads rather than holding the ones of the requests.
+    private static final ExecutorService eventStreams = Executors.newCachedThreadPool(runnable -> {
+        var thread = new Thread(runnable, "http-event-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
     
     public static final int timeout = 30;
     
+    /** The content type of newline-delimited JSON -- one JSON value per line. */
+    public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+    
+    /** The content type of Server-Sent Events. */
+    public static final String EVENT_STREAM_CONTENT_TYPE = "text/event-stream";
+    
+    /** The milliseconds the client waits before reconnecting a closed event stream. */
+    public static final int EVENT_RETRY_MILLIS = 2000;
+    
+    /** The size of the buffer used when streaming the response -- each flush becomes a chunk. */
+    public static final int STREAM_BUFFER_SIZE = 16*1024;
+    
+    /** The methods known to the server (the rest are `OTHER`) -- in the order of {@link #methodIndexOf(String)}. */
+    public static final List<String> METHODS = List.of("GET", "POST", "PUT", "DELETE", "HEAD", "OTHER");
+    
     public static final Map<String, String> extContentTypes 
                     = unmodifiableMap(
                         newMap(String.class, String.class)
@@ -56,6 +115,7 @@ public class Http {
     static interface ResponseSpec {
         
         HttpExchange exchange();
+        Http         http();
         
         default void withError(int statusCode, Throwable throwable) throws IOException {
             responseError(statusCode, throwable.getMessage());
@@ -63,32 +123,200 @@ public class Http {
         
         default void responseError(int statusCode, String errorMessage) throws IOException {
             var error = new HttpError(errorMessage);
-            responseBytes(500, null, error.toBytes());
+            responseBytes(statusCode, null, error.toBytes());
         }
         
         default void responseBytes(int statusCode, String contentType, byte[] contentBody) throws IOException {
             var exchange = exchange();
             try {
-                addHeader("Cache-Control", "no-cache");
-                addHeader("Content-Type",  contentType);
+                if (!exchange.getResponseHeaders().containsKey("Cache-Control")) {
+                    addHeader("Cache-Control", "no-cache");
+                }
+                addHeader("Content-Type", contentType);
                 
                 exchange.sendResponseHeaders(statusCode, contentBody.length);
-                var inputStream = new ByteArrayInputStream(contentBody);
-                var responseBody = exchange.getResponseBody();
-                inputStream.transferTo(responseBody);
+                // Written at once -- copying through a stream would take a buffer for each response.
+                exchange.getResponseBody().write(contentBody);
+            } finally {
+                exchange.close();
+                Metrics.recordResponse(exchange, statusCode, contentBody.length);
+            }
+        }
+        
+        /**
+         * Response with the content of the file -- sent straight from the file if the engine can (see {@link HttpEngine.FileTransfer}).
+         * The bytes (the content of the file as cached) are sent instead if it cannot, there is no file or the file has changed.
+         */
+        default void responseFile(int statusCode, String contentType, Path file, byte[] contentBody) throws IOException {
+            var exchange = exchange();
+            if ((file == null) || !(exchange instanceof HttpEngine.FileTransfer) || !isSize(file, contentBody.length)) {
+                responseBytes(statusCode, contentType, contentBody);
+                return;
+            }
+            try {
+                if (!exchange.getResponseHeaders().containsKey("Cache-Control")) {
+                    addHeader("Cache-Control", "no-cache");
+                }
+                addHeader("Content-Type", contentType);
+                
+                ((HttpEngine.FileTransfer)exchange).transferFile(statusCode, file, contentBody.length);
+            } finally {
+                exchange.close();
+                Metrics.recordResponse(exchange, statusCode, contentBody.length);
+            }
+        }
+        
+        default void responseNotModified() throws IOException {
+            var exchange = exchange();
+            try {
+                exchange.sendResponseHeaders(304, -1);
             } finally {
                 exchange.close();
+                Metrics.recordResponse(exchange, 304, 0);
+            }
+        }
+        
+        /**
+         * Response with the content written directly to the response body using chunked transfer encoding (unless it is small).
+         * Once the writing started, an error can only be reported by aborting the response.
+         */
+        default void responseStream(int statusCode, String contentType, FuncUnit1<OutputStream> writer) throws IOException {
+            responseStream(statusCode, contentType, null, writer);
+        }
+        
+        /**
+         * Response with the content written directly to the response body -- compressed with the encoding if not null.
+         * A small content (see {@link ResponseCompression#MIN_SIZE}) is sent as is with its `Content-Length`
+         *   -- without the overhead of the chunked transfer encoding.
+         */
+        default void responseStream(int statusCode, String contentType, String encoding, FuncUnit1<OutputStream> writer) throws IOException {
+            var exchange = exchange();
+            var bytes    = 0L;
+            try {
+                if (!exchange.getResponseHeaders().containsKey("Cache-Control")) {
+                    addHeader("Cache-Control", "no-cache");
+                }
+                addHeader("Content-Type", contentType);
+                
+                // The body is only completed if the writing succeeds -- otherwise, the response is aborted.
+                var body = ResponseCompression.responseBody(exchange, statusCode, encoding);
+                try {
+                    writer.acceptUnsafe(body);
+                    body.close();
+                } finally {
+                    bytes = body.bytes();
+                    body.discard();
+                }
+            } catch (IOException | RuntimeException exception) {
+                throw exception;
+            } catch (Exception exception) {
+                throw new IOException(exception);
+            } finally {
+                exchange.close();
+                Metrics.recordResponse(exchange, statusCode, bytes);
+            }
+        }
+        
+        /**
+         * Response with the changes of the subscription as Server-Sent Events -- on its own thread (see {@link #responseEvents}).
+         * This returns right away so the request thread is not held for as long as the stream is open.
+         */
+        default void withEvents(ChangeFeed<?>.Subscription subscription, long heartbeatMillis) {
+            eventStreams.execute(() -> respondOrClose(exchange(), () -> responseEvents(subscription, heartbeatMillis)));
+        }
+        
+        /**
+         * Response with the changes of the subscription as Server-Sent Events until it is dropped or the client goes away.
+         * A comment is sent when there is no change for the heartbeat -- to keep the connection (and any proxy) open
+         *   and to find out the clients that are gone.
+         * The subscription is closed at the end -- a client that goes away (found on a write) just ends the stream.
+         */
+        default void responseEvents(ChangeFeed<?>.Subscription subscription, long heartbeatMillis) throws IOException {
+            var exchange = exchange();
+            try {
+                addHeader("Cache-Control",     "no-cache");
+                addHeader("Content-Type",      EVENT_STREAM_CONTENT_TYPE);
+                addHeader("X-Accel-Buffering", "no");
+                exchange.sendResponseHeaders(200, 0);
+                // The stream can be open for hours so only the time to start it is recorded -- its bytes are counted as sent.
+                var responseBytes = Metrics.responseBytesOf(exchange);
+                Metrics.recordResponse(exchange, 200, 0);
+                
+                var out   = exchange.getResponseBody();
+                var retry = ("retry: " + EVENT_RETRY_MILLIS + "\n\n").getBytes(StandardCharsets.UTF_8);
+                out.write(retry);
+                out.flush();
+                var bytes = (long)retry.length;
+                while (!subscription.isDropped()) {
+                    var change = subscription.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                    if ((change == null) && subscription.isDropped())
+                        break;
+                    
+                    if (change == null) {
+                        out.write(HEARTBEAT);
+                        bytes += HEARTBEAT.length;
+                    }
+                    // The changes already queued are sent together -- up to a buffer at a time.
+                    var size = 0;
+                    while (change != null) {
+                        var event = eventOf(change, http().codecs);
+                        out.write(event);
+                        size  += event.length;
+                        change = (size < STREAM_BUFFER_SIZE) ? subscription.poll(0, TimeUnit.MILLISECONDS) : null;
+                    }
+                    out.flush();
+                    if (responseBytes != null) {
+                        responseBytes.add(bytes + size);
+                    }
+                    bytes = 0;
+                }
+                out.close();
+            } catch (IOException exception) {
+                // The client went away (e.g., the tab was closed) -- the normal end of the stream.
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            } finally {
+                subscription.close();
+                // Quiet -- the exchange does not throw even if the connection is already broken.
+                exchange.close();
+                Metrics.recordResponse(exchange, 200, 0);
             }
         }
         
         default <D> void withResult(D result) throws IOException {
-            var json        = toJson(result);
             var contentType = extContentTypes.get(".json");
-            responseBytes(200, contentType, json.getBytes());
+            var encoding    = ResponseCompression.encodingOf(exchange());
+            addHeader("Vary", "Accept-Encoding");
+            if (result instanceof JsonBytes) {
+                // Already encoded (and maybe compressed) -- e.g., the cached list.
+                var json       = (JsonBytes)result;
+                var isEncoding = (encoding != null) && (json.bytes().length >= ResponseCompression.MIN_SIZE);
+                if (isEncoding) {
+                    addHeader("Content-Encoding", encoding);
+                }
+                responseBytes(200, contentType, isEncoding ? json.bytes(encoding) : json.bytes());
+            } else if (result instanceof List) {
+                // Lists can be large so they are streamed instead of being held in memory as a whole.
+                var list = (List<?>)result;
+                responseStream(200, contentType, encoding, outputStream -> writeJsonList(http().codecs, list, outputStream));
+            } else {
+                var bytes = toJson(http().codecs, result).getBytes();
+                if ((encoding != null) && (bytes.length >= ResponseCompression.MIN_SIZE)) {
+                    addHeader("Content-Encoding", encoding);
+                    bytes = ResponseCompression.compress(bytes, encoding);
+                }
+                responseBytes(200, contentType, bytes);
+            }
         }
         
         default void addHeader(String headerName, String ... contentValues) {
-            var values = listOf(contentValues).filterNonNull();
+            // A plain loop -- this is done a few times for every response.
+            var values = new ArrayList<String>(contentValues.length);
+            for (var value : contentValues) {
+                if (value != null) {
+                    values.add(value);
+                }
+            }
             if (!values.isEmpty()) {
                 var exchange = exchange();
                 exchange.getResponseHeaders().put(headerName, values);
@@ -96,23 +324,213 @@ public class Http {
         }
         
         default <D> void withPromise(String description, Promise<D> promise) throws IOException {
-            var result = (promise == null)
-                       ? Result.ofNull()
-                       : promise.getResult(timeout, TimeUnit.SECONDS);
+            withPromise(description, promise, timeout*1000L);
+        }
+        
+        /**
+         * Respond with the result of the promise once it completes -- without blocking the current thread.
+         * If the promise does not complete within the timeout, the response is `504 Gateway Timeout`.
+         */
+        default <D> void withPromise(String description, Promise<D> promise, long timeoutMillis) throws IOException {
+            if (promise == null) {
+                withPromiseResult(description, Result.ofNull());
+                return;
+            }
+            if (promise.isDone()) {
+                Metrics.recordPromiseWait(exchange(), 0);
+                withPromiseResult(description, promise.getCurrentResult());
+                return;
+            }
+            
+            var startNanos  = System.nanoTime();
+            var isResponded = new AtomicBoolean(false);
+            var deadline    = deadlines.schedule(() -> {
+                if (isResponded.compareAndSet(false, true)) {
+                    var errorMsg = listOf("Timeout", description).filterNonNull().join(": ");
+                    respondOrClose(exchange(), () -> responseError(504, errorMsg));
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            promise.onComplete(result -> {
+                if (isResponded.compareAndSet(false, true)) {
+                    deadline.cancel(false);
+                    Metrics.recordPromiseWait(exchange(), System.nanoTime() - startNanos);
+                    respondOrClose(exchange(), () -> withPromiseResult(description, result));
+                }
+            });
+        }
+        
+        default <D> void withPromiseResult(String description, Result<D> result) throws IOException {
             if (result.isPresent()) {
                 withResult(result.get());
             } else if (result.isNull()) {
                 var errorMsg = listOf("Not found", description).filterNonNull().join(": ");
                 responseError(404, errorMsg);
             } else {
-                // TODO - Handle this based on what the exception is.
-                result.orThrowRuntimeException();
+                var exception = result.getException();
+                withError(statusCodeOf(exception), exception);
             }
         }
     }
     
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+    
+    private static byte[] eventOf(ChangeFeed.Change change, Map<Class<?>, JsonCodec<?>> codecs) {
+        var event = "id: " + change.eventId() + "\nevent: " + change.type.eventName() + "\ndata: " + change.toJson(codecs) + "\n\n";
+        return event.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static boolean isSize(Path file, long size) {
+        try {
+            return Files.size(file) == size;
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+    
+    /** @return  the HTTP status code that best describes the exception. */
+    public static int statusCodeOf(Throwable exception) {
+        if (exception instanceof UnsupportedHttpMethodException)
+            return 405;
+        if (exception instanceof IllegalArgumentException)
+            return 400;
+        if (exception instanceof PreconditionFailedException)
+            return 412;
+        return 500;
+    }
+    
+    /** @return  the index of the method in {@link #METHODS} -- this does not allocate. */
+    public static int methodIndexOf(String method) {
+        switch (method) {
+            case "GET":    return 0;
+            case "POST":   return 1;
+            case "PUT":    return 2;
+            case "DELETE": return 3;
+            case "HEAD":   return 4;
+            default:       return 5;
+        }
+    }
+    
+    // The response is done on a thread that the server does not know about so no one else will close the exchange.
+    private static void respondOrClose(HttpExchange exchange, FuncUnit0 respond) {
+        try {
+            respond.runUnsafe();
+        } catch (Exception exception) {
+            exception.printStackTrace();
+            exchange.close();
+            Metrics.recordResponse(exchange, 0, 0);
+        }
+    }
+    
+    // The codecs by the exact class of the values they read and write -- see {@link RestService#dataCodec()}.
+    final Map<Class<?>, JsonCodec<?>> codecs;
+    
+    /** Create the help with no codec -- the data is converted through maps. */
+    public Http() {
+        this(Map.of());
+    }
+    
+    /**
+     * Create the help that uses the codecs (instead of the map-based conversion) for their data classes.
+     * Codecs are looked up by the exact class of the value.
+     **/
+    public Http(Map<Class<?>, JsonCodec<?>> codecs) {
+        this.codecs = Map.copyOf(codecs);
+    }
+    
     public Response responseOf(HttpExchange exchange) {
-        return new Response(exchange);
+        return new Response(exchange, this);
+    }
+    
+    /** @return  {@code true} if the request accepts the given content encoding (e.g. "gzip"). */
+    public static boolean acceptsEncoding(HttpExchange exchange, String encoding) {
+        return acceptsEncoding(exchange.getRequestHeaders().get("Accept-Encoding"), encoding);
+    }
+    
+    /**
+     * @return  {@code true} if the `Accept-Encoding` values accept the given content encoding
+     *            -- the encoding by name takes precedence over `*` wherever they are (e.g., `*, gzip;q=0` rejects gzip).
+     **/
+    static boolean acceptsEncoding(List<String> acceptEncodings, String encoding) {
+        if (acceptEncodings == null)
+            return false;
+        
+        Boolean byName     = null;
+        Boolean byWildcard = null;
+        for (var acceptEncoding : acceptEncodings) {
+            for (var each : acceptEncoding.split(",")) {
+                var parts      = each.split(";");
+                var name       = parts[0].trim();
+                var isAccepted = (parts.length <= 1) || !parts[1].trim().matches("^q\\s*=\\s*0(\\.0*)?$");
+                if (name.equalsIgnoreCase(encoding)) {
+                    byName = isAccepted;
+                } else if (name.equals("*")) {
+                    byWildcard = isAccepted;
+                }
+            }
+        }
+        if (byName != null)
+            return byName;
+        
+        return (byWildcard != null) && byWildcard;
+    }
+    
+    /**
+     * Check the conditional request headers (`If-None-Match` then `If-Modified-Since`) against the current state.
+     * 
+     * @return  {@code true} if the client copy is still valid and the response can be `304 Not Modified`.
+     */
+    public boolean isNotModified(HttpExchange exchange, String etag, long lastModified) {
+        var headers     = exchange.getRequestHeaders();
+        var ifNoneMatch = headers.getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (var each : ifNoneMatch.split(",")) {
+                var tag = each.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag))
+                    return true;
+            }
+            // `If-Modified-Since` must be ignored when `If-None-Match` is given.
+            return false;
+        }
+        
+        var ifModifiedSince = headers.getFirst("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                var since = ZonedDateTime.parse(ifModifiedSince, RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return lastModified <= since;
+            } catch (DateTimeParseException exception) {
+                return false;
+            }
+        }
+        return false;
+    }
+    
+    /** @return  the time formatted for HTTP headers such as `Last-Modified`. */
+    public static String httpDate(long epochMillis) {
+        return RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(epochMillis).atZone(ZoneOffset.UTC));
+    }
+    
+    /** @return  the query parameters of the request -- only the first value is kept for the repeated names. */
+    public Map<String, String> extractQuery(HttpExchange exchange) {
+        var query = exchange.getRequestURI().getRawQuery();
+        if ((query == null) || query.isEmpty())
+            return Map.of();
+        
+        var params = new LinkedHashMap<String, String>();
+        for (var each : query.split("&")) {
+            if (each.isEmpty())
+                continue;
+            
+            var equalIndex = each.indexOf('=');
+            var name       = (equalIndex == -1) ? each : each.substring(0, equalIndex);
+            var value      = (equalIndex == -1) ? ""   : each.substring(equalIndex + 1);
+            params.putIfAbsent(
+                    URLDecoder.decode(name,  StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
     }
     
     public byte[] extractBodyBytes(HttpExchange exchange) throws IOException {
@@ -127,12 +545,112 @@ public class Http {
     }
     
     public <T> T extractBody(HttpExchange exchange, Class<T> serviceData) throws IOException {
+        var codec = codecOf(serviceData);
+        if (codec != null) {
+            var reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8);
+            return readJson(codec, reader);
+        }
+        
         var content = extractBodyText(exchange);
         return fromJson(content, serviceData);
     }
     
+    /** @return  {@code true} if the body is newline-delimited JSON (one JSON value per line). */
+    public boolean isNdjsonBody(HttpExchange exchange) {
+        var contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        return (contentType != null) && contentType.toLowerCase().startsWith(NDJSON_CONTENT_TYPE);
+    }
+    
+    /**
+     * Read the items in the body one by one (without holding the whole body) and give each to the consumer --
+     *   either the item or the error why it cannot be read.
+     * The body is a JSON array or newline-delimited JSON (see {@link #isNdjsonBody(HttpExchange)}).
+     * An invalid line of newline-delimited JSON only fails that item but nothing after invalid JSON in an array can be read.
+     **/
+    public <T> void extractBodyItems(HttpExchange exchange, Class<T> itemClass, BiConsumer<T, IllegalArgumentException> consumer) throws IOException {
+        var reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8), STREAM_BUFFER_SIZE);
+        if (isNdjsonBody(exchange)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank())
+                    continue;
+                
+                T item;
+                try {
+                    item = readItem(codecs, gson.get().newJsonReader(new StringReader(line)), itemClass);
+                } catch (IllegalArgumentException exception) {
+                    consumer.accept(null, exception);
+                    continue;
+                } catch (MalformedJsonException | JsonParseException | IllegalStateException | EOFException exception) {
+                    consumer.accept(null, new IllegalArgumentException("Invalid JSON: " + exception.getMessage(), exception));
+                    continue;
+                }
+                consumer.accept(item, null);
+            }
+            return;
+        }
+        
+        var jsonReader = gson.get().newJsonReader(reader);
+        try {
+            jsonReader.beginArray();
+            while (jsonReader.hasNext()) {
+                T item;
+                try {
+                    item = readItem(codecs, jsonReader, itemClass);
+                } catch (IllegalArgumentException exception) {
+                    // The codec only rejects the item after reading all of it so the next item can still be read.
+                    consumer.accept(null, exception);
+                    continue;
+                }
+                consumer.accept(item, null);
+            }
+            jsonReader.endArray();
+        } catch (MalformedJsonException | JsonParseException | IllegalStateException | EOFException exception) {
+            consumer.accept(null, new IllegalArgumentException("Invalid JSON: " + exception.getMessage(), exception));
+        }
+    }
+    
+    /** @return  the codec for the data class or null if there is none. */
     @SuppressWarnings("unchecked")
-    private static <T> T fromJson(String json, Class<T> clss) {
+    public <D> JsonCodec<D> codecOf(Class<D> dataClass) {
+        return (JsonCodec<D>)codecs.get(dataClass);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T> T readItem(Map<Class<?>, JsonCodec<?>> codecs, JsonReader reader, Class<T> itemClass) throws IOException {
+        var codec = (JsonCodec<T>)codecs.get(itemClass);
+        if (codec != null)
+            return codec.read(reader);
+        
+        if (IData.class.isAssignableFrom(itemClass)) {
+            var map  = (Map<String, Object>)gson.get().fromJson(reader, Map.class);
+            var data = IData.fromMap(map, (Class<IData>)itemClass);
+            return (T)data.get();
+        }
+        return gson.get().fromJson(reader, itemClass);
+    }
+    
+    private static <T> T readJson(JsonCodec<T> codec, Reader reader) throws IOException {
+        try {
+            var jsonReader = gson.get().newJsonReader(reader);
+            return codec.read(jsonReader);
+        } catch (MalformedJsonException | IllegalStateException | EOFException exception) {
+            throw new IllegalArgumentException("Invalid JSON: " + exception.getMessage(), exception);
+        }
+    }
+    
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static boolean writeJson(Map<Class<?>, JsonCodec<?>> codecs, Object value, JsonWriter jsonWriter) throws IOException {
+        var codec = (JsonCodec)codecs.get(value.getClass());
+        if (codec == null)
+            return false;
+        
+        codec.write(jsonWriter, value);
+        return true;
+    }
+    
+    @SuppressWarnings("unchecked")
+    static <T> T fromJson(String json, Class<T> clss) {
         if (IData.class.isAssignableFrom(clss)) {
             var map = gson.get().fromJson(json, Map.class);
             var data = IData.fromMap(map, (Class<IData>)clss);
@@ -142,8 +660,58 @@ public class Http {
         }
     }
     
+    private static void writeJsonList(Map<Class<?>, JsonCodec<?>> codecs, List<?> list, OutputStream outputStream) throws IOException {
+        var gson       = Http.gson.get();
+        var writer     = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), STREAM_BUFFER_SIZE);
+        var jsonWriter = gson.newJsonWriter(writer);
+        jsonWriter.beginArray();
+        for (var each : list) {
+            if ((each != null) && writeJson(codecs, each, jsonWriter)) {
+                continue;
+            } else if (each instanceof IData) {
+                var map = ((IData)each).__toMap();
+                gson.toJson(map, Map.class, jsonWriter);
+            } else if (each == null) {
+                jsonWriter.nullValue();
+            } else {
+                gson.toJson(each, each.getClass(), jsonWriter);
+            }
+        }
+        jsonWriter.endArray();
+        jsonWriter.flush();
+    }
+    
+    /** @return  the list in JSON (UTF-8) -- as it would be streamed in the response with the codecs. */
+    static byte[] toJsonBytes(Map<Class<?>, JsonCodec<?>> codecs, List<?> list) {
+        var buffer = new ByteArrayOutputStream(STREAM_BUFFER_SIZE);
+        try {
+            writeJsonList(codecs, list, buffer);
+        } catch (IOException exception) {
+            // ByteArrayOutputStream does not throw IOException.
+            throw new UncheckedIOException(exception);
+        }
+        return buffer.toByteArray();
+    }
+    
+    static <T> String toJson(T object) {
+        return toJson(Map.of(), object);
+    }
+    
+    /** @return  the object in JSON -- with its codec if there is one. */
     @SuppressWarnings("unchecked")
-    private static <T> String toJson(T object) {
+    static <T> String toJson(Map<Class<?>, JsonCodec<?>> codecs, T object) {
+        if ((object != null) && codecs.containsKey(object.getClass())) {
+            var buffer = new StringWriter();
+            try {
+                var jsonWriter = gson.get().newJsonWriter(buffer);
+                writeJson(codecs, object, jsonWriter);
+                jsonWriter.flush();
+            } catch (IOException exception) {
+                // StringWriter does not throw IOException.
+                throw new UncheckedIOException(exception);
+            }
+            return buffer.toString();
+        }
         if (object instanceof IData) {
             var map = ((IData)object).__toMap();
             return gson.get().toJson(map);
@@ -0,0 +1,56 @@
+package javaelmexample.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * The transport of the server -- it accepts the connections and gives each request (as an exchange) to the handler.
+ *
+ * The exchanges of all the engines are {@link com.sun.net.httpserver.HttpExchange} so the handling is the same whatever the engine is.
+ * See {@link EngineMode} for the engines.
+ */
+interface HttpEngine {
+    
+    /**
+     * An exchange that can send a file without copying it through the Java heap (e.g., with `FileChannel.transferTo`).
+     */
+    static interface FileTransfer {
+        
+        /** Send the response headers and then the whole file as the body -- the headers must already be added. */
+        void transferFile(int statusCode, Path file, long length) throws IOException;
+    }
+    
+    /**
+     * An exchange that keeps the measurement of its request (see {@link Metrics}) with its connection
+     *   -- so measuring the request allocates nothing and the reuse of the connection is known (not guessed).
+     */
+    static interface Measured {
+        
+        /** @return  the measurement of the connection of the exchange -- reused by its requests one after another. */
+        Metrics.Measurement measurement();
+        
+        /** @return  {@code true} if the request is not the first one of its connection. */
+        boolean isReusedConnection();
+    }
+    
+    /**
+     * Start accepting the connections.
+     * 
+     * @param backlog   the number of the connections waiting to be accepted -- zero for the system default.
+     * @param executor  the executor to run the handler with.
+     */
+    void start(InetSocketAddress address, int backlog, ExecutorService executor, HttpHandler handler) throws IOException;
+    
+    /** Stop accepting the connections and close them -- waiting up to the delay for the exchanges in progress. */
+    void stop(int delaySeconds);
+    
+    /** @return  the number of the open connections -- -1 if the engine does not count them. */
+    default int openConnections() {
+        return -1;
+    }
+    
+}
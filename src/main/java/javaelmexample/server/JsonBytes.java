@@ -0,0 +1,44 @@
+package javaelmexample.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is a JSON response already encoded (e.g., to be cached) -- {@link Http.ResponseSpec#withResult(Object)} sends
+ *   its bytes as is.
+ *
+ * The compressed forms (see {@link ResponseCompression}) are made once (when first needed) and then kept with it.
+ **/
+final class JsonBytes {
+    
+    private final byte[] bytes;
+    
+    private final Map<String, byte[]> encodedBytes = new ConcurrentHashMap<>(2);
+    
+    JsonBytes(byte[] bytes) {
+        this.bytes = bytes;
+    }
+    
+    /** @return  the JSON in UTF-8 -- it must not be changed. */
+    byte[] bytes() {
+        return bytes;
+    }
+    
+    /** @return  the JSON compressed with the encoding -- it must not be changed. */
+    byte[] bytes(String encoding) throws IOException {
+        try {
+            return encodedBytes.computeIfAbsent(encoding, __ -> {
+                try {
+                    return ResponseCompression.compress(bytes, encoding);
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            });
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+    }
+    
+}
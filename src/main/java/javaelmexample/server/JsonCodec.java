@@ -0,0 +1,24 @@
+package javaelmexample.server;
+
+import java.io.IOException;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * This interface is a JSON codec for a specific data type that reads and writes the fields directly
+ *   (without going through an intermediate map or reflection).
+ **/
+public interface JsonCodec<DATA> {
+    
+    /** Write the value as JSON -- the value is never null. */
+    public void write(JsonWriter writer, DATA value) throws IOException;
+    
+    /**
+     * Read the value from the JSON.
+     * 
+     * @throws IllegalArgumentException  if the JSON is not a valid value.
+     **/
+    public DATA read(JsonReader reader) throws IOException;
+    
+}
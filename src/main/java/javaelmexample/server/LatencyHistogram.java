@@ -0,0 +1,116 @@
+package javaelmexample.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is a lock-free histogram of latencies (in nanoseconds) with a bounded relative error (like HdrHistogram).
+ *
+ * The values are counted in log-linear buckets -- each power of two is split into {@link #SUB_BUCKET_COUNT} buckets
+ *   so the value of a bucket is within 1/{@link #SUB_BUCKET_COUNT} (6.25%) of the recorded values.
+ * Recording only increments the counters so it does not allocate and can be done from any thread.
+ **/
+public final class LatencyHistogram {
+    
+    /** The number of linear buckets for each power of two. */
+    public static final int SUB_BUCKET_COUNT = 16;
+    
+    /** The largest value that can be recorded accurately (about 73 minutes) -- the larger values are counted as this. */
+    public static final long MAX_VALUE = (1L << 42) - 1;
+    
+    private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKET_COUNT);
+    private static final int BUCKET_COUNT    = indexOf(MAX_VALUE) + 1;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong      count  = new AtomicLong();
+    private final AtomicLong      sum    = new AtomicLong();
+    private final AtomicLong      max    = new AtomicLong();
+    
+    /** Record the value (in nanoseconds) -- negative values are counted as zero. */
+    public void record(long nanos) {
+        var value = Math.min(Math.max(nanos, 0L), MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+    
+    /** @return  the number of the recorded values. */
+    public long count() {
+        return count.get();
+    }
+    
+    /** @return  the sum of the recorded values in nanoseconds. */
+    public long sum() {
+        return sum.get();
+    }
+    
+    /** @return  the largest recorded value in nanoseconds. */
+    public long max() {
+        return max.get();
+    }
+    
+    /**
+     * @return  the number of the recorded values that are at most the given value (as precise as the buckets are)
+     *            -- only the buckets all within the value are counted so it is never more than the actual number.
+     **/
+    public long countAtOrBelow(long nanos) {
+        var total = 0L;
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            if (lowestValueOf(index + 1) - 1 > nanos)
+                break;
+            
+            total += counts.get(index);
+        }
+        return total;
+    }
+    
+    /** @return  the value (in nanoseconds) at the percentile (0 to 100) -- the highest value of its bucket. */
+    public long valueAtPercentile(double percentile) {
+        var total = count();
+        if (total == 0)
+            return 0;
+        
+        var target = Math.max(1L, (long)Math.ceil(total*Math.min(percentile, 100.0)/100.0));
+        var seen   = 0L;
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            seen += counts.get(index);
+            if (seen >= target)
+                return Math.min(lowestValueOf(index + 1) - 1, max());
+        }
+        return max();
+    }
+    
+    /** Add all the recorded values of the other histogram to this one. */
+    public void add(LatencyHistogram other) {
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            var bucketCount = other.counts.get(index);
+            if (bucketCount != 0) {
+                counts.addAndGet(index, bucketCount);
+            }
+        }
+        count.addAndGet(other.count());
+        sum.addAndGet(other.sum());
+        max.accumulateAndGet(other.max(), Math::max);
+    }
+    
+    // The values below SUB_BUCKET_COUNT have their own buckets and then each power of two has SUB_BUCKET_COUNT buckets.
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int)value;
+        
+        var exponent  = 63 - Long.numberOfLeadingZeros(value);
+        var subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1)*SUB_BUCKET_COUNT + subBucket;
+    }
+    
+    private static long lowestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+        
+        var exponent  = index/SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        var subBucket = index%SUB_BUCKET_COUNT;
+        return ((long)(SUB_BUCKET_COUNT + subBucket)) << (exponent - SUB_BUCKET_BITS);
+    }
+    
+}
@@ -0,0 +1,52 @@
+package javaelmexample.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This stream fails the reading once more than the given number of bytes are read -- to limit the request bodies.
+ */
+final class LimitedInputStream extends FilterInputStream {
+    
+    private final long maxBytes;
+    
+    private long readBytes = 0;
+    
+    LimitedInputStream(InputStream inputStream, long maxBytes) {
+        super(inputStream);
+        this.maxBytes = maxBytes;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        var b = super.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+    
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        var count = super.read(bytes, offset, length);
+        if (count > 0) {
+            count(count);
+        }
+        return count;
+    }
+    
+    @Override
+    public long skip(long length) throws IOException {
+        var skipped = super.skip(length);
+        count(skipped);
+        return skipped;
+    }
+    
+    private void count(long bytes) throws IOException {
+        readBytes += bytes;
+        if (readBytes > maxBytes)
+            throw new IOException("Payload too large: the limit is " + maxBytes + " bytes.");
+    }
+    
+}
@@ -0,0 +1,423 @@
+package javaelmexample.server;
+
+import static java.lang.String.format;
+
+import static nullablej.nullable.Nullable.nullable;
+
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * This class collects the metrics of the server and exposes them in the Prometheus text format.
+ *
+ * The requests are grouped by route (the static files, each API service, ...), method and status.
+ * The route of a request is resolved and its measurement recorded without allocating.
+ * The measurement of the request (to know when it started) is kept by the engine
+ *   -- reused by the requests of a connection one after another (see {@link HttpEngine.Measured}).
+ * For the JDK engine, the measurements are pooled and found by the identity of the exchange in a fixed table
+ *   -- the attributes of its exchanges are shared by all the exchanges of their context so they cannot hold it.
+ *
+ * The connections are counted by the engine when it tracks them (the NIO engine).
+ * The JDK server does not tell when a connection opens or closes so, with it, a connection is known by the remote address
+ *   of its requests -- a request from an address seen within the idle timeout is on a reused connection.
+ * The addresses are kept by their hashes in a fixed table so that count is approximate.
+ **/
+public class Metrics {
+    
+    /** The content type of the Prometheus text format. */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    
+    /** The (upper) bounds in seconds of the histogram buckets exposed to Prometheus. */
+    public static final double[] BUCKET_BOUNDS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+    
+    private static final int METHOD_COUNT = Http.METHODS.size();
+    private static final int MAX_STATUS   = 600;
+    
+    // The slots (a power of two) of the fixed tables -- a key is only in one of the few slots after its hash.
+    private static final int MEASURING_SLOTS  = 4096;
+    private static final int CONNECTION_SLOTS = 4096;
+    private static final int MAX_PROBES       = 16;
+    
+    private static final int MAX_POOLED_MEASUREMENTS = 256;
+    
+    private static final BlockingQueue<Measurement> measurements = new ArrayBlockingQueue<>(MAX_POOLED_MEASUREMENTS);
+    
+    // The measurements of the JDK exchanges being measured -- a request that finds no free slot is not measured.
+    private static final AtomicReferenceArray<Measurement> measuring = new AtomicReferenceArray<>(MEASURING_SLOTS);
+    
+    /**
+     * The metrics of the requests of a route.
+     */
+    static final class Route {
+        
+        final String name;
+        final String prefix;
+        
+        // By the method index and the status code -- created when first used.
+        final AtomicReferenceArray<LatencyHistogram> durations     = new AtomicReferenceArray<>(METHOD_COUNT*MAX_STATUS);
+        final LatencyHistogram                       promiseWaits  = new LatencyHistogram();
+        final LongAdder                              requestBytes  = new LongAdder();
+        final LongAdder                              responseBytes = new LongAdder();
+        
+        Route(String name, String prefix) {
+            this.name   = name;
+            this.prefix = prefix;
+        }
+        
+        boolean matches(String path) {
+            return path.startsWith(prefix) && ((path.length() == prefix.length()) || (path.charAt(prefix.length()) == '/'));
+        }
+        
+        LatencyHistogram durationOf(int method, int status) {
+            var index     = method*MAX_STATUS + status;
+            var histogram = durations.get(index);
+            if (histogram == null) {
+                durations.compareAndSet(index, null, new LatencyHistogram());
+                histogram = durations.get(index);
+            }
+            return histogram;
+        }
+    }
+    
+    /**
+     * The measurement of a request -- only one thread responds to a request so there is no need to synchronize.
+     * It can be reused for another request once the response of the one before is done.
+     **/
+    static final class Measurement {
+        
+        // The exchange measured -- the calls for any other exchange (e.g., late ones for the one before) are ignored.
+        private volatile HttpExchange exchange;
+        
+        private Metrics metrics;
+        private Route   route;
+        private int     method;
+        private long    startNanos;
+        private boolean isDone;
+        
+        // The slot in the measuring table of a pooled one (for the JDK engine) -- -1 if it is kept by the engine.
+        private int slot = -1;
+        
+        private void start(Metrics metrics, HttpExchange exchange, Route route, int method, long startNanos) {
+            this.metrics    = metrics;
+            this.route      = route;
+            this.method     = method;
+            this.startNanos = startNanos;
+            this.isDone     = false;
+            this.exchange   = exchange;
+        }
+        
+        private void done(int status, long bytes) {
+            if (isDone)
+                return;
+            
+            isDone = true;
+            metrics.inFlight.decrementAndGet();
+            if ((status > 0) && (status < MAX_STATUS)) {
+                route.durationOf(method, status).record(System.nanoTime() - startNanos);
+            }
+            route.responseBytes.add(bytes);
+            
+            if (slot >= 0) {
+                exchange = null;
+                measuring.set(slot, null);
+                slot = -1;
+                measurements.offer(this);
+            }
+        }
+    }
+    
+    private final List<Route>     apiRoutes = new ArrayList<>();
+    private final Route           metricsRoute;
+    private final Route           otherApiRoute;
+    private final Route           staticRoute;
+    private final AtomicLong      inFlight  = new AtomicLong();
+    private final ExecutorService executor;
+    
+    // The engine counting its connections -- null if it does not (the JDK engine).
+    private volatile HttpEngine engine = null;
+    
+    // The connections (for the JDK engine) -- the key (the hash of the remote address) and the time last seen of each slot.
+    private final AtomicLongArray connections       = new AtomicLongArray(2*CONNECTION_SLOTS);
+    private final LongAdder       connectionsOpened = new LongAdder();
+    private final LongAdder       connectionReuses  = new LongAdder();
+    private final long            idleTimeoutNanos;
+    
+    /**
+     * Create the metrics for the server.
+     *
+     * @param serviceNames  the names of the API services -- each becomes a route.
+     * @param executor      the executor handling the requests -- its queue is reported if it is a {@link ThreadPoolExecutor}.
+     */
+    public Metrics(Collection<String> serviceNames, ExecutorService executor) {
+        this(serviceNames, executor, TimeUnit.SECONDS.toMillis(Server.DEFAULT_IDLE_TIMEOUT_SECONDS));
+    }
+    
+    /**
+     * Create the metrics for the server.
+     *
+     * @param idleTimeoutMillis  how long the server keeps an idle connection -- to tell the reused connections from the new ones.
+     */
+    public Metrics(Collection<String> serviceNames, ExecutorService executor, long idleTimeoutMillis) {
+        for (var serviceName : serviceNames) {
+            apiRoutes.add(new Route("api/" + serviceName, "/api/" + serviceName));
+        }
+        this.metricsRoute     = new Route("api/_metrics", "/api/_metrics");
+        this.otherApiRoute    = new Route("api/other",    "/api");
+        this.staticRoute      = new Route("static",       "/");
+        this.executor         = executor;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+    
+    /** Count the connections with the engine (if it counts them) rather than by the remote addresses of the requests. */
+    void countConnectionsWith(HttpEngine engine) {
+        this.engine = (engine.openConnections() >= 0) ? engine : null;
+    }
+    
+    /** Start measuring the request -- the measurement ends when the response is done (see {@link Http.ResponseSpec}). */
+    public void start(HttpExchange exchange) {
+        var route  = routeOf(exchange.getRequestURI().getPath());
+        var method = Http.methodIndexOf(exchange.getRequestMethod());
+        var length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null) {
+            try {
+                route.requestBytes.add(Long.parseLong(length));
+            } catch (NumberFormatException exception) {
+                // The server would reject the request anyway.
+            }
+        }
+        inFlight.incrementAndGet();
+        
+        var nowNanos = System.nanoTime();
+        if (exchange instanceof HttpEngine.Measured) {
+            var measured = (HttpEngine.Measured)exchange;
+            measured.measurement().start(this, exchange, route, method, nowNanos);
+            if (measured.isReusedConnection()) {
+                connectionReuses.increment();
+            } else {
+                connectionsOpened.increment();
+            }
+        } else {
+            var measurement = nullable(measurements.poll()).orElseGet(Measurement::new);
+            measurement.start(this, exchange, route, method, nowNanos);
+            if (!place(measurement, exchange)) {
+                inFlight.decrementAndGet();
+                measurements.offer(measurement);
+            }
+            countConnection(exchange.getRemoteAddress(), nowNanos);
+        }
+    }
+    
+    // Put the measurement in a free slot after the hash of the exchange -- false if there is none.
+    private static boolean place(Measurement measurement, HttpExchange exchange) {
+        var hash = System.identityHashCode(exchange);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            var slot = (hash + i) & (MEASURING_SLOTS - 1);
+            if (measuring.compareAndSet(slot, null, measurement)) {
+                measurement.slot = slot;
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static Measurement measurementOf(HttpExchange exchange) {
+        if (exchange instanceof HttpEngine.Measured) {
+            var measurement = ((HttpEngine.Measured)exchange).measurement();
+            return (measurement.exchange == exchange) ? measurement : null;
+        }
+        
+        var hash = System.identityHashCode(exchange);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            var measurement = measuring.get((hash + i) & (MEASURING_SLOTS - 1));
+            if ((measurement != null) && (measurement.exchange == exchange))
+                return measurement;
+        }
+        return null;
+    }
+    
+    private void countConnection(InetSocketAddress remoteAddress, long nowNanos) {
+        if ((remoteAddress == null) || (remoteAddress.getAddress() == null))
+            return;
+        
+        // Never zero (a free slot).
+        var key  = (((long)remoteAddress.getAddress().hashCode() << 16) | remoteAddress.getPort()) | Long.MIN_VALUE;
+        var hash = Long.hashCode(key * 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            var index = 2*((hash + i) & (CONNECTION_SLOTS - 1));
+            if (connections.get(index) == key) {
+                var lastSeen = connections.getAndSet(index + 1, nowNanos);
+                if (nowNanos - lastSeen <= idleTimeoutNanos) {
+                    connectionReuses.increment();
+                } else {
+                    connectionsOpened.increment();
+                }
+                return;
+            }
+        }
+        
+        // A new one takes a free (or idle) slot -- it is just not tracked if there is none.
+        connectionsOpened.increment();
+        for (int i = 0; i < MAX_PROBES; i++) {
+            var index   = 2*((hash + i) & (CONNECTION_SLOTS - 1));
+            var slotKey = connections.get(index);
+            var isFree  = (slotKey == 0) || (nowNanos - connections.get(index + 1) > idleTimeoutNanos);
+            if (isFree && connections.compareAndSet(index, slotKey, key)) {
+                connections.set(index + 1, nowNanos);
+                return;
+            }
+        }
+    }
+    
+    /** Record that the response of the request is done -- the status is zero if the exchange is closed without a response. */
+    public static void recordResponse(HttpExchange exchange, int status, long bytes) {
+        var measurement = measurementOf(exchange);
+        if (measurement != null) {
+            measurement.done(status, bytes);
+        }
+    }
+    
+    /** Record the time that the request waited for the promise of its result. */
+    public static void recordPromiseWait(HttpExchange exchange, long nanos) {
+        var measurement = measurementOf(exchange);
+        if (measurement != null) {
+            measurement.route.promiseWaits.record(nanos);
+        }
+    }
+    
+    /**
+     * @return  the counter of the response bytes of the route of the request -- for the bytes sent after the response is
+     *            recorded (e.g., an event stream); null if the request is not measured.
+     **/
+    static LongAdder responseBytesOf(HttpExchange exchange) {
+        var measurement = measurementOf(exchange);
+        return (measurement != null) ? measurement.route.responseBytes : null;
+    }
+    
+    /** @return  the number of the connections that are open -- or, for the JDK engine, were used within the idle timeout. */
+    public int openConnections() {
+        var engine = this.engine;
+        if (engine != null)
+            return engine.openConnections();
+        
+        var nowNanos = System.nanoTime();
+        var count    = 0;
+        for (int index = 0; index < connections.length(); index += 2) {
+            if ((connections.get(index) != 0) && (nowNanos - connections.get(index + 1) <= idleTimeoutNanos)) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /** @return  the number of requests being handled. */
+    public long inFlight() {
+        return inFlight.get();
+    }
+    
+    /** @return  all the metrics in the Prometheus text format. */
+    public String toPrometheus() {
+        var routes = new ArrayList<Route>(apiRoutes);
+        routes.add(metricsRoute);
+        routes.add(otherApiRoute);
+        routes.add(staticRoute);
+        
+        var text = new StringBuilder();
+        header(text, "http_requests_in_flight", "gauge", "The number of requests being handled.");
+        text.append("http_requests_in_flight ").append(inFlight.get()).append('\n');
+        
+        header(text, "http_connections_open", "gauge", "The number of the open connections (for the JDK engine, the ones used within the idle timeout).");
+        text.append("http_connections_open ").append(openConnections()).append('\n');
+        header(text, "http_connections_opened_total", "counter", "The number of the new connections.");
+        text.append("http_connections_opened_total ").append(connectionsOpened.sum()).append('\n');
+        header(text, "http_connection_reuses_total", "counter", "The number of the requests on a kept-alive connection.");
+        text.append("http_connection_reuses_total ").append(connectionReuses.sum()).append('\n');
+        
+        header(text, "http_request_duration_seconds", "histogram", "The time from receiving the request to completing the response.");
+        for (var route : routes) {
+            for (int method = 0; method < METHOD_COUNT; method++) {
+                for (int status = 0; status < MAX_STATUS; status++) {
+                    var histogram = route.durations.get(method*MAX_STATUS + status);
+                    if (histogram != null) {
+                        var labels = format("route=\"%s\",method=\"%s\",status=\"%d\"", route.name, Http.METHODS.get(method), status);
+                        histogram(text, "http_request_duration_seconds", labels, histogram);
+                    }
+                }
+            }
+        }
+        
+        header(text, "http_promise_wait_seconds", "histogram", "The time the API requests waited for the promises of their results.");
+        for (var route : routes) {
+            if (route.promiseWaits.count() != 0) {
+                histogram(text, "http_promise_wait_seconds", format("route=\"%s\"", route.name), route.promiseWaits);
+            }
+        }
+        
+        header(text, "http_request_bytes_total", "counter", "The number of bytes of the request bodies (as declared by Content-Length).");
+        for (var route : routes) {
+            text.append(format("http_request_bytes_total{route=\"%s\"} %d\n", route.name, route.requestBytes.sum()));
+        }
+        header(text, "http_response_bytes_total", "counter", "The number of bytes of the response bodies.");
+        for (var route : routes) {
+            text.append(format("http_response_bytes_total{route=\"%s\"} %d\n", route.name, route.responseBytes.sum()));
+        }
+        
+        if (executor instanceof ThreadPoolExecutor) {
+            var pool = (ThreadPoolExecutor)executor;
+            header(text, "executor_queue_depth", "gauge", "The number of requests waiting for a thread.");
+            text.append("executor_queue_depth ").append(pool.getQueue().size()).append('\n');
+            header(text, "executor_active_threads", "gauge", "The number of threads handling requests.");
+            text.append("executor_active_threads ").append(pool.getActiveCount()).append('\n');
+            header(text, "executor_pool_size", "gauge", "The number of threads in the pool.");
+            text.append("executor_pool_size ").append(pool.getPoolSize()).append('\n');
+            if (pool.getRejectedExecutionHandler() instanceof ExecutorMode.Rejections) {
+                var rejections = (ExecutorMode.Rejections)pool.getRejectedExecutionHandler();
+                header(text, "executor_rejected_total", "counter", "The number of requests rejected (answered with 503) as the queue was full.");
+                text.append("executor_rejected_total ").append(rejections.count()).append('\n');
+            }
+        }
+        return text.toString();
+    }
+    
+    private Route routeOf(String path) {
+        if (metricsRoute.matches(path))
+            return metricsRoute;
+        
+        for (int i = 0; i < apiRoutes.size(); i++) {
+            var route = apiRoutes.get(i);
+            if (route.matches(path))
+                return route;
+        }
+        return otherApiRoute.matches(path) ? otherApiRoute : staticRoute;
+    }
+    
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+    
+    private static void histogram(StringBuilder text, String name, String labels, LatencyHistogram histogram) {
+        for (var bound : BUCKET_BOUNDS) {
+            var count = histogram.countAtOrBelow((long)(bound*1_000_000_000L));
+            text.append(format(Locale.ROOT, "%s_bucket{%s,le=\"%s\"} %d\n", name, labels, BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString(), count));
+        }
+        text.append(format(Locale.ROOT, "%s_bucket{%s,le=\"+Inf\"} %d\n", name, labels, histogram.count()));
+        text.append(format(Locale.ROOT, "%s_sum{%s} %.9f\n",            name, labels, histogram.sum()/1e9));
+        text.append(format(Locale.ROOT, "%s_count{%s} %d\n",            name, labels, histogram.count()));
+    }
+    
+}
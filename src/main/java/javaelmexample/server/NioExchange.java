@@ -0,0 +1,667 @@
+package javaelmexample.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * An exchange of {@link NioHttpEngine} -- the body is read from and the response is written to the connection directly.
+ *
+ * The response headers are held until the first body bytes (or the end) so they go out in the same write.
+ * The body is staged in the direct buffer of the connection -- a write larger than the buffer is written as is.
+ **/
+final class NioExchange extends HttpExchange implements HttpEngine.FileTransfer, HttpEngine.Measured {
+    
+    private static final byte[] CRLF         = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK   = { '0', '\r', '\n', '\r', '\n' };
+    private static final long   MAX_DRAINING = 64*1024;
+    
+    // The room kept before a staged chunk for its size line (up to 8 hex digits and CRLF) and after it for its end.
+    private static final int SIZE_LINE_ROOM  = 10;
+    private static final int CHUNK_TAIL_ROOM = CRLF.length + LAST_CHUNK.length;
+    
+    private final NioHttpEngine.Connection connection;
+    private final String                   method;
+    private final URI                      uri;
+    private final String                   protocol;
+    private final Headers                  requestHeaders;
+    private final Headers                  responseHeaders = new Headers();
+    private final boolean                  isKeepAlive;
+    private final boolean                  isReusedConnection;
+    
+    private final InputStream  rawRequestBody;
+    private final ResponseBody rawResponseBody = new ResponseBody();
+    
+    private InputStream  requestBody;
+    private OutputStream responseBody = rawResponseBody;
+    private int          responseCode = -1;
+    private boolean      isClosed     = false;
+    
+    // Created when the first attribute is set.
+    private Map<String, Object> attributes = null;
+    
+    private NioExchange(NioHttpEngine.Connection connection, String method, URI uri, String protocol, Headers requestHeaders) throws IOException {
+        this.connection         = connection;
+        this.method             = method;
+        this.uri                = uri;
+        this.protocol           = protocol;
+        this.requestHeaders     = requestHeaders;
+        this.isKeepAlive        = protocol.equals("HTTP/1.1") && !"close".equalsIgnoreCase(requestHeaders.getFirst("Connection"));
+        this.isReusedConnection = (++connection.requestCount > 1);
+        this.rawRequestBody     = requestBodyOf(requestHeaders);
+        this.requestBody        = rawRequestBody;
+    }
+    
+    /**
+     * Parse the request headers in the input buffer of the connection -- they are then removed from the buffer.
+     *
+     * @return  the exchange or null if the headers are not all in yet.
+     * @throws IOException  if the request is malformed -- the message is the status to respond with.
+     */
+    static NioExchange parse(NioHttpEngine.Connection connection, int maxHeaders) throws IOException {
+        var in  = connection.in;
+        var end = headerEnd(in);
+        if (end < 0)
+            return null;
+        
+        var bytes = new byte[end];
+        in.flip();
+        in.get(bytes);
+        in.compact();
+        
+        var lines = new String(bytes, StandardCharsets.ISO_8859_1).split("\r\n");
+        var parts = lines[0].split(" ");
+        if ((parts.length != 3) || !parts[2].startsWith("HTTP/1."))
+            throw new IOException("400 Bad Request");
+        
+        if ((lines.length - 1) > maxHeaders)
+            throw new IOException("431 Request Header Fields Too Large");
+        
+        var headers = new Headers();
+        for (int i = 1; i < lines.length; i++) {
+            var line  = lines[i];
+            var colon = line.indexOf(':');
+            if (colon <= 0)
+                throw new IOException("400 Bad Request");
+            
+            headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+        }
+        try {
+            return new NioExchange(connection, parts[0], URI.create(parts[1]), parts[2], headers);
+        } catch (IllegalArgumentException exception) {
+            throw new IOException("400 Bad Request");
+        }
+    }
+    
+    // The index just after the empty line that ends the headers -- or -1 if it is not in the buffer yet.
+    private static int headerEnd(ByteBuffer in) {
+        for (int i = 3; i < in.position(); i++) {
+            if ((in.get(i) == '\n') && (in.get(i - 1) == '\r') && (in.get(i - 2) == '\n') && (in.get(i - 3) == '\r'))
+                return i + 1;
+        }
+        return -1;
+    }
+    
+    // The body must be framed exactly one way -- anything ambiguous is refused (and the connection closed) rather than guessed
+    //   as the rest of a misread body would be read as the next request (request smuggling).
+    private InputStream requestBodyOf(Headers headers) throws IOException {
+        var transferEncodings = headers.get("Transfer-Encoding");
+        var contentLengths    = headers.get("Content-Length");
+        if (transferEncodings != null) {
+            if ((contentLengths != null) || !protocol.equals("HTTP/1.1"))
+                throw new IOException("400 Bad Request");
+            // Only the chunked encoding alone is supported (e.g., not "gzip, chunked").
+            if ((transferEncodings.size() != 1) || !transferEncodings.get(0).trim().equalsIgnoreCase("chunked"))
+                throw new IOException("501 Not Implemented");
+            
+            return new ChunkedBody();
+        }
+        if (contentLengths == null)
+            return new FixedBody(0);
+        
+        // The same length repeated (as separate headers or a list) is fine -- different ones are not.
+        var length = -1L;
+        for (var contentLength : contentLengths) {
+            for (var value : contentLength.split(",", -1)) {
+                var valueLength = parseLength(value.trim());
+                if ((length != -1) && (valueLength != length))
+                    throw new IOException("400 Bad Request");
+                
+                length = valueLength;
+            }
+        }
+        return new FixedBody(length);
+    }
+    
+    // Only the digits -- no sign.
+    private static long parseLength(String value) throws IOException {
+        if (value.isEmpty() || !value.chars().allMatch(ch -> (ch >= '0') && (ch <= '9')))
+            throw new IOException("400 Bad Request");
+        
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException exception) {
+            throw new IOException("400 Bad Request");
+        }
+    }
+    
+    boolean isExpectingContinue() {
+        return "100-continue".equalsIgnoreCase(requestHeaders.getFirst("Expect"));
+    }
+    
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+    
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+    
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+    
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+    
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+    
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+    
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+    
+    @Override
+    public void sendResponseHeaders(int responseCode, long responseLength) throws IOException {
+        if (this.responseCode != -1)
+            throw new IOException("The headers are already sent.");
+        
+        this.responseCode = responseCode;
+        connection.responseStart = System.nanoTime();
+        
+        var hasNoBody = (responseLength < 0) || method.equals("HEAD") || (responseCode == 204) || (responseCode == 304) || (responseCode < 200);
+        var isStreamed = !hasNoBody && (responseLength == 0);
+        var isChunked  = isStreamed && protocol.equals("HTTP/1.1");
+        // HTTP/1.0 has no chunked encoding -- a streamed body is sent as it is and ended by closing the connection.
+        var isUnframed = isStreamed && !isChunked;
+        if ((responseCode != 204) && (responseCode != 304) && (responseCode >= 200)) {
+            if (isChunked) {
+                responseHeaders.set("Transfer-Encoding", "chunked");
+            } else if (!isUnframed) {
+                responseHeaders.set("Content-Length", String.valueOf(Math.max(responseLength, 0)));
+            }
+        }
+        responseHeaders.set("Date", Http.httpDate(System.currentTimeMillis()));
+        if (!isKeepAlive) {
+            responseHeaders.set("Connection", "close");
+        }
+        
+        var head = new StringBuilder(256);
+        head.append(protocol.equals("HTTP/1.0") ? "HTTP/1.0 " : "HTTP/1.1 ").append(responseCode).append(' ').append(reasonOf(responseCode)).append("\r\n");
+        for (var header : responseHeaders.entrySet()) {
+            for (var value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        head.append("\r\n");
+        
+        var out = connection.out();
+        out.clear();
+        var headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        if (headBytes.length > out.capacity()) {
+            connection.write(ByteBuffer.wrap(headBytes));
+        } else {
+            out.put(headBytes);
+        }
+        
+        var bodyLength = hasNoBody ? 0 : isUnframed ? Long.MAX_VALUE : responseLength;
+        rawResponseBody.start(bodyLength, isChunked, method.equals("HEAD"));
+    }
+    
+    @Override
+    public void transferFile(int statusCode, Path file, long length) throws IOException {
+        sendResponseHeaders(statusCode, length);
+        rawResponseBody.flushOut();
+        if (method.equals("HEAD"))
+            return;
+        
+        try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var position = 0L;
+            while (position < length) {
+                var sent = connection.transfer(fileChannel, position, length - position);
+                if (sent <= 0)
+                    throw new IOException("The file ended early: " + file);
+                
+                position += sent;
+            }
+        }
+        rawResponseBody.written = length;
+    }
+    
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.remoteAddress;
+    }
+    
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+    
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.localAddress;
+    }
+    
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+    
+    @Override
+    public Object getAttribute(String name) {
+        return (attributes == null) ? null : attributes.get(name);
+    }
+    
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (attributes == null) {
+            attributes = new HashMap<>();
+        }
+        attributes.put(name, value);
+    }
+    
+    @Override
+    public Metrics.Measurement measurement() {
+        if (connection.measurement == null) {
+            connection.measurement = new Metrics.Measurement();
+        }
+        return connection.measurement;
+    }
+    
+    @Override
+    public boolean isReusedConnection() {
+        return isReusedConnection;
+    }
+    
+    @Override
+    public void setStreams(InputStream inputStream, OutputStream outputStream) {
+        if (inputStream != null) {
+            requestBody = inputStream;
+        }
+        if (outputStream != null) {
+            responseBody = outputStream;
+        }
+    }
+    
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+    
+    /** Finish the response and give the connection back for the next request -- or close it if it cannot be reused. */
+    @Override
+    public void close() {
+        if (isClosed)
+            return;
+        
+        isClosed = true;
+        if (responseCode == -1) {
+            closeConnection();
+            return;
+        }
+        try {
+            rawResponseBody.close();
+            var isReusable = isKeepAlive && rawResponseBody.isComplete() && drain();
+            if (isReusable) {
+                connection.releaseOut();
+                connection.acceptor.release(connection);
+            } else {
+                closeConnection();
+            }
+        } catch (IOException exception) {
+            closeConnection();
+        }
+    }
+    
+    /** Close the connection without finishing the response -- after an error. */
+    void abort() {
+        isClosed = true;
+        closeConnection();
+    }
+    
+    // This exchange is done with the buffers of the connection.
+    private void closeConnection() {
+        connection.close();
+        connection.releaseBuffers();
+    }
+    
+    // Read the rest of the request body (if not too much) so the next request can be read.
+    private boolean drain() throws IOException {
+        var buffer  = new byte[4096];
+        var drained = 0L;
+        for (int count; (count = rawRequestBody.read(buffer)) != -1; ) {
+            drained += count;
+            if (drained > MAX_DRAINING)
+                return false;
+        }
+        return true;
+    }
+    
+    // Read bytes from the buffer of the connection -- filling it from the channel first if it is empty.
+    private int readIn(byte[] bytes, int offset, int length) throws IOException {
+        var in = connection.in;
+        if ((in.position() == 0) && (connection.fill() < 0))
+            return -1;
+        
+        in.flip();
+        var count = Math.min(length, in.remaining());
+        in.get(bytes, offset, count);
+        in.compact();
+        return count;
+    }
+    
+    private int readIn() throws IOException {
+        var in = connection.in;
+        if ((in.position() == 0) && (connection.fill() < 0))
+            return -1;
+        
+        in.flip();
+        var b = in.get() & 0xFF;
+        in.compact();
+        return b;
+    }
+    
+    private final class FixedBody extends InputStream {
+        
+        private long remaining;
+        
+        FixedBody(long length) {
+            this.remaining = length;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+            
+            var b = readIn();
+            if (b < 0)
+                throw new IOException("The request body ended early.");
+            
+            remaining--;
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            if (length == 0)
+                return 0;
+            
+            var count = readIn(bytes, offset, (int)Math.min(length, remaining));
+            if (count < 0)
+                throw new IOException("The request body ended early.");
+            
+            remaining -= count;
+            return count;
+        }
+    }
+    
+    private final class ChunkedBody extends InputStream {
+        
+        private long    chunkRemaining = 0;
+        private boolean isEnded        = false;
+        
+        @Override
+        public int read() throws IOException {
+            var bytes = new byte[1];
+            return (read(bytes, 0, 1) < 0) ? -1 : (bytes[0] & 0xFF);
+        }
+        
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (isEnded)
+                return -1;
+            if (length == 0)
+                return 0;
+            
+            if (chunkRemaining == 0) {
+                chunkRemaining = readChunkSize();
+                if (chunkRemaining == 0) {
+                    // The trailers (if any) end with an empty line.
+                    while (!readLine().isEmpty()) {
+                    }
+                    isEnded = true;
+                    return -1;
+                }
+            }
+            
+            var count = readIn(bytes, offset, (int)Math.min(length, chunkRemaining));
+            if (count < 0)
+                throw new IOException("The request body ended early.");
+            
+            chunkRemaining -= count;
+            if (chunkRemaining == 0) {
+                readLine();
+            }
+            return count;
+        }
+        
+        // Only the hex digits -- no sign.
+        private long readChunkSize() throws IOException {
+            var line      = readLine();
+            var semicolon = line.indexOf(';');
+            var size      = ((semicolon < 0) ? line : line.substring(0, semicolon)).trim();
+            if (size.isEmpty() || !size.chars().allMatch(ch -> ((ch >= '0') && (ch <= '9')) || ((ch >= 'a') && (ch <= 'f')) || ((ch >= 'A') && (ch <= 'F'))))
+                throw new IOException("Invalid chunk size: " + line);
+            
+            try {
+                return Long.parseLong(size, 16);
+            } catch (NumberFormatException exception) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+        }
+        
+        private String readLine() throws IOException {
+            var line = new StringBuilder();
+            for (int b; (b = readIn()) != '\n'; ) {
+                if (b < 0)
+                    throw new IOException("The request body ended early.");
+                if (b != '\r') {
+                    line.append((char)b);
+                }
+            }
+            return line.toString();
+        }
+    }
+    
+    // The body is configured when the headers are sent.
+    private final class ResponseBody extends OutputStream {
+        
+        private long    length      = 0;
+        private boolean isChunked   = false;
+        private boolean isDiscarded = false;
+        private long    written     = 0;
+        private int     chunkStart  = -1;
+        private boolean isClosed    = false;
+        
+        void start(long length, boolean isChunked, boolean isDiscarded) {
+            this.length      = length;
+            this.isChunked   = isChunked;
+            this.isDiscarded = isDiscarded;
+        }
+        
+        boolean isComplete() {
+            return isChunked || isDiscarded || (written == length);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (responseCode == -1)
+                throw new IOException("The headers are not sent.");
+            if (isClosed)
+                throw new IOException("The response body is closed.");
+            if (isDiscarded || (length == 0))
+                return;
+            if (!isChunked && (written + length > this.length))
+                throw new IOException("More than the content length is written.");
+            
+            written += length;
+            if (isChunked) {
+                writeChunked(bytes, offset, length);
+                return;
+            }
+            
+            var out = connection.out;
+            if (length > out.remaining()) {
+                flushOut();
+                if (length > out.remaining()) {
+                    connection.write(ByteBuffer.wrap(bytes, offset, length));
+                    return;
+                }
+            }
+            out.put(bytes, offset, length);
+        }
+        
+        // The bytes are staged as a chunk with room before it for its size line (filled in when flushed).
+        private void writeChunked(byte[] bytes, int offset, int length) throws IOException {
+            var out = connection.out;
+            if ((chunkStart >= 0) && (length + CHUNK_TAIL_ROOM > out.remaining())) {
+                flushChunk(false);
+            }
+            if (chunkStart < 0) {
+                if (SIZE_LINE_ROOM + length + CHUNK_TAIL_ROOM > out.remaining()) {
+                    flushOut();
+                }
+                if (SIZE_LINE_ROOM + length + CHUNK_TAIL_ROOM > out.remaining()) {
+                    connection.write(ByteBuffer.wrap(sizeLineOf(length)), ByteBuffer.wrap(bytes, offset, length), ByteBuffer.wrap(CRLF));
+                    return;
+                }
+                chunkStart = out.position();
+                out.position(chunkStart + SIZE_LINE_ROOM);
+            }
+            out.put(bytes, offset, length);
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            if (isChunked) {
+                flushChunk(false);
+            } else {
+                flushOut();
+            }
+        }
+        
+        /** Write what is in the output buffer (the headers and the staged body). */
+        void flushOut() throws IOException {
+            var out = connection.out;
+            if ((out == null) || (out.position() == 0))
+                return;
+            
+            out.flip();
+            connection.write(out);
+            out.clear();
+        }
+        
+        // The bytes before the chunk (the headers) and the chunk (from its right-aligned size line) are written together.
+        private void flushChunk(boolean isLast) throws IOException {
+            var out = connection.out;
+            if (chunkStart < 0) {
+                if (isLast) {
+                    if (out.remaining() < LAST_CHUNK.length) {
+                        flushOut();
+                    }
+                    out.put(LAST_CHUNK);
+                }
+                flushOut();
+                return;
+            }
+            
+            var dataStart = chunkStart + SIZE_LINE_ROOM;
+            var sizeLine  = sizeLineOf(out.position() - dataStart);
+            var sizeStart = dataStart - sizeLine.length;
+            out.put(sizeStart, sizeLine);
+            out.put(CRLF);
+            if (isLast) {
+                out.put(LAST_CHUNK);
+            }
+            out.flip();
+            var head  = out.duplicate().limit(chunkStart);
+            var chunk = out.duplicate().position(sizeStart);
+            connection.write(head, chunk);
+            out.clear();
+            chunkStart = -1;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (isClosed)
+                return;
+            
+            isClosed = true;
+            if (isChunked) {
+                flushChunk(true);
+            } else {
+                flushOut();
+            }
+        }
+    }
+    
+    private static byte[] sizeLineOf(int size) {
+        return (Integer.toHexString(size) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+    
+    private static String reasonOf(int statusCode) {
+        switch (statusCode) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 204: return "No Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 412: return "Precondition Failed";
+            case 413: return "Payload Too Large";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default:  return "";
+        }
+    }
+    
+}
@@ -0,0 +1,647 @@
+package javaelmexample.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * This class is an HTTP/1.1 engine on the NIO selector (see {@link EngineMode#NIO}).
+ *
+ * A selector thread (an acceptor) accepts the connections and reads the request headers (into a direct buffer of each connection)
+ *   so the idle kept-alive connections hold no thread.
+ * The direct buffers are pooled and a connection only holds them while used -- the input buffer while a request is read
+ *   (or its next one is already in) and the output buffer while a response is written.
+ * Once the headers are in, the connection leaves the selector and is switched to blocking mode
+ *   -- the request is handled by the executor which reads the body and writes the response straight to the socket.
+ * When the exchange is closed, the connection goes back to the selector of its acceptor for the next request
+ *   (which may already be in the buffer as the requests can be pipelined).
+ *
+ * The acceptor also watches the connections being handled (as it does the idle ones) and closes the ones overdue
+ *   -- which ends the blocking read or write of the thread handling it:
+ * <ul>
+ *   <li>a read or a write blocked for longer than the idle timeout (the client stalled),</li>
+ *   <li>a request not received within the read timeout (from its first byte to the response headers) and</li>
+ *   <li>a response not sent within the write timeout (from the response headers to the end).</li>
+ * </ul>
+ *
+ * With more than one acceptor (see {@link ServerSettings#acceptors}), each has its own listening socket on the same port
+ *   with `SO_REUSEPORT` so the kernel spreads the new connections across them.
+ * Where `SO_REUSEPORT` is not supported, the acceptors share one listening socket (the first one to accept a connection gets it).
+ * Note that, with `SO_REUSEPORT`, another server (of the same user) also listening with it on the port is not an error
+ *   -- the connections would be spread to it too.
+ **/
+final class NioHttpEngine implements HttpEngine {
+    
+    /** The size of the buffers of each connection -- the request headers must fit in it. */
+    public static final int BUFFER_SIZE = Http.STREAM_BUFFER_SIZE;
+    
+    // How often the idle connections are looked for.
+    private static final long IDLE_CHECK_MILLIS = 1000;
+    
+    // The pause of the accepting after it failed (e.g., out of file descriptors) -- the new connections wait in the backlog.
+    private static final long ACCEPT_BACKOFF_MILLIS = 100;
+    
+    private static final int MAX_POOLED_BUFFERS = 256;
+    
+    private static final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+    
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    
+    private final long idleTimeoutNanos;
+    private final long readTimeoutNanos;
+    private final long writeTimeoutNanos;
+    private final int  maxConnections;
+    private final int  maxRequestHeaders;
+    private final int  acceptorCount;
+    
+    private final AtomicInteger  openConnections = new AtomicInteger(0);
+    private final List<Acceptor> acceptors       = new ArrayList<>();
+    
+    private volatile boolean isRunning = false;
+    
+    private ExecutorService executor;
+    private HttpHandler     handler;
+    
+    NioHttpEngine(ServerSettings settings) {
+        var idleTimeoutSeconds = (settings.idleTimeoutSeconds > 0) ? settings.idleTimeoutSeconds : Server.DEFAULT_IDLE_TIMEOUT_SECONDS;
+        this.idleTimeoutNanos  = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        this.readTimeoutNanos  = TimeUnit.SECONDS.toNanos(Math.max(settings.readTimeoutSeconds,  0));
+        this.writeTimeoutNanos = TimeUnit.SECONDS.toNanos(Math.max(settings.writeTimeoutSeconds, 0));
+        this.maxConnections    = settings.maxConnections;
+        this.maxRequestHeaders = (settings.maxRequestHeaders > 0) ? settings.maxRequestHeaders : 200;
+        this.acceptorCount     = Math.max(settings.acceptors, 1);
+    }
+    
+    @Override
+    public void start(InetSocketAddress address, int backlog, ExecutorService executor, HttpHandler handler) throws IOException {
+        this.executor = executor;
+        this.handler  = handler;
+        
+        var firstChannel = ServerSocketChannel.open();
+        var isReusePort  = (acceptorCount > 1) && firstChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        try {
+            var serverChannel = bind(firstChannel, address, backlog, isReusePort);
+            // The same port for all (the given one may be zero for any free port).
+            var boundAddress  = new InetSocketAddress(address.getAddress(), serverChannel.socket().getLocalPort());
+            for (int i = 0; i < acceptorCount; i++) {
+                if ((i > 0) && isReusePort) {
+                    serverChannel = bind(ServerSocketChannel.open(), boundAddress, backlog, true);
+                }
+                acceptors.add(new Acceptor(serverChannel, i));
+            }
+        } catch (IOException exception) {
+            firstChannel.close();
+            for (var acceptor : acceptors) {
+                acceptor.closeAll();
+            }
+            acceptors.clear();
+            throw exception;
+        }
+        
+        isRunning = true;
+        for (var acceptor : acceptors) {
+            acceptor.thread.start();
+        }
+    }
+    
+    private static ServerSocketChannel bind(ServerSocketChannel serverChannel, InetSocketAddress address, int backlog, boolean isReusePort) throws IOException {
+        try {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (isReusePort) {
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverChannel.bind(address, backlog);
+            serverChannel.configureBlocking(false);
+            return serverChannel;
+        } catch (IOException exception) {
+            serverChannel.close();
+            throw exception;
+        }
+    }
+    
+    @Override
+    public void stop(int delaySeconds) {
+        isRunning = false;
+        for (var acceptor : acceptors) {
+            acceptor.selector.wakeup();
+        }
+        try {
+            var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.max(delaySeconds, 1));
+            for (var acceptor : acceptors) {
+                var waitMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                acceptor.thread.join(Math.max(waitMillis, 1));
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    @Override
+    public int openConnections() {
+        return openConnections.get();
+    }
+    
+    private static ByteBuffer acquireBuffer() {
+        var buffer = buffers.poll();
+        return (buffer != null) ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+    
+    // The buffer must no longer be used by the one releasing it.
+    private static void releaseBuffer(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+        
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+    
+    // Whether the connection (idle or being handled) should be closed -- see the class comment.
+    private boolean isOverdue(Connection connection, long now) {
+        if (connection.isBlocked && (now - connection.lastActive > idleTimeoutNanos))
+            return true;
+        
+        var responseStart = connection.responseStart;
+        if (responseStart != 0)
+            return (writeTimeoutNanos > 0) && (now - responseStart > writeTimeoutNanos);
+        
+        var requestStart = connection.requestStart;
+        return (readTimeoutNanos > 0) && (requestStart != 0) && (now - requestStart > readTimeoutNanos);
+    }
+    
+    private void handle(Connection connection) {
+        var exchange = connection.exchange;
+        try {
+            if (exchange.isExpectingContinue()) {
+                connection.write(ByteBuffer.wrap(CONTINUE));
+            }
+            handler.handle(exchange);
+        } catch (Throwable throwable) {
+            if (!(throwable instanceof IOException)) {
+                throwable.printStackTrace();
+            }
+            exchange.abort();
+        }
+    }
+    
+    /**
+     * An acceptor -- a selector (and its thread) that accepts the connections from its listening socket
+     *   and reads the request headers of its connections.
+     */
+    final class Acceptor {
+        
+        private final ServerSocketChannel               serverChannel;
+        private final Selector                          selector;
+        private final SelectionKey                      acceptKey;
+        private final Thread                            thread;
+        private final ConcurrentLinkedQueue<Connection> returning   = new ConcurrentLinkedQueue<>();
+        private final List<Connection>                  dispatching = new ArrayList<>();
+        
+        // The connections out of the selector (being handled) -- watched for the timeouts and closed at the end.
+        private final Set<Connection> handling = ConcurrentHashMap.newKeySet();
+        
+        // The accepting is paused (until the time) after it failed -- reported once until it succeeds again.
+        private boolean isAcceptPaused    = false;
+        private long    acceptResumeNanos = 0;
+        private boolean isAcceptFailing   = false;
+        
+        Acceptor(ServerSocketChannel serverChannel, int index) throws IOException {
+            this.serverChannel = serverChannel;
+            this.selector      = Selector.open();
+            this.acceptKey     = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            this.thread        = new Thread(this::run, "nio-http-selector-" + index);
+        }
+        
+        private void run() {
+            var lastIdleCheck = System.nanoTime();
+            try {
+                while (isRunning) {
+                    if (selector.selectedKeys().isEmpty()) {
+                        selector.select(isAcceptPaused ? ACCEPT_BACKOFF_MILLIS : IDLE_CHECK_MILLIS);
+                    } else {
+                        selector.selectNow();
+                    }
+                    
+                    for (Connection connection; (connection = returning.poll()) != null; ) {
+                        resume(connection);
+                    }
+                    
+                    var keys = selector.selectedKeys();
+                    for (var key : keys) {
+                        if (!key.isValid())
+                            continue;
+                        
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read((Connection)key.attachment());
+                        }
+                    }
+                    keys.clear();
+                    dispatch();
+                    
+                    var now = System.nanoTime();
+                    if (isAcceptPaused && (now - acceptResumeNanos >= 0)) {
+                        isAcceptPaused = false;
+                        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                    }
+                    if (now - lastIdleCheck > TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_MILLIS)) {
+                        lastIdleCheck = now;
+                        closeOverdue(now);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException exception) {
+                if (isRunning) {
+                    exception.printStackTrace();
+                }
+            } finally {
+                closeAll();
+            }
+        }
+        
+        // Only a failure of the selector ends the acceptor -- a failure of a connection (e.g., reset before it is set up)
+        //   closes just that one and a failure to accept (e.g., out of file descriptors) pauses the accepting for a moment.
+        private void accept() {
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (IOException exception) {
+                    pauseAccepting(exception);
+                    return;
+                }
+                if (channel == null)
+                    return;
+                
+                isAcceptFailing = false;
+                if ((maxConnections > 0) && (openConnections.get() >= maxConnections)) {
+                    closeQuietly(channel);
+                    continue;
+                }
+                
+                openConnections.incrementAndGet();
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    var connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException exception) {
+                    openConnections.decrementAndGet();
+                    closeQuietly(channel);
+                }
+            }
+        }
+        
+        private void pauseAccepting(IOException exception) {
+            if (!isAcceptFailing) {
+                isAcceptFailing = true;
+                System.err.println("Fail to accept a connection (pause for " + ACCEPT_BACKOFF_MILLIS + " ms): " + exception);
+            }
+            acceptKey.interestOps(0);
+            isAcceptPaused    = true;
+            acceptResumeNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACCEPT_BACKOFF_MILLIS);
+        }
+        
+        private void closeQuietly(SocketChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException exception) {
+                // Closed anyway.
+            }
+        }
+        
+        private void read(Connection connection) {
+            try {
+                var in           = connection.in();
+                var isNewRequest = (in.position() == 0);
+                var count        = connection.channel.read(in);
+                if (count < 0) {
+                    connection.close();
+                    return;
+                }
+                connection.lastActive = System.nanoTime();
+                if (isNewRequest && (count > 0)) {
+                    connection.requestStart = connection.lastActive;
+                }
+                parse(connection);
+                if ((connection.exchange == null) && (connection.in != null) && (connection.in.position() == 0)) {
+                    connection.releaseIn();
+                }
+            } catch (IOException exception) {
+                connection.close();
+            }
+        }
+        
+        // Take the request out of the selector if its headers are all in the buffer.
+        private void parse(Connection connection) {
+            NioExchange exchange;
+            try {
+                exchange = NioExchange.parse(connection, maxRequestHeaders);
+            } catch (IOException exception) {
+                connection.reject(exception.getMessage());
+                return;
+            }
+            if (exchange == null) {
+                if (!connection.in.hasRemaining()) {
+                    connection.reject("431 Request Header Fields Too Large");
+                }
+                return;
+            }
+            
+            connection.exchange = exchange;
+            connection.key.cancel();
+            connection.key = null;
+            dispatching.add(connection);
+        }
+        
+        // The canceled keys are only dropped by the next select -- a channel can only be made blocking after that.
+        private void dispatch() throws IOException {
+            if (dispatching.isEmpty())
+                return;
+            
+            selector.selectNow();
+            for (var connection : dispatching) {
+                try {
+                    handling.add(connection);
+                    connection.channel.configureBlocking(true);
+                    executor.execute(() -> handle(connection));
+                } catch (RejectedExecutionException exception) {
+                    rejectOverloaded(connection);
+                } catch (IOException exception) {
+                    connection.close();
+                    connection.releaseBuffers();
+                }
+            }
+            dispatching.clear();
+        }
+        
+        // The executor is full -- the canned response is written without blocking (the selector thread must not wait for the client).
+        private void rejectOverloaded(Connection connection) {
+            connection.exchange = null;
+            try {
+                connection.channel.configureBlocking(false);
+            } catch (IOException exception) {
+                connection.close();
+                return;
+            }
+            connection.reject("503 Service Unavailable", "Retry-After: " + Server.RETRY_AFTER_SECONDS + "\r\n");
+        }
+        
+        // Called (by the thread that closes the exchange) when the connection is ready for the next request.
+        void release(Connection connection) {
+            try {
+                handling.remove(connection);
+                connection.exchange      = null;
+                connection.requestStart  = 0;
+                connection.responseStart = 0;
+                connection.channel.configureBlocking(false);
+                returning.add(connection);
+                selector.wakeup();
+                if (!isRunning) {
+                    connection.close();
+                }
+            } catch (IOException exception) {
+                connection.close();
+            }
+        }
+        
+        private void resume(Connection connection) {
+            if (!isRunning || !connection.channel.isOpen()) {
+                connection.close();
+                return;
+            }
+            try {
+                connection.lastActive = System.nanoTime();
+                connection.key        = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                if (connection.in.position() > 0) {
+                    // The next request is (at least partly) in the buffer already.
+                    connection.requestStart = connection.lastActive;
+                    parse(connection);
+                } else {
+                    connection.releaseIn();
+                }
+            } catch (IOException exception) {
+                connection.close();
+            }
+        }
+        
+        private void closeOverdue(long now) {
+            for (var key : selector.keys()) {
+                var attachment = key.attachment();
+                if (attachment instanceof Connection) {
+                    var connection = (Connection)attachment;
+                    if ((now - connection.lastActive > idleTimeoutNanos) || isOverdue(connection, now)) {
+                        connection.close();
+                    }
+                }
+            }
+            for (var connection : handling) {
+                if (isOverdue(connection, now)) {
+                    connection.close();
+                }
+            }
+        }
+        
+        // The listening socket may be shared with the other acceptors -- closing it more than once is fine.
+        private void closeAll() {
+            try {
+                for (var key : selector.keys()) {
+                    var attachment = key.attachment();
+                    if (attachment instanceof Connection) {
+                        ((Connection)attachment).close();
+                    }
+                }
+                for (var connection : handling) {
+                    connection.close();
+                }
+                for (var connection : dispatching) {
+                    connection.close();
+                }
+                selector.close();
+                serverChannel.close();
+            } catch (IOException | ClosedSelectorException exception) {
+                // Closing anyway.
+            }
+        }
+        
+        private void connectionClosed() {
+            openConnections.decrementAndGet();
+        }
+    }
+    
+    /**
+     * A connection and its buffers -- only one thread (the selector of its acceptor or the one handling its exchange) uses it at a time.
+     */
+    static final class Connection {
+        
+        final Acceptor          acceptor;
+        final SocketChannel     channel;
+        final InetSocketAddress remoteAddress;
+        final InetSocketAddress localAddress;
+        
+        // The bytes read but not yet used are at the start (the buffer is always ready to be read into).
+        // The buffers are null when not held -- they belong to the acceptor while the exchange is null
+        //   and to the thread handling the exchange otherwise.
+        ByteBuffer in;
+        ByteBuffer out;
+        
+        SelectionKey key;
+        NioExchange  exchange;
+        
+        // The measurement of the request being handled (see Metrics) and the number of the requests so far.
+        Metrics.Measurement measurement;
+        int                 requestCount = 0;
+        
+        // Read by the acceptor watching the timeouts -- the starts are zero when not yet (or no longer) started.
+        volatile long    lastActive    = System.nanoTime();
+        volatile long    requestStart  = 0;
+        volatile long    responseStart = 0;
+        volatile boolean isBlocked     = false;
+        
+        private boolean isClosed = false;
+        
+        Connection(Acceptor acceptor, SocketChannel channel) throws IOException {
+            this.acceptor      = acceptor;
+            this.channel       = channel;
+            this.remoteAddress = (InetSocketAddress)channel.getRemoteAddress();
+            this.localAddress  = (InetSocketAddress)channel.getLocalAddress();
+        }
+        
+        /** @return  the input buffer -- acquired if not held. */
+        ByteBuffer in() {
+            if (in == null) {
+                in = acquireBuffer();
+            }
+            return in;
+        }
+        
+        /** @return  the output buffer -- acquired if not held. */
+        ByteBuffer out() {
+            if (out == null) {
+                out = acquireBuffer();
+            }
+            return out;
+        }
+        
+        /** Give the input buffer back to the pool -- it must have nothing left to read. */
+        void releaseIn() {
+            releaseBuffer(in);
+            in = null;
+        }
+        
+        /** Give the output buffer back to the pool -- everything in it must be written (or dropped). */
+        void releaseOut() {
+            releaseBuffer(out);
+            out = null;
+        }
+        
+        /** Give the buffers back to the pool -- once the connection is closed. */
+        void releaseBuffers() {
+            releaseIn();
+            releaseOut();
+        }
+        
+        /** Read more bytes into the input buffer (blocking) -- @return  the number of bytes read or -1 at the end. */
+        int fill() throws IOException {
+            if (!in.hasRemaining())
+                return 0;
+            
+            isBlocked = true;
+            try {
+                var count = channel.read(in);
+                lastActive = System.nanoTime();
+                return count;
+            } finally {
+                isBlocked = false;
+            }
+        }
+        
+        /** Write all the buffers (blocking). */
+        void write(ByteBuffer ... buffers) throws IOException {
+            var remaining = 0L;
+            for (var buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            isBlocked = true;
+            try {
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                    lastActive = System.nanoTime();
+                }
+            } finally {
+                isBlocked = false;
+            }
+        }
+        
+        /** Transfer the bytes of the file to the channel (blocking) -- @return  the number of bytes transferred. */
+        long transfer(FileChannel file, long position, long count) throws IOException {
+            isBlocked = true;
+            try {
+                var sent = file.transferTo(position, count, channel);
+                lastActive = System.nanoTime();
+                return sent;
+            } finally {
+                isBlocked = false;
+            }
+        }
+        
+        // The request cannot be read -- a best-effort error response (the channel is not blocking) before closing.
+        void reject(String status) {
+            reject(status, "");
+        }
+        
+        // The headers are the complete lines (each ends with CRLF).
+        void reject(String status, String headers) {
+            try {
+                var response = "HTTP/1.1 " + status + "\r\n" + headers + "Content-Length: 0\r\nConnection: close\r\n\r\n";
+                channel.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+            } catch (IOException exception) {
+                // Closing anyway.
+            }
+            close();
+        }
+        
+        synchronized void close() {
+            if (isClosed)
+                return;
+            
+            isClosed = true;
+            acceptor.handling.remove(this);
+            acceptor.connectionClosed();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException exception) {
+                // Closed anyway.
+            }
+            // Closed by the acceptor -- otherwise (maybe by the timeouts) the thread handling it may still use the buffers
+            //   and gives them back when done with the exchange.
+            if (exchange == null) {
+                releaseBuffers();
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,25 @@
+package javaelmexample.server;
+
+/**
+ * This exception indicates that the data is no longer of the expected version (e.g., changed by someone else) -- `412`.
+ */
+public class PreconditionFailedException extends RuntimeException {
+    
+    private static final long serialVersionUID = 3349806532177385204L;
+    
+    public PreconditionFailedException() {
+    }
+    
+    public PreconditionFailedException(String message) {
+        super(message);
+    }
+    
+    public PreconditionFailedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+    
+    public PreconditionFailedException(Throwable cause) {
+        super(cause);
+    }
+    
+}
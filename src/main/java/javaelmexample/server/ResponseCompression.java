@@ -0,0 +1,261 @@
+package javaelmexample.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * This class compresses the API responses with the content encoding that the client accepts (`gzip` or `deflate`).
+ *
+ * The responses smaller than {@link #MIN_SIZE} are sent as is -- compressing them costs more than the bytes it saves.
+ * The deflaters are pooled and reused as each holds a sizable native buffer
+ *   -- a pool (rather than one per thread) also works for the virtual threads which are never reused.
+ * A deflater is only taken once nothing can fail before the stream holding it is made, and that stream gives it back
+ *   when closed (even if closing fails) or discarded (see {@link ResponseBody#discard()}).
+ **/
+final class ResponseCompression {
+    
+    /** The content encodings in the order of preference. */
+    public static final List<String> ENCODINGS = List.of("gzip", "deflate");
+    
+    /** The smallest response (in bytes) worth compressing. */
+    public static final int MIN_SIZE = 1024;
+    
+    /** The compression level -- the bandwidth is worth more than the little extra CPU over the fastest level. */
+    public static final int LEVEL = Deflater.DEFAULT_COMPRESSION;
+    
+    private static final int MAX_POOLED_DEFLATERS = 64;
+    
+    // The fixed gzip header: magic, deflate, no flags, no time, no extra flags, unknown OS.
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff };
+    
+    // The raw deflaters (for gzip) and the zlib-wrapped ones (for deflate) cannot be turned into each other.
+    private static final BlockingQueue<Deflater> gzipDeflaters    = new ArrayBlockingQueue<>(MAX_POOLED_DEFLATERS);
+    private static final BlockingQueue<Deflater> deflateDeflaters = new ArrayBlockingQueue<>(MAX_POOLED_DEFLATERS);
+    
+    private ResponseCompression() {
+    }
+    
+    /** @return  the content encoding to compress the response of the request with -- null if the request accepts none. */
+    static String encodingOf(HttpExchange exchange) {
+        for (var encoding : ENCODINGS) {
+            if (Http.acceptsEncoding(exchange, encoding))
+                return encoding;
+        }
+        return null;
+    }
+    
+    /** @return  the bytes compressed with the encoding. */
+    static byte[] compress(byte[] bytes, String encoding) throws IOException {
+        var buffer = new ByteArrayOutputStream(bytes.length/4 + 64);
+        try (var stream = compressing(buffer, encoding)) {
+            stream.write(bytes);
+        }
+        return buffer.toByteArray();
+    }
+    
+    /** @return  the stream that compresses into the given one -- closing it finishes the compression and closes the given stream. */
+    static OutputStream compressing(OutputStream outputStream, String encoding) throws IOException {
+        return CompressingStream.open(outputStream, encoding.equals("gzip"));
+    }
+    
+    /**
+     * @return  the stream to write the response body to -- the headers are sent once it knows whether to compress
+     *            (and whether the length is known). It must be closed to complete the response.
+     *          The encoding is null if the response is not to be compressed.
+     */
+    static ResponseBody responseBody(HttpExchange exchange, int statusCode, String encoding) {
+        return new ResponseBody(exchange, statusCode, encoding);
+    }
+    
+    private static Deflater acquire(boolean isGzip) {
+        var deflater = (isGzip ? gzipDeflaters : deflateDeflaters).poll();
+        return (deflater != null) ? deflater : new Deflater(LEVEL, /*nowrap*/isGzip);
+    }
+    
+    private static void release(Deflater deflater, boolean isGzip) {
+        deflater.reset();
+        if (!(isGzip ? gzipDeflaters : deflateDeflaters).offer(deflater)) {
+            deflater.end();
+        }
+    }
+    
+    // GZIPOutputStream always creates (and ends) its own deflater so the gzip header and trailer are written here.
+    private static final class CompressingStream extends DeflaterOutputStream {
+        
+        private final boolean isGzip;
+        private final CRC32   crc = new CRC32();
+        
+        private boolean isClosed = false;
+        private long    bytes    = 0;
+        
+        // The header is written before the deflater is taken so a failed write holds none.
+        static CompressingStream open(OutputStream outputStream, boolean isGzip) throws IOException {
+            if (isGzip) {
+                outputStream.write(GZIP_HEADER);
+            }
+            return new CompressingStream(outputStream, acquire(isGzip), isGzip);
+        }
+        
+        private CompressingStream(OutputStream outputStream, Deflater deflater, boolean isGzip) {
+            super(outputStream, deflater, Http.STREAM_BUFFER_SIZE);
+            this.isGzip = isGzip;
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            super.write(bytes, offset, length);
+            if (isGzip) {
+                crc.update(bytes, offset, length);
+            }
+        }
+        
+        @Override
+        public void finish() throws IOException {
+            if (def.finished())
+                return;
+            
+            super.finish();
+            if (isGzip) {
+                writeIntLE((int)crc.getValue());
+                writeIntLE((int)def.getBytesRead());
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (isClosed)
+                return;
+            
+            isClosed = true;
+            try {
+                finish();
+            } finally {
+                bytes = bytesWritten();
+                release(def, isGzip);
+                out.close();
+            }
+        }
+        
+        // Give the deflater back without finishing -- the response is abandoned.
+        void discard() {
+            if (isClosed)
+                return;
+            
+            isClosed = true;
+            bytes    = bytesWritten();
+            release(def, isGzip);
+        }
+        
+        // The compressed bytes so far -- the deflater is reset once given back.
+        long bytes() {
+            return isClosed ? bytes : bytesWritten();
+        }
+        
+        private long bytesWritten() {
+            var trailer = (isGzip && def.finished()) ? 8 : 0;
+            return (isGzip ? GZIP_HEADER.length : 0) + def.getBytesWritten() + trailer;
+        }
+        
+        private void writeIntLE(int value) throws IOException {
+            out.write(value);
+            out.write(value >>>  8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+    }
+    
+    /**
+     * The response body -- the first {@link #MIN_SIZE} bytes are held back: if the body ends by then, it is sent as is (with its length).
+     * Otherwise, the rest is compressed (if there is an encoding) and sent with the chunked transfer encoding.
+     **/
+    static final class ResponseBody extends OutputStream {
+        
+        private final HttpExchange exchange;
+        private final int          statusCode;
+        private final String       encoding;
+        private final byte[]       pending = new byte[MIN_SIZE];
+        
+        private int               pendingSize = 0;
+        private long              bytes       = 0;
+        private OutputStream      out         = null;
+        private CompressingStream compressing = null;
+        
+        ResponseBody(HttpExchange exchange, int statusCode, String encoding) {
+            this.exchange   = exchange;
+            this.statusCode = statusCode;
+            this.encoding   = encoding;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (out == null) {
+                if (pendingSize + length <= MIN_SIZE) {
+                    System.arraycopy(bytes, offset, pending, pendingSize, length);
+                    pendingSize += length;
+                    return;
+                }
+                
+                if (encoding != null) {
+                    exchange.getResponseHeaders().set("Content-Encoding", encoding);
+                }
+                exchange.sendResponseHeaders(statusCode, 0);
+                out = exchange.getResponseBody();
+                if (encoding != null) {
+                    compressing = CompressingStream.open(out, encoding.equals("gzip"));
+                    out         = compressing;
+                }
+                write(pending, 0, pendingSize);
+            }
+            out.write(bytes, offset, length);
+            this.bytes += length;
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+                return;
+            }
+            
+            exchange.sendResponseHeaders(statusCode, (pendingSize == 0) ? -1 : pendingSize);
+            out = exchange.getResponseBody();
+            out.write(pending, 0, pendingSize);
+            bytes = pendingSize;
+            out.close();
+        }
+        
+        /** @return  the bytes of the body sent so far -- as compressed if it is. */
+        public long bytes() {
+            return (compressing != null) ? compressing.bytes() : bytes;
+        }
+        
+        /** Give back what the body holds (the deflater) if it is not closed -- to be called once the response ends, however it ends. */
+        public void discard() {
+            if (compressing != null) {
+                compressing.discard();
+            }
+        }
+    }
+    
+}
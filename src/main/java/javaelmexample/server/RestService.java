@@ -1,7 +1,22 @@
 package javaelmexample.server;
 
+import static functionalj.types.DefaultValue.ZERO;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
 import functionalj.list.FuncList;
+import functionalj.map.FuncMap;
+import functionalj.promise.DeferAction;
 import functionalj.promise.Promise;
+import functionalj.result.Result;
+import functionalj.types.DefaultTo;
+import functionalj.types.IData;
+import functionalj.types.Nullable;
+import functionalj.types.Struct;
 
 /**
  * This interface provider abstraction to a REST service.
@@ -9,21 +24,153 @@ import functionalj.promise.Promise;
  **/
 public interface RestService<DATA extends RestData> {
     
+    /** The expected version that any existing data matches (as `If-Match: *`). */
+    public static final String ANY_VERSION = "*";
+    
+    /**
+     * The query for a page of the list.
+     * 
+     * The list is ordered by the ID and the cursor is the ID of the last item of the previous page (keyset pagination).
+     * The projection (the fields) is only applied to the response so the services do not need to deal with it.
+     * The filters are field values that the items must have (compared case-insensitively) --
+     *   a choice value is given as its tag followed by its parameters separated by ':' (e.g. `Color:red`).
+     **/
+    @Struct
+    static interface ListQuerySpec {
+        /** The maximum number of items -- zero for no limit. */
+        @DefaultTo(ZERO) int limit();
+        
+        /** The ID of the last item of the previous page -- null for the first page. */
+        @Nullable String cursor();
+        
+        /** The fields to be included in the response -- null for all. */
+        @Nullable FuncList<String> fields();
+        
+        /** The field values that the items must have -- null for no filter. */
+        @Nullable FuncMap<String, String> filters();
+        
+        /** @return  {@code true} if this query does not restrict the list at all. */
+        default boolean isAll() {
+            return (limit() <= 0) && (cursor() == null) && !hasFilters();
+        }
+        
+        /** @return  {@code true} if this query has at least one filter. */
+        default boolean hasFilters() {
+            return (filters() != null) && !filters().isEmpty();
+        }
+        
+        /** @return  {@code true} if the item has all the filtered field values -- this works with {@link IData} items. */
+        default boolean matches(Object item) {
+            if (!hasFilters())
+                return true;
+            if (!(item instanceof IData))
+                return false;
+            
+            var map = ((IData)item).__toMap();
+            return filters().entries().allMatch(filter -> {
+                var value = filterValueOf(map.get(filter.getKey()));
+                return (value != null) && value.equalsIgnoreCase(filter.getValue());
+            });
+        }
+        
+        /** @return  the page of the given items -- this is the generic (full scan) implementation. */
+        default <D extends RestData> FuncList<D> applyTo(FuncList<D> items) {
+            var cursor = cursor();
+            var page   = items
+                       .filter (item -> (cursor == null) || (item.id().compareTo(cursor) > 0))
+                       .filter (this::matches)
+                       .sortedBy(RestData::id);
+            return ((limit() > 0) ? page.limit(limit()) : page).toImmutableList();
+        }
+        
+        /** @return  the text to compare with the filter for the value (as in the map from {@link IData#__toMap()}). */
+        default String filterValueOf(Object value) {
+            if (!(value instanceof Map))
+                return (value == null) ? null : value.toString();
+            
+            var map = (Map<?, ?>)value;
+            var tag = map.get("__tagged");
+            if (tag == null)
+                return null;
+            
+            var text = new StringBuilder(tag.toString());
+            map.entrySet().stream()
+                .filter (entry -> !"__tagged".equals(entry.getKey()))
+                .forEach(entry -> text.append(":").append(entry.getValue()));
+            return text.toString();
+        }
+    }
+    
+    /**
+     * The result of an item of a bulk request.
+     **/
+    @Struct
+    static interface BulkResultSpec {
+        /** The position of the item in the request. */
+        int index();
+        
+        /** The HTTP status code as if the item was requested alone. */
+        int status();
+        
+        /** The ID of the resulting data -- null if failed. */
+        @Nullable String id();
+        
+        /** The error message -- null if success. */
+        @Nullable String error();
+        
+        /** @return  {@code true} if the item was a success. */
+        default boolean isSuccess() {
+            return (status() >= 200) && (status() < 300);
+        }
+    }
+    
     /** @return  the class of the data that this service serve. */
     public Class<DATA> dataClass();
     
+    /** @return  the JSON codec for the data or null to use the generic map-based conversion. */
+    public default JsonCodec<DATA> dataCodec() {
+        return null;
+    }
+    
+    /**
+     * @return  the feed of the changes made to the data (see {@link ChangeFeed}) -- null if the service does not publish them.
+     *          The feed must be the same one every time.
+     */
+    public default ChangeFeed<DATA> changes() {
+        return null;
+    }
+    
+    /**
+     * @return  the version of the data -- it changes with every change so the same version always means the same list.
+     *          Negative if the service does not keep a version (the list is then never cached).
+     */
+    public default long version() {
+        return -1;
+    }
+    
+    /**
+     * @return  the version of the data -- it changes whenever the data changes (e.g., a hash of the content);
+     *          null if the service does not version its data (conditional changes then always fail).
+     */
+    public default String versionOf(DATA data) {
+        return null;
+    }
+    
     /** Get the data by its ID. */
     public default Promise<DATA> get(String id) {
         throw new UnsupportedHttpMethodException();
     }
     
-    // TODO - add filter.
-    
     /** Get list of all data */
     public default Promise<FuncList<DATA>> list() {
         throw new UnsupportedHttpMethodException();
     }
     
+    /** Get a page of data ordered by the ID -- the default implementation scans the whole list. */
+    public default Promise<FuncList<DATA>> list(ListQuery query) {
+        return list().map(query::applyTo);
+    }
+    
     /** Add a new data and @return that data */
     public default Promise<DATA> post(DATA data) {
         throw new UnsupportedHttpMethodException();
@@ -39,4 +186,94 @@ public interface RestService<DATA extends RestData> {
         throw new UnsupportedHttpMethodException();
     }
     
+    /**
+     * Replace an existing data only if it is still of the expected version (see {@link #versionOf(RestData)}) -- or any
+     *   version for {@link #ANY_VERSION}. The check and the change must be atomic.
+     * It fails with {@link PreconditionFailedException} otherwise (including when there is no such data).
+     * A null version is no condition -- the same as {@link #put(String, RestData)}.
+     * The default implementation only supports the null version.
+     **/
+    public default Promise<DATA> put(String id, DATA data, String expectedVersion) {
+        if (expectedVersion != null)
+            throw new PreconditionFailedException("Conditional change is not supported.");
+        
+        return put(id, data);
+    }
+    
+    /** Delete an existing data only if it is still of the expected version -- as {@link #put(String, RestData, String)}. */
+    public default Promise<DATA> delete(String id, String expectedVersion) {
+        if (expectedVersion != null)
+            throw new PreconditionFailedException("Conditional change is not supported.");
+        
+        return delete(id);
+    }
+    
+    /**
+     * Add all the data -- the results are in the same order and their indexes are the positions in the given list.
+     * The default implementation posts each data and waits for them all.
+     **/
+    public default Promise<FuncList<BulkResult>> postAll(FuncList<DATA> dataList) {
+        return eachOf(dataList, this::post);
+    }
+    
+    /** Replace all the existing data (by their IDs) -- the results are as in {@link #postAll(FuncList)}. */
+    public default Promise<FuncList<BulkResult>> putAll(FuncList<DATA> dataList) {
+        return eachOf(dataList, data -> {
+            if (data.id() == null)
+                throw new IllegalArgumentException("Missing ID.");
+            
+            return put(data.id(), data);
+        });
+    }
+    
+    /** Delete all the existing data by the IDs -- the results are as in {@link #postAll(FuncList)}. */
+    public default Promise<FuncList<BulkResult>> deleteAll(FuncList<String> ids) {
+        return eachOf(ids, this::delete);
+    }
+    
+    private <ITEM> Promise<FuncList<BulkResult>> eachOf(FuncList<ITEM> items, Function<ITEM, Promise<DATA>> action) {
+        var promises = new ArrayList<Promise<DATA>>(items.size());
+        for (var item : items) {
+            try {
+                promises.add(action.apply(item));
+            } catch (RuntimeException exception) {
+                promises.add(Promise.ofException(exception));
+            }
+        }
+        return bulkResultsOf(promises);
+    }
+    
+    /**
+     * @return  the results of the promises of the items of a bulk request (in the same order) once all are completed
+     *            -- for the services with their own bulk changes.
+     **/
+    public static <D extends RestData> Promise<FuncList<BulkResult>> bulkResultsOf(List<Promise<D>> promises) {
+        if (promises.isEmpty())
+            return Promise.ofValue(FuncList.empty());
+        
+        var pending   = DeferAction.<FuncList<BulkResult>>createNew().start();
+        var results   = new BulkResult[promises.size()];
+        var remaining = new AtomicInteger(promises.size());
+        for (int i = 0; i < results.length; i++) {
+            var index = i;
+            promises.get(i).onComplete(result -> {
+                results[index] = bulkResultOf(index, result);
+                if (remaining.decrementAndGet() == 0) {
+                    pending.complete(FuncList.of(results));
+                }
+            });
+        }
+        return pending.getPromise();
+    }
+    
+    private static <D extends RestData> BulkResult bulkResultOf(int index, Result<D> result) {
+        if (result.isPresent())
+            return new BulkResult(index, 200, result.get().id(), null);
+        if (result.isNull())
+            return new BulkResult(index, 404, null, "Not found");
+        
+        var exception = result.getException();
+        return new BulkResult(index, Http.statusCodeOf(exception), null, String.valueOf(exception.getMessage()));
+    }
+    
 }
@@ -1,51 +1,144 @@
 package javaelmexample.server;
 
 import static functionalj.function.Func.f;
-import static functionalj.lens.Access.theString;
-import static functionalj.list.FuncList.listOf;
-import static javaelmexample.server.Http.extContentTypes;
+import static functionalj.types.DefaultValue.FALSE;
+import static functionalj.types.DefaultValue.ZERO;
+import static nullablej.nullable.Nullable.nullable;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpServer;
 
-import functionalj.list.FuncList;
 import functionalj.map.FuncMap;
+import functionalj.types.DefaultTo;
+import functionalj.types.Nullable;
+import functionalj.types.Struct;
 
 /**
  * This is a simple HTTP server.
  */
 public class Server {
     
+    /** The `Cache-Control` for the fingerprinted assets -- their content never changes. */
+    public static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    
+    /** The path of the metrics (in the Prometheus text format). */
+    public static final String METRICS_PATH = "/api/_metrics";
+    
+    /** The number of seconds the client is asked to wait before retrying when the server is overloaded. */
+    public static final int RETRY_AFTER_SECONDS = 1;
+    
+    /** The seconds a kept-alive connection can be idle by default (as the JDK server). */
+    public static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 30;
+    
+    /**
+     * The settings of the server.
+     */
+    @Struct
+    static interface ServerSettingsSpec {
+        /** Whether to serve the assets with a content hash in their paths (see {@link AssetCache}). */
+        @DefaultTo(FALSE) boolean fingerprintAssets();
+        
+        /** The HTTP engine -- null for {@link EngineMode#JDK}. */
+        @Nullable EngineMode engineMode();
+        
+        /**
+         * The number of the acceptors (each with its own selector thread and listening socket on the port) -- zero for one.
+         * Only {@link EngineMode#NIO} can have more than one.
+         **/
+        @DefaultTo(ZERO) int acceptors();
+        
+        /** How the requests are executed -- null for {@link ExecutorMode#CACHED}. */
+        @Nullable ExecutorMode executorMode();
+        
+        /** The number of threads for {@link ExecutorMode#BOUNDED} -- zero for the default. */
+        @DefaultTo(ZERO) int maxThreads();
+        
+        /** The queue capacity for {@link ExecutorMode#BOUNDED} -- zero for the default. */
+        @DefaultTo(ZERO) int maxQueue();
+        
+        /** The deadline of each API request in milliseconds -- zero for the default ({@link Http#timeout} seconds). */
+        @DefaultTo(ZERO) long requestTimeoutMillis();
+        
+        /** The number of the connections waiting to be accepted -- zero for the system default. */
+        @DefaultTo(ZERO) int backlog();
+        
+        /** The seconds a kept-alive connection can be idle before it is closed -- zero for the default (30). */
+        @DefaultTo(ZERO) int idleTimeoutSeconds();
+        
+        /** The number of the open connections after which the new ones are refused -- zero for no limit. */
+        @DefaultTo(ZERO) int maxConnections();
+        
+        /** The number of the idle connections kept alive -- zero for the default (200). */
+        @DefaultTo(ZERO) int maxIdleConnections();
+        
+        /** The number of the headers of a request -- zero for the default (200). */
+        @DefaultTo(ZERO) int maxRequestHeaders();
+        
+        /** The size of a request body in bytes (larger ones get `413`) -- zero for no limit. */
+        @DefaultTo(ZERO) long maxRequestBytes();
+        
+        /** The seconds to receive a request once it started -- zero for no limit. */
+        @DefaultTo(ZERO) int readTimeoutSeconds();
+        
+        /** The seconds to send a response once it started -- zero for no limit. */
+        @DefaultTo(ZERO) int writeTimeoutSeconds();
+    }
+    
     private final AtomicBoolean stillRunning = new AtomicBoolean(true);
     
     private final int             portNumber;
+    private final ServerSettings  settings;
     private final ExecutorService executor;
     private final Http            http;
+    private final AssetCache      assets;
+    private final Metrics         metrics;
     private final CountDownLatch  latch = new CountDownLatch(1);
     
     private final AtomicReference<Runnable> onStop = new AtomicReference<>(() -> {});
     
-    @SuppressWarnings("rawtypes")
-    private final Map<String, ServiceHandler> apiHandlers;
+    private final ApiRouter apiRouter;
+    
+    // The feeds of the services -- their event streams are ended when the server stops.
+    private final List<ChangeFeed<?>> changeFeeds = new ArrayList<>();
     
     
-    @SuppressWarnings({ "unchecked", "rawtypes" })
     public Server(int portNumber, Map<String, ? extends RestService<?>> services) {
+        this(portNumber, new ServerSettings(), services);
+    }
+    
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public Server(int portNumber, ServerSettings settings, Map<String, ? extends RestService<?>> services) {
         this.portNumber  = portNumber;
-        this.executor    = Executors.newCachedThreadPool();
+        this.settings    = settings;
+        this.executor    = nullable(settings.executorMode).orElse(ExecutorMode.CACHED).createExecutor(settings.maxThreads, settings.maxQueue);
         this.http        = new Http();
-        this.apiHandlers = FuncMap.from(services).mapValue(service -> new ServiceHandler(service)).toImmutableMap();
+        this.assets      = new AssetCache(settings.fingerprintAssets);
+        this.metrics     = new Metrics(services.keySet(), executor, TimeUnit.SECONDS.toMillis(idleTimeoutSecondsOf(settings)));
+        
+        var timeoutMillis = (settings.requestTimeoutMillis > 0) ? settings.requestTimeoutMillis : Http.timeout*1000L;
+        this.apiRouter   = new ApiRouter(FuncMap.from(services).mapValue(service -> (ServiceHandler<?>)new ServiceHandler(service, timeoutMillis)));
+        for (var service : services.values()) {
+            var feed = service.changes();
+            if (feed != null) {
+                changeFeeds.add(feed);
+            }
+        }
+    }
+    
+    /** @return  the metrics of this server. */
+    public Metrics metrics() {
+        return metrics;
     }
     
     public boolean isRunning() {
@@ -56,11 +149,11 @@ public class Server {
         if (!stillRunning.get())
             return false;
         
-        var address    = new InetSocketAddress("0.0.0.0", portNumber);
-        var httpServer = HttpServer.create(address, 0);
-        httpServer.setExecutor(executor);
-        httpServer.createContext("/", this::handle);
-        httpServer.start();
+        configureConnections(settings);
+        var address = new InetSocketAddress("0.0.0.0", portNumber);
+        var engine  = nullable(settings.engineMode).orElse(EngineMode.JDK).createEngine(settings);
+        engine.start(address, settings.backlog, executor, this::handle);
+        metrics.countConnectionsWith(engine);
         
         f(()-> {
             try {
@@ -69,7 +162,7 @@ public class Server {
                 exception.printStackTrace();
             } finally {
                 stillRunning.set(false);
-                shutdown(httpServer);
+                shutdown(engine);
                 executor.shutdown();
             }
         })
@@ -110,12 +203,24 @@ public class Server {
     }
     
     private void handle(HttpExchange exchange) throws IOException {
+        metrics.start(exchange);
         var response = http.responseOf(exchange);
+        if (ExecutorMode.isOverloaded()) {
+            response.addHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+            response.responseError(503, "Service unavailable: the server is overloaded.");
+            return;
+        }
+        if (isTooLarge(exchange)) {
+            response.addHeader("Connection", "close");
+            response.responseError(413, "Payload too large: the limit is " + settings.maxRequestBytes + " bytes.");
+            return;
+        }
         try {
             var path = exchange.getRequestURI().getPath();
-            if (path.startsWith("/api/")) {
-                var pathParts = listOf(path.split("/")).filter(theString.thatIsNotBlank()).skip(/*`api`*/1);
-                var isHandled = handleApi(pathParts, exchange);
+            if (path.equals(METRICS_PATH)) {
+                response.responseBytes(200, Metrics.CONTENT_TYPE, metrics.toPrometheus().getBytes(StandardCharsets.UTF_8));
+            } else if (path.startsWith(ApiRouter.API_PREFIX)) {
+                var isHandled = handleApi(path, exchange);
                 if (!isHandled) {
                     response.responseError(404, "Not found: " + path);
                 }
@@ -125,29 +230,69 @@ public class Server {
         } catch (IllegalArgumentException exception) {
             response.withError(400, exception);
         } catch (IOException exception) {
+            Metrics.recordResponse(exchange, 0, 0);
             throw exception;
         } catch (Exception exception) {
             response.withError(500, exception);
         }
     }
     
-    private void shutdown(HttpServer httpServer) {
+    /**
+     * The JDK server reads its connection settings from the system properties once (when the first server is created)
+     *   so the settings of the first started server apply to all servers in this JVM.
+     **/
+    private static void configureConnections(ServerSettings settings) {
+        setPositive("sun.net.httpserver.idleInterval",       settings.idleTimeoutSeconds);
+        setPositive("sun.net.httpserver.maxConnections",     settings.maxConnections);
+        setPositive("sun.net.httpserver.maxIdleConnections", settings.maxIdleConnections);
+        setPositive("sun.net.httpserver.maxReqHeaders",      settings.maxRequestHeaders);
+        setPositive("sun.net.httpserver.maxReqTime",         settings.readTimeoutSeconds);
+        setPositive("sun.net.httpserver.maxRspTime",         settings.writeTimeoutSeconds);
+    }
+    
+    private static void setPositive(String property, long value) {
+        if (value > 0) {
+            System.setProperty(property, String.valueOf(value));
+        }
+    }
+    
+    private static int idleTimeoutSecondsOf(ServerSettings settings) {
+        if (settings.idleTimeoutSeconds > 0)
+            return settings.idleTimeoutSeconds;
+        
+        var property = Long.getLong("sun.net.httpserver.idleInterval", DEFAULT_IDLE_TIMEOUT_SECONDS);
+        return (property > 0) ? property.intValue() : DEFAULT_IDLE_TIMEOUT_SECONDS;
+    }
+    
+    // The declared length is checked up front -- a chunked body is cut (and the connection closed) once it passes the limit.
+    private boolean isTooLarge(HttpExchange exchange) {
+        var maxBytes = settings.maxRequestBytes;
+        if (maxBytes <= 0)
+            return false;
+        
+        var length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null) {
+            try {
+                return Long.parseLong(length.trim()) > maxBytes;
+            } catch (NumberFormatException exception) {
+                return false;
+            }
+        }
+        exchange.setStreams(new LimitedInputStream(exchange.getRequestBody(), maxBytes), null);
+        return false;
+    }
+    
+    private void shutdown(HttpEngine engine) {
         new Thread(()->{
-            httpServer.stop(1);
+            changeFeeds.forEach(ChangeFeed::closeSubscriptions);
+            engine.stop(1);
             onStop.get().run();
         }).start();
     }
     
-    private boolean handleApi(List<String> paths, HttpExchange exchange) throws IOException {
-        var pathParts = FuncList.from(paths);
-        var firstPath = pathParts.first();
-        var tailPath  = pathParts.skip(1).toImmutableList();
-        
-        @SuppressWarnings({ "rawtypes", "unchecked" })
-        var isHandled = firstPath.map(apiHandlers::get)
-                      .map(f((ServiceHandler handler) -> handler.handle(tailPath, exchange)))
-                      .orElse(false);
-        return isHandled;
+    /** Route the API request to its service -- false if there is no such service (or path). */
+    boolean handleApi(String path, HttpExchange exchange) throws IOException {
+        return apiRouter.route(path, exchange);
     }
     
     private void handleFile(String path, HttpExchange exchange) throws IOException {
@@ -161,20 +306,33 @@ public class Server {
             path = path.substring(1);
         }
         
-        var pathExtension = path.replaceAll("^(.*)(\\.[^.]+)$", "$2");
-        var contentType   = extContentTypes.get(pathExtension);
-        var response      = http.responseOf(exchange);
+        var contentType = AssetCache.contentTypeOf(path);
+        var response    = http.responseOf(exchange);
         if (contentType == null) {
             response.responseError(401, "Not allowed: " + path);
+            return;
+        }
+        
+        var fingerprinted = assets.getFingerprinted(path);
+        var asset         = (fingerprinted != null) ? fingerprinted : assets.get(path);
+        if (asset == null) {
+            response.responseError(404, "File not found: " + path);
+            return;
+        }
+        
+        var isGzip = (asset.gzipBytes() != null) && Http.acceptsEncoding(exchange, "gzip");
+        var etag   = isGzip ? asset.gzipEtag : asset.etag;
+        response.addHeader("Vary",          "Accept-Encoding");
+        response.addHeader("ETag",          etag);
+        response.addHeader("Last-Modified", Http.httpDate(asset.lastModified));
+        response.addHeader("Cache-Control", (fingerprinted != null) ? IMMUTABLE_CACHE_CONTROL : "no-cache");
+        if (http.isNotModified(exchange, etag, asset.lastModified)) {
+            response.responseNotModified();
+        } else if (isGzip) {
+            response.addHeader("Content-Encoding", "gzip");
+            response.responseBytes(200, asset.contentType, asset.gzipBytes());
         } else {
-            var resource = Server.class.getClassLoader().getResourceAsStream(path);
-            if (resource != null) {
-                var buffer = new ByteArrayOutputStream();
-                resource.transferTo(buffer);
-                response.responseBytes(200, contentType, buffer.toByteArray());
-            } else {
-                response.responseError(404, "File not found: " + path);
-            }
+            response.responseFile(200, asset.contentType, asset.file, asset.bytes());
         }
     }
     
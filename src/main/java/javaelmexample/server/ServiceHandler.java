@@ -1,90 +1,406 @@
 package javaelmexample.server;
 
+import static nullablej.nullable.Nullable.nullable;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import com.sun.net.httpserver.HttpExchange;
 
 import functionalj.list.FuncList;
+import functionalj.map.FuncMap;
+import functionalj.promise.DeferAction;
+import functionalj.promise.Promise;
+import functionalj.types.IData;
 
 /**
  * This class acts as an adapter between HTTP to REST by handling the HTTP request and call associated REST methods.
  **/
 public class ServiceHandler<DATA extends RestData> { 
     
+    /** The response header holding the cursor for the next page of the list. */
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    
+    /** The query parameters of the list that are not filters. */
+    public static final Set<String> LIST_PARAMETERS = Set.of("limit", "cursor", "fields");
+    
+    /** The path (under the service) of the bulk requests -- `POST`, `PUT` or `DELETE` with many items in the body. */
+    public static final String BULK_PATH = "_bulk";
+    
+    /** The path (under the service) of the changes as Server-Sent Events -- see {@link RestService#changes()}. */
+    public static final String CHANGES_PATH = "_changes";
+    
+    /** The milliseconds without a change after which a comment is sent on the event stream. */
+    public static final long EVENT_HEARTBEAT_MILLIS = 15_000;
+    
+    /** The number of items of the whole list up to which its response is cached (see {@link RestService#version()}). */
+    public static final int MAX_CACHED_LIST_SIZE = 100_000;
+    
+    /** The number of items given to the service at a time for the bulk requests. */
+    public static final int BULK_CHUNK_SIZE = 1024;
+    
+    /** The actions of the requests. */
+    static enum Action {
+        LIST, GET, POST, PUT, DELETE, BULK_POST, BULK_PUT, BULK_DELETE, CHANGES
+    }
+    
+    // The kinds of the paths -- the rows of ACTIONS.
+    private static final int COLLECTION = 0;
+    private static final int ITEM       = 1;
+    private static final int BULK       = 2;
+    private static final int FEED       = 3;
+    
+    // The actions by the kind of the path and the method (see Http.METHODS) -- null if the method is not allowed.
+    // `GET` of the bulk path is still the `GET` of the item with that ID.
+    private static final Action[][] ACTIONS = {
+        //                GET             POST              PUT              DELETE              HEAD  OTHER
+        /* COLLECTION */ { Action.LIST,    Action.POST,      null,            null,               null, null },
+        /* ITEM       */ { Action.GET,     null,             Action.PUT,      Action.DELETE,      null, null },
+        /* BULK       */ { Action.GET,     Action.BULK_POST, Action.BULK_PUT, Action.BULK_DELETE, null, null },
+        /* FEED       */ { Action.CHANGES, null,             null,            null,               null, null },
+    };
+    
+    // The response of the whole list of a version of the service.
+    private static final class CachedList {
+        
+        final long      version;
+        final JsonBytes json;
+        
+        CachedList(long version, JsonBytes json) {
+            this.version = version;
+            this.json    = json;
+        }
+    }
+    
     private final RestService<DATA> service;
     private final Http              http;
+    private final long              timeoutMillis;
+    
+    // The versions restart with the server so the ETags have the start time of the handler in them.
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    
+    private volatile CachedList cachedList = null;
     
     public ServiceHandler(RestService<DATA> service) {
-        this.service = service;
-        this.http    = new Http();
+        this(service, Http.timeout*1000L);
     }
     
+    /**
+     * Create a handler for the service.
+     * 
+     * @param timeoutMillis  the deadline for each request -- the request is answered with `504` once passed.
+     */
+    public ServiceHandler(RestService<DATA> service, long timeoutMillis) {
+        this.service       = service;
+        this.http          = new Http(codecsOf(service));
+        this.timeoutMillis = timeoutMillis;
+    }
+    
+    private static Map<Class<?>, JsonCodec<?>> codecsOf(RestService<?> service) {
+        var codec = service.dataCodec();
+        return (codec != null) ? Map.<Class<?>, JsonCodec<?>>of(service.dataClass(), codec) : Map.of();
+    }
+    
+    /**
+     * Handle the request of the collection (when the item ID is null), an item, the bulk ({@link #BULK_PATH})
+     *   or the changes ({@link #CHANGES_PATH}).
+     * The action is looked up from {@link #ACTIONS} by the kind of the path and the method.
+     * 
+     * @return  true as the request is always responded to -- with `405` if the method is not allowed.
+     */
     public boolean handle(
-                    FuncList<String> paths, 
-                    HttpExchange     exchange) 
+                    String       itemId, 
+                    HttpExchange exchange) 
                     throws IOException {
         var response = http.responseOf(exchange);
         var method   = exchange.getRequestMethod();
+        var kind     = (itemId == null) ? COLLECTION : BULK_PATH.equals(itemId) ? BULK : CHANGES_PATH.equals(itemId) ? FEED : ITEM;
+        var action   = ACTIONS[kind][Http.methodIndexOf(method)];
         try {
-            var serviceData = service.dataClass();
+            if (action == null)
+                throw new UnsupportedHttpMethodException();
             
-            if (method.equals("GET")) {
-                if (paths.isEmpty()) {
-                    var result = service.list().getResult();
-                    response.withResult(result.get());
-                    return true;
+            var serviceData = service.dataClass();
+            switch (action) {
+                case LIST: {
+                    var query = listQueryOf(http.extractQuery(exchange));
+                    if (query.isAll() && (query.fields == null) && (service.version() >= 0)) {
+                        handleVersionedList(exchange, response);
+                        break;
+                    }
+                    var items = query.isAll() ? service.list() : service.list(query);
+                    var page  = items
+                              .peek(list -> addNextCursor(query, list, response))
+                              .map (list -> project(query.fields, list));
+                    response.withPromise(null, page, timeoutMillis);
+                    break;
                 }
-                if (paths.size() == 1) {
-                    var itemId = paths.first().get();
-                    var item   = service.get(itemId);
-                    response.withPromise(itemId, item);
-                    return true;
+                case GET: {
+                    var item = withETag(service.get(itemId), response);
+                    response.withPromise(itemId, item, timeoutMillis);
+                    break;
                 }
-            }
-            if (method.equals("POST")) {
-                if (paths.size() == 0) {
+                case POST: {
                     var inItem  = http.extractBody(exchange, serviceData);
                     var outItem = service.post(inItem);
-                    response.withPromise(null, outItem);
-                    return true;
+                    response.withPromise(null, outItem, timeoutMillis);
+                    break;
                 }
-            }
-            if (method.equals("PUT")) {
-                if (paths.size() == 1) {
-                    var itemId  = paths.first().get();
+                case PUT: {
                     var inItem  = http.extractBody(exchange, serviceData);
-                    var outItem = service.put(itemId, inItem);
-                    response.withPromise(itemId, outItem);
-                    return true;
+                    var outItem = withETag(service.put(itemId, inItem, expectedVersionOf(exchange)), response);
+                    response.withPromise(itemId, outItem, timeoutMillis);
+                    break;
                 }
-            }
-            if (method.equals("DELETE")) {
-                if (paths.size() == 1) {
-                    var itemId = paths.first().get();
-                    var item   = service.delete(itemId);
-                    response.withPromise(itemId, item);
-                    return true;
+                case DELETE: {
+                    var item = service.delete(itemId, expectedVersionOf(exchange));
+                    response.withPromise(itemId, item, timeoutMillis);
+                    break;
                 }
+                case BULK_POST:   handleBulk(exchange, serviceData,  service::postAll,   response); break;
+                case BULK_PUT:    handleBulk(exchange, serviceData,  service::putAll,    response); break;
+                case BULK_DELETE: handleBulk(exchange, String.class, service::deleteAll, response); break;
+                case CHANGES:     handleChanges(exchange, response);                               break;
             }
         } catch (UnsupportedHttpMethodException e) {
-            methodNotSupported(method, paths, response);
-            return true;
+            methodNotSupported(method, itemId, response);
         } catch (IllegalArgumentException exception) {
             response.withError(400, exception);
-            return true;
+        } catch (PreconditionFailedException exception) {
+            response.withError(412, exception);
         } catch (IOException exception) {
             throw exception;
         } catch (Exception exception) {
             response.withError(500, exception);
             exception.printStackTrace();
-            return true;
         }
-        methodNotSupported(method, paths, response);
-        return false;
+        return true;
+    }
+    
+    // The ETag is added once the data is there -- without chaining another promise if it is already there (as usual).
+    private Promise<DATA> withETag(Promise<DATA> promise, Response response) {
+        if (!promise.isDone())
+            return promise.peek(data -> addETag(data, response));
+        
+        addETag(promise.getCurrentResult().orElse(null), response);
+        return promise;
+    }
+    
+    // The version of the data is its ETag -- strong as `If-Match` only matches the strong ones.
+    private void addETag(DATA data, Response response) {
+        var version = (data == null) ? null : service.versionOf(data);
+        if (version != null) {
+            response.addHeader("ETag", "\"" + version + "\"");
+        }
+    }
+    
+    /**
+     * @return  the version expected by `If-Match` (see {@link RestService#put(String, RestData, String)}) -- null if none.
+     *          Only one entity tag (or `*`) is supported.
+     **/
+    static String expectedVersionOf(HttpExchange exchange) {
+        var ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch == null)
+            return null;
+        
+        var tag = ifMatch.trim();
+        if (tag.equals(RestService.ANY_VERSION))
+            return tag;
+        if (tag.startsWith("W/"))
+            throw new PreconditionFailedException("A weak entity tag never matches: " + tag);
+        if ((tag.length() < 2) || !tag.startsWith("\"") || !tag.endsWith("\"") || (tag.indexOf(',') >= 0))
+            throw new IllegalArgumentException("Invalid If-Match (only one entity tag is supported): " + ifMatch);
+        
+        return tag.substring(1, tag.length() - 1);
+    }
+    
+    /**
+     * Respond with the whole list of the current version of the service -- the version is its (weak) ETag.
+     * A client that has the version already gets `304`; otherwise, the list encoded for the version is sent (if cached)
+     *   so the list is only encoded once for each version (and compressed once for each encoding).
+     **/
+    private void handleVersionedList(HttpExchange exchange, Response response) throws IOException {
+        var version = service.version();
+        var tag     = "\"" + epoch + "-" + version + "\"";
+        // Weak as the same version is sent either compressed or not.
+        response.addHeader("ETag", "W/" + tag);
+        response.addHeader("Vary", "Accept-Encoding");
+        // Only `If-None-Match` is checked (weakly) -- the list has no modified time.
+        if (http.isNotModified(exchange, tag, Long.MAX_VALUE)) {
+            response.responseNotModified();
+            return;
+        }
+        
+        var cached = cachedList;
+        if ((cached != null) && (cached.version == version)) {
+            Metrics.recordPromiseWait(exchange, 0);
+            response.withResult(cached.json);
+            return;
+        }
+        
+        // The list may have changes newer than the version (but no older) -- it is only cached if there is none.
+        var list = service.list().map(items -> {
+            if (items.size() > MAX_CACHED_LIST_SIZE)
+                return (Object)items;
+            
+            var json = new JsonBytes(Http.toJsonBytes(http.codecs, items));
+            if (service.version() == version) {
+                cachedList = new CachedList(version, json);
+            }
+            return json;
+        });
+        response.withPromise(null, list, timeoutMillis);
+    }
+    
+    /**
+     * Read the items from the body and give them to the service in chunks as they are read so a large body is never held whole.
+     * The response is the results of all the items (in the order of the items) including the ones that cannot be read.
+     **/
+    private <ITEM> void handleBulk(
+                    HttpExchange                                            exchange,
+                    Class<ITEM>                                             itemClass,
+                    Function<FuncList<ITEM>, Promise<FuncList<BulkResult>>> action,
+                    Response                                                response)
+                    throws IOException {
+        var chunkResults = new ArrayList<Promise<FuncList<BulkResult>>>();
+        var errors       = new ArrayList<BulkResult>();
+        var chunk        = new ArrayList<ITEM>();
+        var chunkIndexes = new ArrayList<Integer>();
+        var itemCount    = new AtomicInteger(0);
+        http.extractBodyItems(exchange, itemClass, (item, error) -> {
+            var index = itemCount.getAndIncrement();
+            if (error != null) {
+                errors.add(new BulkResult(index, 400, null, error.getMessage()));
+                return;
+            }
+            chunk.add(item);
+            chunkIndexes.add(index);
+            if (chunk.size() >= BULK_CHUNK_SIZE) {
+                chunkResults.add(applyChunk(chunk, chunkIndexes, action));
+            }
+        });
+        if (!chunk.isEmpty()) {
+            chunkResults.add(applyChunk(chunk, chunkIndexes, action));
+        }
+        
+        var pending   = DeferAction.<FuncList<BulkResult>>createNew().start();
+        var remaining = new AtomicInteger(chunkResults.size() + 1);
+        var results   = new ConcurrentLinkedQueue<BulkResult>(errors);
+        Runnable done = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                pending.complete(FuncList.from(results).sortedBy(BulkResult::index).toImmutableList());
+            }
+        };
+        for (var chunkResult : chunkResults) {
+            chunkResult.onComplete(result -> {
+                if (result.isPresent()) {
+                    results.addAll(result.get());
+                } else {
+                    pending.fail(new RuntimeException("Bulk request failed.", result.getException()));
+                }
+                done.run();
+            });
+        }
+        done.run();
+        response.withPromise(null, pending.getPromise(), timeoutMillis);
+    }
+    
+    /**
+     * Stream the changes of the service from after the `Last-Event-ID` (or the `lastEventId` query parameter for the clients
+     *   that cannot set the header) -- only the new changes if neither is given.
+     **/
+    private void handleChanges(HttpExchange exchange, Response response) throws IOException {
+        var feed = service.changes();
+        if (feed == null) {
+            response.responseError(404, "Not found: " + CHANGES_PATH);
+            return;
+        }
+        
+        var lastEventId  = nullable(exchange.getRequestHeaders().getFirst("Last-Event-ID")).orElseGet(() -> http.extractQuery(exchange).get("lastEventId"));
+        var subscription = feed.subscribe(lastEventId);
+        if (subscription == null) {
+            response.addHeader("Retry-After", String.valueOf(Server.RETRY_AFTER_SECONDS));
+            response.responseError(503, "Service unavailable: too many subscribers.");
+            return;
+        }
+        response.withEvents(subscription, EVENT_HEARTBEAT_MILLIS);
+    }
+    
+    // Give the chunk to the service and map the results back to the indexes in the request -- the chunk is then cleared for reuse.
+    private static <ITEM> Promise<FuncList<BulkResult>> applyChunk(
+                    List<ITEM>                                              chunk,
+                    List<Integer>                                           chunkIndexes,
+                    Function<FuncList<ITEM>, Promise<FuncList<BulkResult>>> action) {
+        var items   = FuncList.from(new ArrayList<>(chunk));
+        var indexes = List.copyOf(chunkIndexes);
+        chunk.clear();
+        chunkIndexes.clear();
+        
+        Promise<FuncList<BulkResult>> results;
+        try {
+            results = action.apply(items);
+        } catch (RuntimeException exception) {
+            results = Promise.ofException(exception);
+        }
+        return results.map(list -> list.map(result -> result.withIndex(indexes.get(result.index))).toImmutableList());
+    }
+    
+    static ListQuery listQueryOf(Map<String, String> params) {
+        var limit  = params.get("limit");
+        var cursor = params.get("cursor");
+        var fields = params.get("fields");
+        var query  = new ListQuery();
+        if (limit != null) {
+            if (!limit.matches("^[0-9]+$") || (Integer.parseInt(limit) <= 0))
+                throw new IllegalArgumentException("Invalid limit: " + limit);
+            
+            query = query.withLimit(Integer.parseInt(limit));
+        }
+        if ((cursor != null) && !cursor.isEmpty()) {
+            query = query.withCursor(cursor);
+        }
+        if ((fields != null) && !fields.isEmpty()) {
+            query = query.withFields(FuncList.of(fields.split(",")).map(String::trim).filter(field -> !field.isEmpty()));
+        }
+        
+        var filters = FuncMap.from(params).filter((String name) -> !LIST_PARAMETERS.contains(name)).toImmutableMap();
+        if (!filters.isEmpty()) {
+            query = query.withFilters(filters);
+        }
+        return query;
+    }
+    
+    // The cursor for the next page is only given when the page is full -- otherwise, there is no next page.
+    private void addNextCursor(ListQuery query, FuncList<DATA> list, Response response) {
+        if ((query.limit > 0) && (list.size() >= query.limit)) {
+            list.last().map(RestData::id).ifPresent(lastId -> response.addHeader(NEXT_CURSOR_HEADER, lastId));
+        }
+    }
+    
+    private static FuncList<?> project(FuncList<String> fields, FuncList<? extends RestData> list) {
+        if (fields == null)
+            return list;
+        
+        return list.map(item -> {
+            if (!(item instanceof IData))
+                return item;
+            
+            var map = new LinkedHashMap<String, Object>(((IData)item).__toMap());
+            map.keySet().retainAll(fields);
+            return map;
+        })
+        .toImmutableList();
     }
     
-    private void methodNotSupported(String method, FuncList<String> paths, Response response) throws IOException {
-        var path = paths.join("/");
+    private void methodNotSupported(String method, String itemId, Response response) throws IOException {
+        var path = (itemId == null) ? "" : itemId;
         response.responseError(405, "HTTP Error 405 – Method Not Allowed: " + method + ":" + path);
     }
     
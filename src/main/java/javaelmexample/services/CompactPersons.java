@@ -0,0 +1,171 @@
+package javaelmexample.services;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The compact in-memory form of {@link Person} -- each person is kept as one byte array and a {@link Person} is made
+ *   from it when read.
+ *
+ * The last names and the cape colors (few distinct values shared by many persons) are kept as codes to the dictionaries
+ *   while the first names and the nicknames are packed as UTF-8.
+ * The ID is not in the record as it is the key the record is kept with.
+ *
+ * The record is the cape tag (followed by the color for {@link Cape.Color}), the last name, the first name and the nickname.
+ * Each string starts with a variable-length number: 0 for null or the length plus one followed by the UTF-8 bytes.
+ *   For the ones with a dictionary (the last name and the color), that number is shifted left
+ *   and an odd number is the dictionary code (shifted left and plus one) instead.
+ **/
+final class CompactPersons {
+    
+    /** The number of the distinct values each dictionary keeps -- the rest are packed in the records. */
+    public static final int DICTIONARY_CAPACITY = 1 << 16;
+    
+    private static final byte CAPE_NULL  = 0;
+    private static final byte CAPE_NONE  = 1;
+    private static final byte CAPE_COLOR = 2;
+    
+    private final ValueDictionary<String> lastNames  = new ValueDictionary<>(DICTIONARY_CAPACITY);
+    private final ValueDictionary<String> capeColors = new ValueDictionary<>(DICTIONARY_CAPACITY);
+    
+    /** @return  the record of the person (without its ID). */
+    byte[] encode(Person person) {
+        var capeColor = (person.cape instanceof Cape.Color) ? ((Cape.Color)person.cape).color() : null;
+        var colorCode = capeColors.codeOf(capeColor);
+        var lastCode  = lastNames .codeOf(person.lastName);
+        var colorText = (colorCode == ValueDictionary.NO_CODE) ? utf8Of(capeColor)       : null;
+        var lastText  = (lastCode  == ValueDictionary.NO_CODE) ? utf8Of(person.lastName) : null;
+        var firstText = utf8Of(person.firstName);
+        var nickText  = utf8Of(person.nickName);
+        
+        var size = 1
+                 + ((person.cape instanceof Cape.Color) ? sizeOf(colorCode, colorText) : 0)
+                 + sizeOf(lastCode, lastText)
+                 + sizeOf(firstText)
+                 + sizeOf(nickText);
+        var record = new byte[size];
+        var offset = 0;
+        if (person.cape instanceof Cape.Color) {
+            record[offset++] = CAPE_COLOR;
+            offset = write(record, offset, colorCode, colorText);
+        } else {
+            record[offset++] = (person.cape instanceof Cape.None) ? CAPE_NONE : CAPE_NULL;
+        }
+        offset = write(record, offset, lastCode, lastText);
+        offset = write(record, offset, firstText);
+        offset = write(record, offset, nickText);
+        return record;
+    }
+    
+    /** @return  the person of the record. */
+    Person decode(String id, byte[] record) {
+        var reader = new Reader(record);
+        var tag    = reader.record[reader.offset++];
+        var cape   = (tag == CAPE_COLOR) ? Cape.Color(reader.read(capeColors))
+                   : (tag == CAPE_NONE)  ? Cape.None()
+                   : null;
+        var lastName  = reader.read(lastNames);
+        var firstName = reader.read();
+        var nickName  = reader.read();
+        return new Person(id, firstName, lastName, nickName, cape);
+    }
+    
+    //== Writing ==
+    
+    private static byte[] utf8Of(String text) {
+        return (text == null) ? null : text.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static int sizeOf(byte[] text) {
+        return (text == null) ? 1 : (sizeOfNumber(text.length + 1) + text.length);
+    }
+    
+    private static int sizeOf(int code, byte[] text) {
+        if (code != ValueDictionary.NO_CODE)
+            return sizeOfNumber((code << 1) | 1);
+        
+        return (text == null) ? 1 : (sizeOfNumber((text.length + 1) << 1) + text.length);
+    }
+    
+    private static int sizeOfNumber(int number) {
+        var size = 1;
+        while ((number >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+    
+    private static int write(byte[] record, int offset, byte[] text) {
+        if (text == null)
+            return writeNumber(record, offset, 0);
+        
+        offset = writeNumber(record, offset, text.length + 1);
+        System.arraycopy(text, 0, record, offset, text.length);
+        return offset + text.length;
+    }
+    
+    private static int write(byte[] record, int offset, int code, byte[] text) {
+        if (code != ValueDictionary.NO_CODE)
+            return writeNumber(record, offset, (code << 1) | 1);
+        if (text == null)
+            return writeNumber(record, offset, 0);
+        
+        offset = writeNumber(record, offset, (text.length + 1) << 1);
+        System.arraycopy(text, 0, record, offset, text.length);
+        return offset + text.length;
+    }
+    
+    // Seven bits a byte, the lowest first -- the highest bit is set when more bytes follow.
+    private static int writeNumber(byte[] record, int offset, int number) {
+        while ((number & ~0x7F) != 0) {
+            record[offset++] = (byte)((number & 0x7F) | 0x80);
+            number >>>= 7;
+        }
+        record[offset++] = (byte)number;
+        return offset;
+    }
+    
+    //== Reading ==
+    
+    // Short-lived (and usually not even allocated as it does not escape).
+    private static final class Reader {
+        
+        final byte[] record;
+        int          offset = 0;
+        
+        Reader(byte[] record) {
+            this.record = record;
+        }
+        
+        String read() {
+            var number = readNumber();
+            return (number == 0) ? null : readText(number - 1);
+        }
+        
+        String read(ValueDictionary<String> dictionary) {
+            var number = readNumber();
+            if (number == 0)
+                return null;
+            if ((number & 1) != 0)
+                return dictionary.valueOf(number >>> 1);
+            
+            return readText((number >>> 1) - 1);
+        }
+        
+        private String readText(int length) {
+            var text = new String(record, offset, length, StandardCharsets.UTF_8);
+            offset += length;
+            return text;
+        }
+        
+        private int readNumber() {
+            var number = 0;
+            for (int shift = 0; ; shift += 7) {
+                var b = record[offset++];
+                number |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    return number;
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,62 @@
+package javaelmexample.services;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The ways the IDs of the new data are made -- both are UUIDs (in the same text form) so they can be mixed in the same data.
+ */
+public enum IdMode {
+    
+    /**
+     * Time-ordered UUIDs (version 7) -- the IDs sort by the time they are made, so the new data goes to the end of the list.
+     *
+     * The first 48 bits are the Unix time in milliseconds followed by a 12-bit counter (started randomly each millisecond)
+     *   and 62 random bits. The counter makes the IDs from the same thread always increase -- when it runs out,
+     *   the time is moved ahead by a millisecond.
+     * All the state is per thread (and the random bits come from {@link ThreadLocalRandom}) so the threads never contend.
+     */
+    TIME_ORDERED {
+        @Override
+        public String nextId() {
+            var state  = timeOrderedState.get();
+            var millis = System.currentTimeMillis();
+            if (millis > state[0]) {
+                state[0] = millis;
+                // Start low enough that the counter can go on for a while within the millisecond.
+                state[1] = ThreadLocalRandom.current().nextInt(COUNTER_LIMIT/2);
+            } else if (++state[1] >= COUNTER_LIMIT) {
+                // The clock went back or too many IDs in a millisecond -- borrow from the next millisecond.
+                state[0]++;
+                state[1] = 0;
+            }
+            var mostSigBits  = (state[0] << 16) | 0x7000L | state[1];
+            var leastSigBits = (ThreadLocalRandom.current().nextLong() >>> 2) | 0x8000_0000_0000_0000L;
+            return new UUID(mostSigBits, leastSigBits).toString();
+        }
+    },
+    
+    /** Random UUIDs (version 4) -- from the shared {@link java.security.SecureRandom}. */
+    RANDOM {
+        @Override
+        public String nextId() {
+            return UUID.randomUUID().toString();
+        }
+    };
+    
+    // The counter within a millisecond is 12 bits.
+    private static final int COUNTER_LIMIT = 1 << 12;
+    
+    // The last time (in milliseconds) and the counter of the thread.
+    private static final ThreadLocal<long[]> timeOrderedState = ThreadLocal.withInitial(() -> new long[2]);
+    
+    /** @return  a new ID -- unique to all the other IDs. */
+    public abstract String nextId();
+    
+    /** @return  the mode with the given name (case insensitive) -- `time` is the short for {@link #TIME_ORDERED}. */
+    public static IdMode from(String name) {
+        var modeName = name.trim().toUpperCase();
+        return modeName.equals("TIME") ? TIME_ORDERED : valueOf(modeName);
+    }
+    
+}
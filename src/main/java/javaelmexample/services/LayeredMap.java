@@ -0,0 +1,161 @@
+package javaelmexample.services;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * This class is a sorted map (by String key) that is made of layers so it can be branched in constant time.
+ *
+ * Only the changes are kept in a layer (a removal is kept as a tombstone) and the rest are read from the parent layers.
+ * Once a layer is branched, it must no longer be changed -- it becomes the immutable base of the branches.
+ * A branch can be discarded (e.g., to go back to the base) by simply dropping the reference to it.
+ *
+ * A layer is thread safe for concurrent reads and writes, but the changes to the same key must not be concurrent.
+ **/
+public final class LayeredMap<VALUE> {
+    
+    /** The number of layers after which {@link #compacted()} flattens the map into one. */
+    public static final int MAX_DEPTH = 8;
+    
+    private static final Object TOMBSTONE = new Object();
+    
+    private final LayeredMap<VALUE>                      parent;
+    private final ConcurrentNavigableMap<String, Object> changes = new ConcurrentSkipListMap<>();
+    private final AtomicInteger                          size;
+    private final int                                    depth;
+    
+    /** Create an empty map. */
+    public LayeredMap() {
+        this.parent = null;
+        this.size   = new AtomicInteger(0);
+        this.depth  = 1;
+    }
+    
+    private LayeredMap(LayeredMap<VALUE> parent) {
+        this.parent = parent;
+        this.size   = new AtomicInteger(parent.size());
+        this.depth  = parent.depth + 1;
+    }
+    
+    /** @return  a new (empty) layer on top of this one -- this map MUST NOT be changed after this. */
+    public LayeredMap<VALUE> branch() {
+        return new LayeredMap<>(this);
+    }
+    
+    /** @return  this map or, if it has too many layers, a single layer copy of it. */
+    public LayeredMap<VALUE> compacted() {
+        if (depth < MAX_DEPTH)
+            return this;
+        
+        var flatten = new LayeredMap<VALUE>();
+        entries(null).forEach(entry -> flatten.put(entry.getKey(), entry.getValue()));
+        return flatten;
+    }
+    
+    /** @return  the number of entries. */
+    public int size() {
+        return size.get();
+    }
+    
+    /** @return  the value of the key or null if there is none. */
+    @SuppressWarnings("unchecked")
+    public VALUE get(String key) {
+        for (var layer = this; layer != null; layer = layer.parent) {
+            var value = layer.changes.get(key);
+            if (value != null)
+                return (value == TOMBSTONE) ? null : (VALUE)value;
+        }
+        return null;
+    }
+    
+    /** @return  the previous value of the key. */
+    public VALUE put(String key, VALUE value) {
+        var oldValue = get(key);
+        changes.put(key, value);
+        if (oldValue == null) {
+            size.incrementAndGet();
+        }
+        return oldValue;
+    }
+    
+    /** @return  the removed value of the key. */
+    public VALUE remove(String key) {
+        var oldValue = get(key);
+        if (parent == null) {
+            changes.remove(key);
+        } else if (oldValue != null) {
+            changes.put(key, TOMBSTONE);
+        }
+        if (oldValue != null) {
+            size.decrementAndGet();
+        }
+        return oldValue;
+    }
+    
+    /** @return  the values in the key order -- after the given key if not null. */
+    public Stream<VALUE> values(String afterKey) {
+        return entries(afterKey).map(Map.Entry::getValue);
+    }
+    
+    /** @return  the entries in the key order -- after the given key if not null. */
+    @SuppressWarnings("unchecked")
+    public Stream<Map.Entry<String, VALUE>> entries(String afterKey) {
+        // A single layer has no tombstone so its map can be used directly.
+        if (parent == null) {
+            var map = (afterKey == null) ? changes : changes.tailMap(afterKey, false);
+            return map.entrySet().stream().map(entry -> (Map.Entry<String, VALUE>)(Map.Entry<String, ?>)entry);
+        }
+        
+        // A k-way merge of the layers (the top one first) -- the entry of the top-most layer with the key wins.
+        var iterators = new ArrayList<Iterator<Map.Entry<String, Object>>>(depth);
+        var heads     = new ArrayList<Map.Entry<String, Object>>(depth);
+        for (var layer = this; layer != null; layer = layer.parent) {
+            var map      = (afterKey == null) ? layer.changes : layer.changes.tailMap(afterKey, false);
+            var iterator = map.entrySet().iterator();
+            iterators.add(iterator);
+            heads.add(iterator.hasNext() ? iterator.next() : null);
+        }
+        
+        var spliterator = new Spliterators.AbstractSpliterator<Map.Entry<String, VALUE>>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super Map.Entry<String, VALUE>> action) {
+                while (true) {
+                    Map.Entry<String, Object> next = null;
+                    for (var head : heads) {
+                        if ((head != null) && ((next == null) || (head.getKey().compareTo(next.getKey()) < 0))) {
+                            next = head;
+                        }
+                    }
+                    if (next == null)
+                        return false;
+                    
+                    // The same key in the lower layers is hidden by it.
+                    var key = next.getKey();
+                    for (int i = 0; i < heads.size(); i++) {
+                        var head = heads.get(i);
+                        if ((head != null) && head.getKey().equals(key)) {
+                            var iterator = iterators.get(i);
+                            heads.set(i, iterator.hasNext() ? iterator.next() : null);
+                        }
+                    }
+                    // The entries of the skip lists are immutable snapshots so they are given as is.
+                    if (next.getValue() != TOMBSTONE) {
+                        action.accept((Map.Entry<String, VALUE>)(Map.Entry<String, ?>)next);
+                        return true;
+                    }
+                }
+            }
+        };
+        return StreamSupport.stream(spliterator, false);
+    }
+    
+}
@@ -0,0 +1,123 @@
+package javaelmexample.services;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The compact binary format of {@link Person} used for the journal and the snapshot.
+ * 
+ * Each string is written as its UTF-8 length (-1 for null) followed by the bytes,
+ *   and the cape is written as a tag byte followed by its color (for {@link Cape.Color}).
+ **/
+public class PersonBinary {
+    
+    private static final byte CAPE_NULL  = 0;
+    private static final byte CAPE_NONE  = 1;
+    private static final byte CAPE_COLOR = 2;
+    
+    private PersonBinary() {
+    }
+    
+    /** Write the person. */
+    public static void writePerson(DataOutput output, Person person) throws IOException {
+        writeString(output, person.id);
+        writeString(output, person.firstName);
+        writeString(output, person.lastName);
+        writeString(output, person.nickName);
+        writeCape  (output, person.cape);
+    }
+    
+    /** Read a person. */
+    public static Person readPerson(DataInput input) throws IOException {
+        var id        = readString(input);
+        var firstName = readString(input);
+        var lastName  = readString(input);
+        var nickName  = readString(input);
+        var cape      = readCape  (input);
+        return new Person(id, firstName, lastName, nickName, cape);
+    }
+    
+    /** Read a person from the buffer (e.g., a memory-mapped file). */
+    public static Person readPerson(ByteBuffer buffer) {
+        var id        = readString(buffer);
+        var firstName = readString(buffer);
+        var lastName  = readString(buffer);
+        var nickName  = readString(buffer);
+        var cape      = readCape  (buffer);
+        return new Person(id, firstName, lastName, nickName, cape);
+    }
+    
+    /** Write a nullable string. */
+    public static void writeString(DataOutput output, String text) throws IOException {
+        if (text == null) {
+            output.writeInt(-1);
+        } else {
+            var bytes = text.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+    
+    /** Read a nullable string. */
+    public static String readString(DataInput input) throws IOException {
+        var length = input.readInt();
+        if (length < 0)
+            return null;
+        
+        var bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /** Read a nullable string from the buffer. */
+    public static String readString(ByteBuffer buffer) {
+        var length = buffer.getInt();
+        if (length < 0)
+            return null;
+        
+        if (buffer.hasArray()) {
+            var text = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return text;
+        }
+        
+        var bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static void writeCape(DataOutput output, Cape cape) throws IOException {
+        if (cape instanceof Cape.Color) {
+            output.writeByte(CAPE_COLOR);
+            writeString(output, ((Cape.Color)cape).color());
+        } else if (cape instanceof Cape.None) {
+            output.writeByte(CAPE_NONE);
+        } else {
+            output.writeByte(CAPE_NULL);
+        }
+    }
+    
+    private static Cape readCape(DataInput input) throws IOException {
+        var tag = input.readByte();
+        switch (tag) {
+            case CAPE_COLOR: return Cape.Color(readString(input));
+            case CAPE_NONE:  return Cape.None();
+            case CAPE_NULL:  return null;
+            default:         throw new IOException("Unknown cape tag: " + tag);
+        }
+    }
+    
+    private static Cape readCape(ByteBuffer buffer) {
+        var tag = buffer.get();
+        switch (tag) {
+            case CAPE_COLOR: return Cape.Color(readString(buffer));
+            case CAPE_NONE:  return Cape.None();
+            case CAPE_NULL:  return null;
+            default:         throw new IllegalStateException("Unknown cape tag: " + tag);
+        }
+    }
+    
+}
@@ -0,0 +1,128 @@
+package javaelmexample.services;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import javaelmexample.server.JsonCodec;
+
+/**
+ * The JSON codec for {@link Person} (and its {@link Cape}).
+ * 
+ * The format is the same as the map-based one generated for the struct: null fields are omitted and
+ *   the choice type is tagged with `__tagged`.
+ **/
+public class PersonCodec implements JsonCodec<Person> {
+    
+    /** The name of the field holding the choice tag. */
+    public static final String TAG_FIELD = "__tagged";
+    
+    @Override
+    public void write(JsonWriter writer, Person person) throws IOException {
+        writer.beginObject();
+        writeString(writer, "id",        person.id);
+        writeString(writer, "firstName", person.firstName);
+        writeString(writer, "lastName",  person.lastName);
+        writeString(writer, "nickName",  person.nickName);
+        if (person.cape != null) {
+            writer.name("cape");
+            writeCape(writer, person.cape);
+        }
+        writer.endObject();
+    }
+    
+    @Override
+    public Person read(JsonReader reader) throws IOException {
+        String id        = null;
+        String firstName = null;
+        String lastName  = null;
+        String nickName  = null;
+        Cape   cape      = null;
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            var name = reader.nextName();
+            switch (name) {
+                case "id":        id        = readString(reader); break;
+                case "firstName": firstName = readString(reader); break;
+                case "lastName":  lastName  = readString(reader); break;
+                case "nickName":  nickName  = readString(reader); break;
+                case "cape":      cape      = readCape(reader);   break;
+                default:          reader.skipValue();
+            }
+        }
+        reader.endObject();
+        
+        requireField("firstName", firstName);
+        requireField("lastName",  lastName);
+        requireField("cape",      cape);
+        return new Person(id, firstName, lastName, nickName, cape);
+    }
+    
+    /** Write the cape as JSON. */
+    public static void writeCape(JsonWriter writer, Cape cape) throws IOException {
+        writer.beginObject();
+        if (cape instanceof Cape.Color) {
+            writeString(writer, "color", ((Cape.Color)cape).color());
+            writeString(writer, TAG_FIELD, "Color");
+        } else {
+            writeString(writer, TAG_FIELD, "None");
+        }
+        writer.endObject();
+    }
+    
+    /** Read the cape from JSON. */
+    public static Cape readCape(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        
+        String tag   = null;
+        String color = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            var name = reader.nextName();
+            switch (name) {
+                case TAG_FIELD: tag   = readString(reader); break;
+                case "color":   color = readString(reader); break;
+                default:        reader.skipValue();
+            }
+        }
+        reader.endObject();
+        
+        if ("Color".equals(tag)) {
+            requireField("cape.color", color);
+            return Cape.Color(color);
+        }
+        if ("None".equals(tag)) {
+            return Cape.None();
+        }
+        throw new IllegalArgumentException(format("Unknown cape: %s=%s", TAG_FIELD, tag));
+    }
+    
+    private static void writeString(JsonWriter writer, String name, String value) throws IOException {
+        if (value != null) {
+            writer.name(name).value(value);
+        }
+    }
+    
+    private static String readString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+    
+    private static void requireField(String name, Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Missing required field: " + name);
+        }
+    }
+    
+}
@@ -0,0 +1,473 @@
+package javaelmexample.services;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import functionalj.promise.DeferAction;
+import functionalj.promise.PendingAction;
+import functionalj.promise.Promise;
+
+/**
+ * This class persists the changes to the persons in an append-only journal (write-ahead log) with periodic snapshots.
+ *
+ * The changes are appended by a single writer thread that writes all the waiting changes and then forces (fsync)
+ *   the file once for the whole batch (group commit). The promise of each change completes only after that
+ *   -- on another thread so whatever follows the change (e.g., the response) never holds up the writer.
+ * When a write fails, the changes of the batch not yet forced fail and are cut off the file
+ *   so the file never has a record after a torn one (which the recovery would stop at).
+ *
+ * Periodically, the journal is rotated to a new file and a snapshot of all the persons is written
+ *   so the older journal files can be deleted. On startup, the snapshot is loaded and the newer journal files replayed.
+ *
+ * Files in the directory:
+ * <ul>
+ *   <li>`persons.snapshot` -- the latest snapshot with the first journal generation to replay after it.</li>
+ *   <li>`journal-[generation].log` -- the records of length, CRC32 and payload (operation, ID and person).</li>
+ * </ul>
+ **/
+public class PersonJournal implements AutoCloseable {
+    
+    /** The default interval between the snapshots -- 5 minutes. */
+    public static final long DEFAULT_SNAPSHOT_INTERVAL_MILLIS = 5*60*1000L;
+    
+    /** The maximum number of appends (a change or the changes appended together) to be written for each force (fsync). */
+    public static final int MAX_BATCH_SIZE = 1024;
+    
+    private static final String  SNAPSHOT_FILE = "persons" + PersonSnapshot.EXTENSION;
+    private static final Pattern JOURNAL_FILE  = Pattern.compile("^journal-([0-9]{16})\\.log$");
+    
+    private static final Logger logger = System.getLogger(PersonJournal.class.getName());
+    
+    private static final byte OP_PUT    = 1;
+    private static final byte OP_DELETE = 2;
+    
+    // An entry in the writer queue -- either the records of the changes (forced together) or a rotation request.
+    private static final class Entry {
+        final List<byte[]>            records;
+        final PendingAction<?>        action;
+        final Runnable                complete;
+        final CompletableFuture<Long> rotated;
+        
+        <T> Entry(List<byte[]> records, PendingAction<T> action, T value) {
+            this.records  = records;
+            this.action   = action;
+            this.complete = () -> action.complete(value);
+            this.rotated  = null;
+        }
+        Entry(CompletableFuture<Long> rotated) {
+            this.records  = null;
+            this.action   = null;
+            this.complete = null;
+            this.rotated  = rotated;
+        }
+    }
+    
+    private final Path                       directory;
+    private final long                       snapshotIntervalMillis;
+    private final LinkedBlockingQueue<Entry> queue        = new LinkedBlockingQueue<>();
+    private final Object                     snapshotLock = new Object();
+    private final ScheduledExecutorService   scheduler    = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "person-journal-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService            completions  = Executors.newCachedThreadPool(runnable -> {
+        var thread = new Thread(runnable, "person-journal-completion");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private volatile boolean                      isRunning  = false;
+    private volatile Supplier<Collection<Person>> state;
+    private          Thread                       writer;
+    private          FileChannel                  channel;
+    private          long                         generation = 0;
+    
+    // The size of the current journal file up to the last force -- the rest is cut off when a write fails.
+    private long durableSize = 0;
+    
+    private PersonJournal(Path directory, long snapshotIntervalMillis) {
+        this.directory              = directory;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+    }
+    
+    /** Open (and create if needed) the journal in the directory. */
+    public static PersonJournal open(Path directory, long snapshotIntervalMillis) throws IOException {
+        Files.createDirectories(directory);
+        return new PersonJournal(directory, snapshotIntervalMillis);
+    }
+    
+    /**
+     * Load the snapshot and replay the journal files after it.
+     * Incomplete or corrupted records at the end of a journal file (e.g., from a crash while writing) are truncated.
+     *
+     * @param apply  called with the ID and the person in the order of the changes -- the person is null for a deletion.
+     **/
+    public void recover(BiConsumer<String, Person> apply) throws IOException {
+        var snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        var firstToPlay  = Files.exists(snapshotPath)
+                         ? PersonSnapshot.read(snapshotPath, person -> apply.accept(person.id, person))
+                         : 0L;
+        
+        generation = firstToPlay;
+        for (var journalFile : journalFiles()) {
+            var fileGeneration = generationOf(journalFile);
+            generation = Math.max(generation, fileGeneration + 1);
+            if (fileGeneration >= firstToPlay) {
+                replay(journalFile, apply);
+            }
+        }
+    }
+    
+    /**
+     * Start accepting the changes.
+     *
+     * @param state  the supplier of the current persons used for the snapshots -- called after the rotation, it must include
+     *                 all the changes already durable (i.e., wait for the ones being applied).
+     **/
+    public synchronized void start(Supplier<Collection<Person>> state) throws IOException {
+        if (isRunning)
+            return;
+        
+        this.state     = state;
+        this.channel   = openJournal(generation);
+        this.isRunning = true;
+        this.writer    = new Thread(this::writeLoop, "person-journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        
+        if (snapshotIntervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::snapshotQuietly, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /** Append the put of the person -- the returned promise completes with the person once it is durable. */
+    public Promise<Person> appendPut(Person person) {
+        return append(OP_PUT, person.id, person, person);
+    }
+    
+    /** Append the deletion -- the returned promise completes with the deleted person once it is durable. */
+    public Promise<Person> appendDelete(String id, Person deleted) {
+        return append(OP_DELETE, id, null, deleted);
+    }
+    
+    /**
+     * Append the changes together -- the puts of the persons or the deletions of the IDs for the null persons.
+     * They are written in the same batch and forced once; the returned promise completes with their count once all are durable.
+     **/
+    public Promise<Integer> appendAll(List<String> ids, List<Person> persons) {
+        var records = new ArrayList<byte[]>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            var person = persons.get(i);
+            records.add((person != null) ? encode(OP_PUT, ids.get(i), person) : encode(OP_DELETE, ids.get(i), null));
+        }
+        return append(records, records.size());
+    }
+    
+    /**
+     * Rotate the journal and write the snapshot of the current persons then delete the journal files it covers.
+     *
+     * The persons are read after the rotation so the snapshot may already contain some changes from the new journal.
+     * That is fine as replaying those changes (full values by ID, in order) results in the same persons.
+     **/
+    public void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            var rotated = new CompletableFuture<Long>();
+            queue.add(new Entry(rotated));
+            var newGeneration = rotated.join();
+            
+            var persons = new ArrayList<>(state.get());
+            PersonSnapshot.write(directory.resolve(SNAPSHOT_FILE), persons, newGeneration);
+            
+            for (var journalFile : journalFiles()) {
+                if (generationOf(journalFile) < newGeneration) {
+                    Files.deleteIfExists(journalFile);
+                }
+            }
+        }
+    }
+    
+    /** Stop accepting changes, wait for the pending ones to be written and take the last snapshot. */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (!isRunning)
+                return;
+        }
+        scheduler.shutdownNow();
+        snapshot();
+        
+        isRunning = false;
+        try {
+            writer.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        completions.shutdown();
+        channel.close();
+    }
+    
+    private Promise<Person> append(byte operation, String id, Person person, Person result) {
+        return append(List.of(encode(operation, id, person)), result);
+    }
+    
+    private <T> Promise<T> append(List<byte[]> records, T result) {
+        if (!isRunning)
+            return Promise.ofException(new IllegalStateException("The journal is not running."));
+        
+        var action = DeferAction.<T>createNew().start();
+        queue.add(new Entry(records, action, result));
+        return action.getPromise();
+    }
+    
+    private static byte[] encode(byte operation, String id, Person person) {
+        try {
+            var buffer = new ByteArrayOutputStream(128);
+            var output = new DataOutputStream(buffer);
+            output.writeByte(operation);
+            PersonBinary.writeString(output, id);
+            if (person != null) {
+                PersonBinary.writePerson(output, person);
+            }
+            output.flush();
+            return buffer.toByteArray();
+        } catch (IOException exception) {
+            // ByteArrayOutputStream does not throw IOException.
+            throw new IllegalStateException(exception);
+        }
+    }
+    
+    private void writeLoop() {
+        var batch = new ArrayList<Entry>(MAX_BATCH_SIZE);
+        while (isRunning || !queue.isEmpty()) {
+            try {
+                var first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                writeBatch(batch);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+    
+    private void writeBatch(List<Entry> batch) {
+        var written = new ArrayList<Entry>(batch.size());
+        var index   = 0;
+        try {
+            if (!channel.isOpen()) {
+                // A previous failure could not even cut the file -- continue in a new one.
+                startNewJournal();
+            }
+            for (; index < batch.size(); index++) {
+                var entry = batch.get(index);
+                if (entry.rotated != null) {
+                    // Everything before the rotation must be in the old file.
+                    commit(written);
+                    rotate(entry.rotated);
+                } else {
+                    for (var record : entry.records) {
+                        write(record);
+                    }
+                    written.add(entry);
+                }
+            }
+            commit(written);
+        } catch (IOException | RuntimeException exception) {
+            logger.log(Level.ERROR, format("Fail to write the journal generation %d.", generation), exception);
+            discardNotDurable();
+            
+            // Only the ones not yet forced fail -- the others are already completed.
+            var failure = new IOException("Fail to write the journal: " + exception.getMessage(), exception);
+            for (var entry : written) {
+                fail(entry, failure);
+            }
+            for (var entry : batch.subList(index, batch.size())) {
+                fail(entry, failure);
+            }
+        }
+    }
+    
+    private void write(byte[] record) throws IOException {
+        var crc32 = new CRC32();
+        crc32.update(record);
+        var buffer = ByteBuffer.allocate(8 + record.length);
+        buffer.putInt(record.length);
+        buffer.putInt((int)crc32.getValue());
+        buffer.put(record);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    private void commit(List<Entry> written) throws IOException {
+        if (written.isEmpty())
+            return;
+        
+        channel.force(false);
+        durableSize = channel.position();
+        for (var entry : written) {
+            completions.execute(entry.complete);
+        }
+        written.clear();
+    }
+    
+    // The new file is opened first so the current one stays in use if that fails.
+    private void rotate(CompletableFuture<Long> rotated) throws IOException {
+        var newChannel = openJournal(generation + 1);
+        closeQuietly(channel);
+        generation++;
+        channel     = newChannel;
+        durableSize = 0;
+        rotated.complete(generation);
+    }
+    
+    // Cut off what was written after the last force -- or, if that fails, leave this file (its torn end is dropped by the recovery).
+    private void discardNotDurable() {
+        try {
+            channel.truncate(durableSize);
+            channel.position(durableSize);
+        } catch (IOException exception) {
+            logger.log(Level.ERROR, format("Fail to cut the journal generation %d at %d.", generation, durableSize), exception);
+            closeQuietly(channel);
+            try {
+                startNewJournal();
+            } catch (IOException newException) {
+                logger.log(Level.ERROR, format("Fail to start the journal generation %d.", generation), newException);
+            }
+        }
+    }
+    
+    private void startNewJournal() throws IOException {
+        generation++;
+        channel     = openJournal(generation);
+        durableSize = 0;
+    }
+    
+    private void fail(Entry entry, IOException failure) {
+        if (entry.action != null) {
+            completions.execute(() -> entry.action.fail(failure));
+        } else if (entry.rotated != null) {
+            entry.rotated.completeExceptionally(failure);
+        }
+    }
+    
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException exception) {
+            // Everything in it is already forced (or failed).
+            logger.log(Level.WARNING, "Fail to close a journal file.", exception);
+        }
+    }
+    
+    private void replay(Path journalFile, BiConsumer<String, Person> apply) throws IOException {
+        var validLength = 0L;
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile)))) {
+            while (true) {
+                byte[] record;
+                try {
+                    var length = input.readInt();
+                    var crc    = input.readInt();
+                    if ((length < 0) || (length > 16*1024*1024))
+                        break;
+                    
+                    record = new byte[length];
+                    input.readFully(record);
+                    
+                    var crc32 = new CRC32();
+                    crc32.update(record);
+                    if ((int)crc32.getValue() != crc)
+                        break;
+                } catch (EOFException exception) {
+                    break;
+                }
+                
+                var recordInput = new DataInputStream(new ByteArrayInputStream(record));
+                var operation   = recordInput.readByte();
+                var id          = PersonBinary.readString(recordInput);
+                if (operation == OP_PUT) {
+                    apply.accept(id, PersonBinary.readPerson(recordInput));
+                } else if (operation == OP_DELETE) {
+                    apply.accept(id, null);
+                } else {
+                    throw new IOException(format("Unknown operation %d in %s", operation, journalFile));
+                }
+                validLength += 8 + record.length;
+            }
+        }
+        
+        if (validLength < Files.size(journalFile)) {
+            logger.log(Level.WARNING, format("Truncate the incomplete journal %s at %d.", journalFile, validLength));
+            try (var fileChannel = FileChannel.open(journalFile, READ, WRITE)) {
+                fileChannel.truncate(validLength);
+            }
+        }
+    }
+    
+    private FileChannel openJournal(long generation) throws IOException {
+        var path = directory.resolve(format("journal-%016d.log", generation));
+        return FileChannel.open(path, CREATE_NEW, WRITE);
+    }
+    
+    private List<Path> journalFiles() throws IOException {
+        try (var files = Files.list(directory)) {
+            var list = new ArrayList<Path>();
+            files.filter(file -> JOURNAL_FILE.matcher(file.getFileName().toString()).matches())
+                 .sorted()
+                 .forEach(list::add);
+            return list;
+        }
+    }
+    
+    private static long generationOf(Path journalFile) {
+        var matcher = JOURNAL_FILE.matcher(journalFile.getFileName().toString());
+        matcher.matches();
+        return Long.parseLong(matcher.group(1));
+    }
+    
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (Exception exception) {
+            logger.log(Level.ERROR, "Fail to take the snapshot of the persons.", exception);
+        }
+    }
+    
+}
@@ -1,14 +1,29 @@
 package javaelmexample.services;
 
 import static java.lang.String.format;
+import static java.util.stream.Collectors.toList;
 import static nullablej.nullable.Nullable.nullable;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
 
 import functionalj.list.FuncList;
+import functionalj.promise.DeferAction;
+import functionalj.promise.PendingAction;
 import functionalj.promise.Promise;
 import functionalj.stream.StreamPlus;
 import functionalj.types.Choice;
@@ -16,6 +31,11 @@ import functionalj.types.Nullable;
 import functionalj.types.Required;
 import functionalj.types.Struct;
 import functionalj.types.elm.Elm;
+import javaelmexample.server.BulkResult;
+import javaelmexample.server.ChangeFeed;
+import javaelmexample.server.JsonCodec;
+import javaelmexample.server.ListQuery;
+import javaelmexample.server.PreconditionFailedException;
 import javaelmexample.server.RestData;
 import javaelmexample.server.RestService;
 import javaelmexample.server.WithDemoMode;
@@ -43,41 +63,468 @@ public class PersonService implements RestService<Person>, WithDemoMode {
     }
     
     
-    private final Map<String, Person> persons  = new ConcurrentHashMap<>();
+    private static final PersonCodec codec = new PersonCodec();
     
+    // The 64-bit FNV-1a hash of the content of a person is its version.
+    private static final long VERSION_HASH_OFFSET = 0xcbf29ce484222325L;
+    private static final long VERSION_HASH_PRIME  = 0x100000001b3L;
+    
+    // The index candidates are only counted up to this to find the most selective index.
+    private static final int SELECTIVITY_LIMIT = 1000;
+    
+    /** The fields that can be filtered and how to get their (lower case) filter values. */
+    private static final Map<String, Function<Person, String>> filterFields = Map.of(
+            "id",        person -> lowerCase(person.id),
+            "firstName", person -> lowerCase(person.firstName),
+            "lastName",  person -> lowerCase(person.lastName),
+            "nickName",  person -> lowerCase(person.nickName),
+            "cape",      person -> capeKey(person.cape));
+    
+    /**
+     * The persons (sorted by ID for the keyset pagination) and their indexes.
+     * The persons are kept as compact records (see {@link CompactPersons}) and a {@link Person} is made when read.
+     * The store is replaced as a whole by the demo mode so each request should use the same store throughout.
+     **/
+    private static final class Store {
+        
+        final CompactPersons                      compact;
+        final LayeredMap<byte[]>                  records;
+        final Map<String, SecondaryIndex<Person>> indexes;
+        
+        Store(CompactPersons compact, LayeredMap<byte[]> records, Map<String, SecondaryIndex<Person>> indexes) {
+            this.compact = compact;
+            this.records = records;
+            this.indexes = indexes;
+        }
+        
+        // This store MUST NOT be changed after this.
+        Store branch() {
+            return new Store(compact, records.branch(), mapValues(indexes, SecondaryIndex::branch));
+        }
+        
+        Store compacted() {
+            return new Store(compact, records.compacted(), mapValues(indexes, SecondaryIndex::compacted));
+        }
+        
+        int size() {
+            return records.size();
+        }
+        
+        Person get(String id) {
+            return personOf(id, records.get(id));
+        }
+        
+        /** @return  the previous person of the ID. */
+        Person put(String id, Person person) {
+            return personOf(id, records.put(id, compact.encode(person)));
+        }
+        
+        /** @return  the removed person of the ID. */
+        Person remove(String id) {
+            return personOf(id, records.remove(id));
+        }
+        
+        /** @return  the persons in the ID order -- after the given ID if not null. */
+        Stream<Person> persons(String afterId) {
+            return records.entries(afterId).map(entry -> compact.decode(entry.getKey(), entry.getValue()));
+        }
+        
+        private Person personOf(String id, byte[] record) {
+            return (record == null) ? null : compact.decode(id, record);
+        }
+        
+        private static Map<String, SecondaryIndex<Person>> mapValues(Map<String, SecondaryIndex<Person>> indexes, UnaryOperator<SecondaryIndex<Person>> mapper) {
+            var newIndexes = new HashMap<String, SecondaryIndex<Person>>();
+            indexes.forEach((field, index) -> newIndexes.put(field, mapper.apply(index)));
+            return Map.copyOf(newIndexes);
+        }
+    }
+    
+    /**
+     * The changes of the IDs that share a stripe -- accepted (checked and appended to the journal) under its lock
+     *   and applied in the same order once durable.
+     **/
+    private static final class Stripe {
+        
+        final ReentrantLock lock      = new ReentrantLock();
+        final Condition     isApplied = lock.newCondition();
+        
+        // The changes accepted but not yet applied (in order) and the last of them of each ID.
+        final ArrayDeque<PendingChange>  accepted = new ArrayDeque<>();
+        final Map<String, PendingChange> latest   = new HashMap<>();
+        
+        // The sequence of the last accepted and the last applied change.
+        long          sequence = 0;
+        volatile long applied  = 0;
+        
+        PendingChange accept(String id, Person person, ChangeFeed.Type type, Person result) {
+            var change = new PendingChange(++sequence, id, person, type, result);
+            accepted.add(change);
+            latest.put(id, change);
+            return change;
+        }
+    }
+    
+    /** A change accepted but not yet applied -- the person is null for a deletion. */
+    private static final class PendingChange {
+        
+        final long                  sequence;
+        final String                id;
+        final Person                person;
+        final ChangeFeed.Type       type;
+        final Person                result;
+        final PendingAction<Person> action = DeferAction.<Person>createNew().start();
+        
+        boolean   isSettled = false;
+        Exception failure   = null;
+        
+        PendingChange(long sequence, String id, Person person, ChangeFeed.Type type, Person result) {
+            this.sequence = sequence;
+            this.id       = id;
+            this.person   = person;
+            this.type     = type;
+            this.result   = result;
+        }
+    }
+    
+    private volatile Store store = new Store(new CompactPersons(), new LayeredMap<>(), Map.of(
+            "lastName", new SecondaryIndex<>(filterFields.get("lastName")),
+            "cape",     new SecondaryIndex<>(filterFields.get("cape"))));
+    
+    // The store at the time of the demo mode snapshot -- it is never changed.
+    private volatile Store snapshot = null;
+    
+    // The changes share the read lock while the demo mode snapshot and reset take the write lock to replace the store.
+    private final ReadWriteLock storeLock = new ReentrantReadWriteLock();
+    
+    // The changes to the same ID must be applied in the same order they reach the journal.
+    private final Stripe[] stripes = new Stripe[64];
+    
+    private final PersonJournal journal;
+    private final IdMode        idMode;
+    
+    private final ChangeFeed<Person> changes = new ChangeFeed<>();
+    
+    // Changed after every change that modifies the store (once it is made) -- see version().
+    private final AtomicLong version = new AtomicLong(0);
+    
+    /** Create an in-memory only person service. */
+    public PersonService() {
+        this(null);
+    }
+    
+    /** Create a person service that writes all the changes to the journal (if not null). */
+    public PersonService(PersonJournal journal) {
+        this(journal, null);
+    }
+    
+    /**
+     * Create a person service that writes all the changes to the journal (if not null)
+     *   and gives the new persons the IDs of the mode -- {@link IdMode#TIME_ORDERED} if null.
+     **/
+    public PersonService(PersonJournal journal, IdMode idMode) {
+        this.journal = journal;
+        this.idMode  = nullable(idMode).orElse(IdMode.TIME_ORDERED);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+    
+    /**
+     * Create a person service that recovers the persons from the journal and then persists all the changes to it.
+     **/
+    public static PersonService persistent(PersonJournal journal) throws IOException {
+        return persistent(journal, null);
+    }
+    
+    /** Create a persistent person service (see {@link #persistent(PersonJournal)}) with the IDs of the mode. */
+    public static PersonService persistent(PersonJournal journal, IdMode idMode) throws IOException {
+        var service = new PersonService(journal, idMode);
+        journal.recover(service::restore);
+        journal.start(service::durablePersons);
+        return service;
+    }
+    
+    @Override
     public Class<Person> dataClass() {
         return Person.class;
     }
     
-    private final Map<String, Person> snapshot = new ConcurrentHashMap<>();
+    @Override
+    public JsonCodec<Person> dataCodec() {
+        return codec;
+    }
+    
+    @Override
+    public ChangeFeed<Person> changes() {
+        return changes;
+    }
+    
+    /** The version of a person is the hash of its content -- the same content is the same version so nothing is kept. */
+    @Override
+    public String versionOf(Person person) {
+        var hash = VERSION_HASH_OFFSET;
+        hash = hashOf(hash, person.id);
+        hash = hashOf(hash, person.firstName);
+        hash = hashOf(hash, person.lastName);
+        hash = hashOf(hash, person.nickName);
+        hash = hashOf(hash, (person.cape instanceof Cape.Color) ? ((Cape.Color)person.cape).color() : null);
+        return Long.toHexString(hash);
+    }
+    
+    // Each field ends with a marker (and null has its own) so the values cannot run into each other.
+    private static long hashOf(long hash, String text) {
+        if (text == null)
+            return (hash ^ 0xFFFF) * VERSION_HASH_PRIME;
+        
+        for (int i = 0; i < text.length(); i++) {
+            hash = (hash ^ text.charAt(i)) * VERSION_HASH_PRIME;
+        }
+        return (hash ^ 0xFFFE) * VERSION_HASH_PRIME;
+    }
+    
+    @Override
+    public long version() {
+        return version.get();
+    }
     
     @Override
     public Promise<Person> get(String id) {
-        var person = persons.get(id);
+        var person = store.get(id);
         return Promise.ofValue(person);
     }
     
     @Override
     public Promise<FuncList<Person>> list() {
-        var streamPlus = StreamPlus.from(persons.values().stream());
+        var streamPlus = StreamPlus.from(store.persons(null));
         var funcList   = streamPlus.toFuncList();
         return Promise.ofValue(funcList);
     }
     
+    @Override
+    public Promise<FuncList<Person>> list(ListQuery query) {
+        var store      = this.store;
+        var filters    = filtersOf(query);
+        var indexed    = mostSelectiveIndex(store, filters);
+        var candidates = (indexed != null)
+                       ? indexed.getValue().find(filters.get(indexed.getKey()), query.cursor).map(store::get)
+                       : store.persons(query.cursor);
+        var streamPlus = StreamPlus.from(candidates).filter(person -> matches(person, filters));
+        var page       = (query.limit > 0) ? streamPlus.limit(query.limit) : streamPlus;
+        return Promise.ofValue(page.toImmutableList());
+    }
+    
+    // The filter values in lower case by the field names.
+    private static Map<String, String> filtersOf(ListQuery query) {
+        if (!query.hasFilters())
+            return Map.of();
+        
+        var filters = new HashMap<String, String>();
+        query.filters.forEach((field, value) -> {
+            if (!filterFields.containsKey(field)) {
+                throw new IllegalArgumentException("Unknown filter field: " + field);
+            }
+            filters.put(field, value.toLowerCase());
+        });
+        return filters;
+    }
+    
+    private static Map.Entry<String, SecondaryIndex<Person>> mostSelectiveIndex(Store store, Map<String, String> filters) {
+        return store.indexes.entrySet().stream()
+                .filter(entry -> filters.containsKey(entry.getKey()))
+                .min   (Comparator.comparingInt(entry -> entry.getValue().count(filters.get(entry.getKey()), SELECTIVITY_LIMIT)))
+                .orElse(null);
+    }
+    
+    // The index only gives the candidates so the filters are always checked against the current data.
+    private static boolean matches(Person person, Map<String, String> filters) {
+        if (person == null)
+            return false;
+        
+        for (var filter : filters.entrySet()) {
+            var value = filterFields.get(filter.getKey()).apply(person);
+            if (!filter.getValue().equals(value))
+                return false;
+        }
+        return true;
+    }
+    
+    private static String capeKey(Cape cape) {
+        if (cape instanceof Cape.Color)
+            return "color:" + lowerCase(((Cape.Color)cape).color());
+        if (cape instanceof Cape.None)
+            return "none";
+        return null;
+    }
+    
+    private static String lowerCase(String text) {
+        return (text == null) ? null : text.toLowerCase();
+    }
+    
+    /** @return  the number of persons. */
+    public int count() {
+        return store.size();
+    }
+    
+    /**
+     * Load the persons in bulk (e.g., the seed data) -- much faster than posting them one by one.
+     * The persons without ID are given one. With a journal, a snapshot is taken afterward instead of journaling each.
+     **/
+    public void loadAll(Iterable<Person> newPersons) throws IOException {
+        for (var person : newPersons) {
+            var id = nullable(person.id).orElseGet(idMode::nextId);
+            restore(id, person.withId(id));
+        }
+        if (journal != null) {
+            journal.snapshot();
+        }
+    }
+    
+    // Apply the recovered change without journaling it -- the person is null for a deletion.
+    private void restore(String id, Person person) {
+        apply(id, person, null);
+    }
+    
+    // Make the change of the ID -- the change gives the new person (null for a deletion) from the current one.
+    //
+    // The change is checked against the current person (including the changes not yet applied) and appended to the journal
+    //   under the lock of its stripe but only applied once it is durable -- so what is in the memory (and the change feed)
+    //   is always durable, a failed write changes nothing and no lock is held while the journal is forced.
+    private Promise<Person> change(String id, ChangeFeed.Type type, UnaryOperator<Person> change) {
+        var stripe = stripeOf(id);
+        PendingChange pending;
+        stripe.lock.lock();
+        try {
+            // A change that fails (e.g., a version mismatch) throws before anything is accepted.
+            var current = currentOf(stripe, id);
+            var person  = change.apply(current);
+            if ((person == null) && (current == null))
+                return Promise.ofValue(null);
+            
+            pending = stripe.accept(id, person, type, (person != null) ? person : current);
+            if (journal != null) {
+                var append = (person != null) ? journal.appendPut(person) : journal.appendDelete(id, current);
+                append.onComplete(result -> settle(stripe, pending, result.getException()));
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (journal == null) {
+            settle(stripe, pending, null);
+        }
+        return pending.action.getPromise();
+    }
+    
+    // The person of the ID after the changes already accepted -- must be called under the lock of its stripe.
+    private Person currentOf(Stripe stripe, String id) {
+        var pending = stripe.latest.get(id);
+        return (pending != null) ? pending.person : store.get(id);
+    }
+    
+    // The change is durable (or failed) -- apply the settled changes of the stripe in the order they were accepted.
+    //   A failed change is not applied but the changes accepted after it (checked against it) still are.
+    private void settle(Stripe stripe, PendingChange change, Exception failure) {
+        var settled = new ArrayList<PendingChange>();
+        stripe.lock.lock();
+        try {
+            change.isSettled = true;
+            change.failure   = failure;
+            while (!stripe.accepted.isEmpty() && stripe.accepted.peek().isSettled) {
+                var next = stripe.accepted.poll();
+                stripe.latest.remove(next.id, next);
+                if (next.failure == null) {
+                    apply(next.id, next.person, next.type);
+                }
+                stripe.applied = next.sequence;
+                settled.add(next);
+            }
+            stripe.isApplied.signalAll();
+        } finally {
+            stripe.lock.unlock();
+        }
+        
+        // Outside the lock as what follows (e.g., the response) may take a while.
+        for (var each : settled) {
+            if (each.failure == null) {
+                each.action.complete(each.result);
+            } else {
+                each.action.fail(each.failure);
+            }
+        }
+    }
+    
+    // Change the store and publish the change (if the type is given) -- the person is null for a deletion.
+    private void apply(String id, Person person, ChangeFeed.Type type) {
+        var lock = storeLock.readLock();
+        lock.lock();
+        try {
+            var store     = this.store;
+            var oldPerson = (person != null) ? store.put(id, person) : store.remove(id);
+            updateIndexes(store, id, oldPerson, person);
+            if ((oldPerson != null) || (person != null)) {
+                version.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (type != null) {
+            changes.publish(type, id, person);
+        }
+    }
+    
+    // The persons for the journal snapshot -- the changes already in the journal before its rotation must be applied first.
+    private List<Person> durablePersons() {
+        // The changes accepted by now include all the ones before the rotation -- each stripe applies them in order.
+        for (var stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                var last = stripe.sequence;
+                while (stripe.applied < last) {
+                    stripe.isApplied.awaitUninterruptibly();
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return store.persons(null).collect(toList());
+    }
+    
+    private Stripe stripeOf(String id) {
+        return stripes[stripeIndexOf(id)];
+    }
+    
+    private int stripeIndexOf(String id) {
+        return (id.hashCode() & 0x7FFFFFFF) % stripes.length;
+    }
+    
+    private static void updateIndexes(Store store, String id, Person oldPerson, Person newPerson) {
+        for (var index : store.indexes.values()) {
+            index.update(id, oldPerson, newPerson, store::get);
+        }
+    }
+    
     @Override
     public Promise<Person> post(Person person) {
         if (person == null) {
             return Promise.ofValue(null);
         }
         
-        var newPersonId = nullable(person.id).orElseGet(()->UUID.randomUUID().toString());
+        var newPersonId = nullable(person.id).orElseGet(idMode::nextId);
         var newPerson   = person.withId(newPersonId);
-        persons.put(newPersonId, newPerson);
-        return Promise.ofValue(newPerson);
+        return change(newPersonId, ChangeFeed.Type.POST, current -> newPerson);
     }
     
     @Override
     public Promise<Person> put(String id, Person person) {
+        return put(id, person, null);
+    }
+    
+    /**
+     * The version is checked in the change -- which no other change of the same ID can come in the middle of
+     *   (see the stripes) so the check and the replacement are atomic without a lock of the whole store.
+     **/
+    @Override
+    public Promise<Person> put(String id, Person person, String expectedVersion) {
         if (person == null) {
             return Promise.ofValue(null);
         }
@@ -86,27 +533,184 @@ public class PersonService implements RestService<Person>, WithDemoMode {
             throw new IllegalArgumentException(errorMessage);
         }
         
-        persons.put(person.id, person);
-        return Promise.ofValue(person);
+        return change(person.id, ChangeFeed.Type.PUT, current -> {
+            checkVersion(person.id, current, expectedVersion);
+            return person;
+        });
     }
     
     @Override
     public Promise<Person> delete(String id) {
-        var person = persons.remove(id);
-        return Promise.ofValue(person);
+        return delete(id, null);
+    }
+    
+    @Override
+    public Promise<Person> delete(String id, String expectedVersion) {
+        return change(id, ChangeFeed.Type.DELETE, current -> {
+            checkVersion(id, current, expectedVersion);
+            return null;
+        });
+    }
+    
+    // Must be called within the change of the ID.
+    private void checkVersion(String id, Person current, String expectedVersion) {
+        if (expectedVersion == null)
+            return;
+        
+        if (current == null)
+            throw new PreconditionFailedException("Not found: " + id);
+        if (!expectedVersion.equals(ANY_VERSION) && !expectedVersion.equals(versionOf(current)))
+            throw new PreconditionFailedException("Changed since the version: " + id);
+    }
+    
+    //== Bulk changes ==
+    
+    // The change of an item of a bulk request -- the new person (null for a deletion) from the current one.
+    private static interface BulkChange<ITEM> {
+        Person apply(ITEM item, String id, Person current);
+    }
+    
+    @Override
+    public Promise<FuncList<BulkResult>> postAll(FuncList<Person> persons) {
+        return changeAll(persons, ChangeFeed.Type.POST,
+                person -> nullable(person.id).orElseGet(idMode::nextId),
+                (person, id, current) -> person.withId(id));
+    }
+    
+    @Override
+    public Promise<FuncList<BulkResult>> putAll(FuncList<Person> persons) {
+        return changeAll(persons, ChangeFeed.Type.PUT,
+                person -> nullable(person.id).orElseThrow(() -> new IllegalArgumentException("Missing ID.")),
+                (person, id, current) -> person);
+    }
+    
+    @Override
+    public Promise<FuncList<BulkResult>> deleteAll(FuncList<String> ids) {
+        return changeAll(ids, ChangeFeed.Type.DELETE, id -> id, (item, id, current) -> null);
+    }
+    
+    // Make the changes of all the items in one go -- they are checked and accepted under the locks of all their stripes
+    //   (taken in order), appended to the journal together (forced once) and then applied each as a single change.
+    private <ITEM> Promise<FuncList<BulkResult>> changeAll(FuncList<ITEM> items, ChangeFeed.Type type, Function<ITEM, String> idOf, BulkChange<ITEM> change) {
+        var promises = new ArrayList<Promise<Person>>(items.size());
+        var ids      = new ArrayList<String>(items.size());
+        var isLocked = new boolean[stripes.length];
+        for (var item : items) {
+            try {
+                var id = (item != null) ? idOf.apply(item) : null;
+                ids     .add(id);
+                promises.add((id != null) ? null : Promise.ofValue(null));
+                if (id != null) {
+                    isLocked[stripeIndexOf(id)] = true;
+                }
+            } catch (RuntimeException exception) {
+                ids     .add(null);
+                promises.add(Promise.ofException(exception));
+            }
+        }
+        
+        var accepted       = new ArrayList<PendingChange>(items.size());
+        var journalIds     = new ArrayList<String>(items.size());
+        var journalPersons = new ArrayList<Person>(items.size());
+        lockAll(isLocked);
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                var id = ids.get(i);
+                if (id == null)
+                    continue;
+                
+                try {
+                    var stripe  = stripeOf(id);
+                    var current = currentOf(stripe, id);
+                    var person  = change.apply(items.get(i), id, current);
+                    if ((person == null) && (current == null)) {
+                        promises.set(i, Promise.ofValue(null));
+                        continue;
+                    }
+                    
+                    var pending = stripe.accept(id, person, type, (person != null) ? person : current);
+                    accepted      .add(pending);
+                    journalIds    .add(id);
+                    journalPersons.add(person);
+                    promises.set(i, pending.action.getPromise());
+                } catch (RuntimeException exception) {
+                    promises.set(i, Promise.ofException(exception));
+                }
+            }
+            if ((journal != null) && !accepted.isEmpty()) {
+                journal.appendAll(journalIds, journalPersons).onComplete(result -> {
+                    for (var pending : accepted) {
+                        settle(stripeOf(pending.id), pending, result.getException());
+                    }
+                });
+            }
+        } finally {
+            unlockAll(isLocked);
+        }
+        if (journal == null) {
+            for (var pending : accepted) {
+                settle(stripeOf(pending.id), pending, null);
+            }
+        }
+        return RestService.bulkResultsOf(promises);
+    }
+    
+    // The stripes are always locked in the same order so two bulk changes cannot wait for each other.
+    private void lockAll(boolean[] isLocked) {
+        for (int i = 0; i < stripes.length; i++) {
+            if (isLocked[i]) {
+                stripes[i].lock.lock();
+            }
+        }
+    }
+    
+    private void unlockAll(boolean[] isLocked) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            if (isLocked[i]) {
+                stripes[i].lock.unlock();
+            }
+        }
     }
     
     //== Demo mode ==
     
     @Override
     public void takeSnapshot() {
-        snapshot.putAll(persons);
+        // Constant time (except the occasional compaction) -- the current store becomes the snapshot and a branch of it is used.
+        var lock = storeLock.writeLock();
+        lock.lock();
+        try {
+            snapshot = store.compacted();
+            store    = snapshot.branch();
+        } finally {
+            lock.unlock();
+        }
     }
     
     @Override
     public void resetToSnapshot() {
-        persons.clear();
-        persons.putAll(snapshot);
+        // Constant time -- the changes since the snapshot are simply dropped with the current branch.
+        var lock = storeLock.writeLock();
+        lock.lock();
+        try {
+            if (snapshot == null)
+                return;
+            
+            store = snapshot.branch();
+            version.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+        changes.publish(ChangeFeed.Type.RESET, null, null);
+        
+        // The reset is not in the journal so a new snapshot is needed to make it durable.
+        if (journal != null) {
+            try {
+                journal.snapshot();
+            } catch (IOException exception) {
+                exception.printStackTrace();
+            }
+        }
     }
     
 }
@@ -0,0 +1,89 @@
+package javaelmexample.services;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * The binary snapshot file of persons -- it is memory-mapped when read so a large one can be loaded quickly.
+ * 
+ * The file has a header (magic, version, journal generation and count) followed by the persons in {@link PersonBinary}.
+ * The journal generation is the first generation of the journal to be replayed after the snapshot (see {@link PersonJournal}).
+ **/
+public class PersonSnapshot {
+    
+    /** The file extension of the snapshot files. */
+    public static final String EXTENSION = ".snapshot";
+    
+    private static final int MAGIC   = 0x50534E50; // "PSNP"
+    private static final int VERSION = 1;
+    
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    
+    private PersonSnapshot() {
+    }
+    
+    /**
+     * Write the snapshot -- to a temporary file first which is then forced (fsync) and atomically moved in place.
+     * The persons must not change while they are written (pass a copy).
+     * 
+     * @param generation  the first journal generation to be replayed after this snapshot -- zero if not used with a journal.
+     **/
+    public static void write(Path path, Collection<Person> persons, long generation) throws IOException {
+        var tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(tempPath, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            var output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64*1024));
+            output.writeInt (MAGIC);
+            output.writeInt (VERSION);
+            output.writeLong(generation);
+            output.writeLong(persons.size());
+            for (var person : persons) {
+                PersonBinary.writePerson(output, person);
+            }
+            output.flush();
+            channel.force(true);
+        }
+        Files.move(tempPath, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+    
+    /**
+     * Read the snapshot by mapping the file into memory.
+     * 
+     * @return  the journal generation in the snapshot.
+     **/
+    public static long read(Path path, Consumer<Person> consumer) throws IOException {
+        try (var channel = FileChannel.open(path, READ)) {
+            var size = channel.size();
+            if (size < HEADER_SIZE)
+                throw new IOException("Not a person snapshot: " + path);
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("The person snapshot is too large to be mapped: " + path);
+            
+            var buffer = channel.map(MapMode.READ_ONLY, 0, size);
+            if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION))
+                throw new IOException("Not a person snapshot (or unsupported version): " + path);
+            
+            var generation = buffer.getLong();
+            var count      = buffer.getLong();
+            for (long i = 0; i < count; i++) {
+                consumer.accept(PersonBinary.readPerson(buffer));
+            }
+            return generation;
+        }
+    }
+    
+}
@@ -0,0 +1,91 @@
+package javaelmexample.services;
+
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * This class is a secondary index from a key (derived from the data) to the IDs of the data with that key.
+ * 
+ * The index is updated right after the primary store by the same change -- in {@link PersonService}, under the write lock
+ *   of the ID (so the updates of an ID never interleave) and the read lock of the store (so it is not branched or reset meanwhile).
+ * The lookups take no lock so they may briefly see IDs that no longer match (or not yet the new ones).
+ * The lookups are therefore only candidates and must be checked against the current data.
+ * However, an ID is never missing from the key of the current data once the update is done.
+ * 
+ * The entries are kept in a {@link LayeredMap} (by the key and then the ID) so the index can be branched with its store.
+ **/
+public class SecondaryIndex<DATA> {
+    
+    // The key and the ID are joined with a character that is not in any ID so the IDs of a key are together and in order.
+    private static final char SEPARATOR = '\u0000';
+    
+    private final Function<DATA, String> keyOf;
+    private final LayeredMap<Boolean>    entries;
+    
+    /** @param keyOf  the function to get the key of a data -- the key may be null for not indexed. */
+    public SecondaryIndex(Function<DATA, String> keyOf) {
+        this(keyOf, new LayeredMap<>());
+    }
+    
+    private SecondaryIndex(Function<DATA, String> keyOf, LayeredMap<Boolean> entries) {
+        this.keyOf   = keyOf;
+        this.entries = entries;
+    }
+    
+    /** @return  a new index on top of this one (see {@link LayeredMap#branch()}) -- this index MUST NOT be changed after this. */
+    public SecondaryIndex<DATA> branch() {
+        return new SecondaryIndex<>(keyOf, entries.branch());
+    }
+    
+    /** @return  this index or, if it has too many layers, a single layer copy of it (see {@link LayeredMap#compacted()}). */
+    public SecondaryIndex<DATA> compacted() {
+        var compacted = entries.compacted();
+        return (compacted == entries) ? this : new SecondaryIndex<>(keyOf, compacted);
+    }
+    
+    /** @return  the key of the data. */
+    public String keyOf(DATA data) {
+        return (data == null) ? null : keyOf.apply(data);
+    }
+    
+    /**
+     * Update the index after the data with the ID changed (in the primary store) from the old to the new value.
+     * 
+     * @param current  the function to get the current data by its ID from the primary store.
+     **/
+    public void update(String id, DATA oldData, DATA newData, Function<String, DATA> current) {
+        var oldKey = keyOf(oldData);
+        var newKey = keyOf(newData);
+        if (newKey != null) {
+            entries.put(entryKey(newKey, id), Boolean.TRUE);
+        }
+        if ((oldKey != null) && !oldKey.equals(newKey)) {
+            entries.remove(entryKey(oldKey, id));
+            // A concurrent update may have just changed the data back to the old key.
+            if (oldKey.equals(keyOf(current.apply(id)))) {
+                entries.put(entryKey(oldKey, id), Boolean.TRUE);
+            }
+        }
+    }
+    
+    /** @return  the (candidate) IDs with the key in ID order -- after the given ID if not null. */
+    public Stream<String> find(String key, String afterId) {
+        var prefix = key + SEPARATOR;
+        var after  = (afterId == null) ? key : entryKey(key, afterId);
+        return entries
+                .entries  (after)
+                .map      (entry -> entry.getKey())
+                .takeWhile(entryKey -> entryKey.startsWith(prefix))
+                .map      (entryKey -> entryKey.substring(prefix.length()));
+    }
+    
+    /** @return  the number of (candidate) IDs with the key -- counting stops at the limit. */
+    public int count(String key, int limit) {
+        return (int)find(key, null).limit(limit).count();
+    }
+    
+    private static String entryKey(String key, String id) {
+        return key + SEPARATOR + id;
+    }
+    
+}
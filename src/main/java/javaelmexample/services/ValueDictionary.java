@@ -0,0 +1,65 @@
+package javaelmexample.services;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class gives each distinct value a small code so the repeated values (e.g., the last names) are kept once.
+ *
+ * The dictionary only grows (the codes are kept in the data so a value cannot be dropped) but only up to its capacity
+ *   -- after that the new values get no code and should be kept as they are.
+ * The lookups are lock-free; adding a value is synchronized.
+ **/
+final class ValueDictionary<VALUE> {
+    
+    /** The code of a value not in the dictionary. */
+    public static final int NO_CODE = -1;
+    
+    private final int capacity;
+    
+    private final ConcurrentHashMap<VALUE, Integer> codes = new ConcurrentHashMap<>();
+    
+    // The value of each code -- replaced (never changed in place) when it grows.
+    private volatile Object[] values = new Object[64];
+    
+    private int size = 0;
+    
+    ValueDictionary(int capacity) {
+        this.capacity = capacity;
+    }
+    
+    /** @return  the code of the value (added if new) or {@link #NO_CODE} if the value is null or the dictionary is full. */
+    int codeOf(VALUE value) {
+        if (value == null)
+            return NO_CODE;
+        
+        var code = codes.get(value);
+        return (code != null) ? code : add(value);
+    }
+    
+    /** @return  the value of the code -- the code must be from {@link #codeOf(Object)} of this dictionary. */
+    @SuppressWarnings("unchecked")
+    VALUE valueOf(int code) {
+        return (VALUE)values[code];
+    }
+    
+    private synchronized int add(VALUE value) {
+        var code = codes.get(value);
+        if (code != null)
+            return code;
+        if (size >= capacity)
+            return NO_CODE;
+        
+        var values = this.values;
+        if (size == values.length) {
+            values = Arrays.copyOf(values, Math.min(size * 2, capacity));
+        }
+        values[size] = value;
+        this.values = values;
+        
+        // The value is in place before its code can be seen.
+        codes.put(value, size);
+        return size++;
+    }
+    
+}
@@ -0,0 +1,33 @@
+package javaelmexample.server;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class HttpTest {
+    
+    @Test
+    void testAcceptsEncoding() {
+        assertTrue (Http.acceptsEncoding(List.of("gzip, deflate"), "gzip"));
+        assertTrue (Http.acceptsEncoding(List.of("deflate", "GZIP;q=0.5"), "gzip"));
+        assertTrue (Http.acceptsEncoding(List.of("*"), "gzip"));
+        assertFalse(Http.acceptsEncoding((List<String>)null, "gzip"));
+        assertFalse(Http.acceptsEncoding(List.of("deflate"), "gzip"));
+        assertFalse(Http.acceptsEncoding(List.of("gzip;q=0"), "gzip"));
+        assertFalse(Http.acceptsEncoding(List.of("gzip; q=0.000"), "gzip"));
+    }
+    
+    @Test
+    void testAcceptsEncoding_byNameOverWildcard() {
+        assertFalse(Http.acceptsEncoding(List.of("*, gzip;q=0"),   "gzip"));
+        assertFalse(Http.acceptsEncoding(List.of("gzip;q=0, *"),   "gzip"));
+        assertFalse(Http.acceptsEncoding(List.of("*", "gzip;q=0"), "gzip"));
+        assertTrue (Http.acceptsEncoding(List.of("*;q=0, gzip"),   "gzip"));
+        assertTrue (Http.acceptsEncoding(List.of("*, gzip;q=0"),   "deflate"));
+        assertFalse(Http.acceptsEncoding(List.of("*;q=0, gzip"),   "deflate"));
+    }
+    
+}
@@ -0,0 +1,309 @@
+package javaelmexample.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class NioHttpEngineTest {
+    
+    private ExecutorService executor;
+    private NioHttpEngine   engine;
+    private int             port;
+    
+    @AfterEach
+    void stop() {
+        if (engine != null) {
+            engine.stop(1);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    void testPipelinedRequests() throws IOException {
+        start(new ServerSettings());
+        try (var socket = connect()) {
+            send(socket, "GET /one HTTP/1.1\r\nHost: test\r\n\r\n"
+                       + "POST /two HTTP/1.1\r\nHost: test\r\nContent-Length: 5\r\n\r\nhello"
+                       + "GET /three HTTP/1.1\r\nHost: test\r\n\r\n");
+            
+            var input = socket.getInputStream();
+            assertEquals("GET /one ",       readResponse(input).body);
+            assertEquals("POST /two hello", readResponse(input).body);
+            assertEquals("GET /three ",     readResponse(input).body);
+            
+            // All on the one connection.
+            assertEquals(1, engine.openConnections());
+        }
+    }
+    
+    @Test
+    void testChunkedRequestBody() throws IOException {
+        start(new ServerSettings());
+        try (var socket = connect()) {
+            send(socket, "POST /chunked HTTP/1.1\r\nHost: test\r\nTransfer-Encoding: chunked\r\n\r\n"
+                       + "3;name=value\r\nHel\r\n"
+                       + "a\r\nlo, world!\r\n"
+                       + "0\r\nTrailer: ignored\r\n\r\n"
+                       + "GET /after HTTP/1.1\r\nHost: test\r\n\r\n");
+            
+            var input = socket.getInputStream();
+            assertEquals("POST /chunked Hello, world!", readResponse(input).body);
+            assertEquals("GET /after ",                 readResponse(input).body);
+        }
+    }
+    
+    @Test
+    void testRequestSplitAcrossPackets() throws IOException, InterruptedException {
+        start(new ServerSettings());
+        try (var socket = connect()) {
+            var input = socket.getInputStream();
+            for (var part : new String[] { "POST /split HT", "TP/1.1\r\nHost: test\r\nTransfer-", "Encoding: chunked\r\n\r", "\n4\r\nab", "cd\r\n0\r\n", "\r\n" }) {
+                send(socket, part);
+                Thread.sleep(20);
+            }
+            assertEquals("POST /split abcd", readResponse(input).body);
+        }
+    }
+    
+    @Test
+    void testAmbiguousBodyFraming() throws IOException {
+        start(new ServerSettings());
+        var requests = Map.of(
+                "POST /te HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n",                        501,
+                "POST /te HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: gzip\r\n\r\n",  501,
+                "POST /te HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 5\r\n\r\n",        400,
+                "POST /te HTTP/1.0\r\nTransfer-Encoding: chunked\r\n\r\n",                             400,
+                "POST /cl HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\n",                 400,
+                "POST /cl HTTP/1.1\r\nContent-Length: 5, 6\r\n\r\n",                                     400,
+                "POST /cl HTTP/1.1\r\nContent-Length: +5\r\n\r\n",                                       400);
+        for (var request : requests.entrySet()) {
+            try (var socket = connect()) {
+                // The body would be read as the next request if the framing was guessed.
+                send(socket, request.getKey() + "GET /smuggled HTTP/1.1\r\nHost: test\r\n\r\n");
+                var input    = socket.getInputStream();
+                var response = readResponse(input);
+                assertEquals(request.getValue(), response.status, request.getKey());
+                assertEquals("close",            response.headers.get("connection"));
+                assertEquals(-1, input.read());
+            }
+        }
+        
+        // The same length repeated is the same framing.
+        try (var socket = connect()) {
+            send(socket, "POST /same HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\nhello");
+            assertEquals("POST /same hello", readResponse(socket.getInputStream()).body);
+        }
+    }
+    
+    @Test
+    void testInvalidChunkSize() throws IOException {
+        start(new ServerSettings());
+        for (var size : new String[] { "-5", "+5", "0x5", "" }) {
+            try (var socket = connect()) {
+                send(socket, "POST /chunked HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" + size + "\r\n"
+                           + "GET /smuggled HTTP/1.1\r\nHost: test\r\n\r\n");
+                var received = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+                assertFalse(received.contains("/smuggled"), size);
+                assertFalse(received.contains("200 OK"),    size);
+            }
+        }
+    }
+    
+    @Test
+    void testTooManyHeaders() throws IOException {
+        start(new ServerSettings().withMaxRequestHeaders(3));
+        try (var socket = connect()) {
+            send(socket, "GET /ok HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\n\r\n");
+            assertEquals(200, readResponse(socket.getInputStream()).status);
+        }
+        try (var socket = connect()) {
+            send(socket, "GET /many HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\nD: 4\r\n\r\n");
+            var response = readResponse(socket.getInputStream());
+            assertEquals(431,     response.status);
+            assertEquals("close", response.headers.get("connection"));
+            assertEquals(-1,      socket.getInputStream().read());
+        }
+    }
+    
+    @Test
+    void testHeadersLargerThanBuffer() throws IOException {
+        start(new ServerSettings());
+        try (var socket = connect()) {
+            send(socket, "GET /large HTTP/1.1\r\nX-Large: " + "x".repeat(NioHttpEngine.BUFFER_SIZE) + "\r\n\r\n");
+            assertEquals(431, readResponse(socket.getInputStream()).status);
+        }
+    }
+    
+    @Test
+    void testMalformedRequest() throws IOException {
+        start(new ServerSettings());
+        try (var socket = connect()) {
+            send(socket, "GET /no-version\r\n\r\n");
+            assertEquals(400, readResponse(socket.getInputStream()).status);
+        }
+        try (var socket = connect()) {
+            send(socket, "GET / HTTP/1.1\r\nno colon\r\n\r\n");
+            assertEquals(400, readResponse(socket.getInputStream()).status);
+        }
+    }
+    
+    @Test
+    void testHttp10() throws IOException {
+        start(new ServerSettings());
+        try (var socket = connect()) {
+            send(socket, "GET /old HTTP/1.0\r\n\r\n");
+            var input    = socket.getInputStream();
+            var response = readResponse(input);
+            assertEquals("HTTP/1.0 200 OK", response.statusLine);
+            assertEquals("close",           response.headers.get("connection"));
+            assertEquals("GET /old ",       response.body);
+            assertEquals(-1, input.read());
+        }
+    }
+    
+    @Test
+    void testStreamedResponse() throws IOException {
+        start(new ServerSettings());
+        try (var socket = connect()) {
+            send(socket, "GET /stream HTTP/1.1\r\nHost: test\r\n\r\n"
+                       + "GET /after HTTP/1.1\r\nHost: test\r\n\r\n");
+            var input    = socket.getInputStream();
+            var response = readResponse(input);
+            assertEquals("chunked",     response.headers.get("transfer-encoding"));
+            assertEquals("helloworld",  response.body);
+            assertEquals("GET /after ", readResponse(input).body);
+        }
+        
+        // HTTP/1.0 has no chunked encoding -- the body is ended by closing the connection.
+        try (var socket = connect()) {
+            send(socket, "GET /stream HTTP/1.0\r\n\r\n");
+            var response = readResponse(socket.getInputStream());
+            assertNull(response.headers.get("transfer-encoding"));
+            assertNull(response.headers.get("content-length"));
+            assertEquals("helloworld", response.body);
+        }
+    }
+    
+    @Test
+    void testConnectionClose() throws IOException {
+        start(new ServerSettings());
+        try (var socket = connect()) {
+            send(socket, "GET /bye HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n"
+                       + "GET /ignored HTTP/1.1\r\nHost: test\r\n\r\n");
+            var input    = socket.getInputStream();
+            var response = readResponse(input);
+            assertEquals("GET /bye ", response.body);
+            assertEquals("close",     response.headers.get("connection"));
+            assertEquals(-1, input.read());
+        }
+    }
+    
+    //== Helpers ==
+    
+    // Respond with the method, the path and the body of the request -- streamed (no length) for `/stream`.
+    private static void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            var body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            var path = exchange.getRequestURI().getPath();
+            if (path.equals("/stream")) {
+                exchange.sendResponseHeaders(200, 0);
+                var output = exchange.getResponseBody();
+                output.write("hello".getBytes(StandardCharsets.UTF_8));
+                output.flush();
+                output.write("world".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            
+            var response = (exchange.getRequestMethod() + " " + path + " " + body).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+        }
+    }
+    
+    private void start(ServerSettings settings) throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        executor = Executors.newCachedThreadPool();
+        engine   = new NioHttpEngine(settings);
+        engine.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0, executor, NioHttpEngineTest::handle);
+    }
+    
+    private Socket connect() throws IOException {
+        var socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+    
+    private static void send(Socket socket, String request) throws IOException {
+        var output = socket.getOutputStream();
+        output.write(request.getBytes(StandardCharsets.ISO_8859_1));
+        output.flush();
+    }
+    
+    private static final class Response {
+        String              statusLine;
+        int                 status;
+        Map<String, String> headers = new LinkedHashMap<>();
+        String              body;
+    }
+    
+    // Read one response -- the body by its length, its chunks or (without either) up to the end of the stream.
+    private static Response readResponse(InputStream input) throws IOException {
+        var response = new Response();
+        response.statusLine = readLine(input);
+        response.status     = Integer.parseInt(response.statusLine.split(" ")[1]);
+        for (var line = readLine(input); !line.isEmpty(); line = readLine(input)) {
+            var colon = line.indexOf(':');
+            response.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+        
+        var body          = new ByteArrayOutputStream();
+        var contentLength = response.headers.get("content-length");
+        if (contentLength != null) {
+            body.write(input.readNBytes(Integer.parseInt(contentLength)));
+        } else if ("chunked".equals(response.headers.get("transfer-encoding"))) {
+            for (var size = Integer.parseInt(readLine(input), 16); size != 0; size = Integer.parseInt(readLine(input), 16)) {
+                body.write(input.readNBytes(size));
+                readLine(input);
+            }
+            readLine(input);
+        } else {
+            body.write(input.readAllBytes());
+        }
+        response.body = body.toString(StandardCharsets.UTF_8);
+        return response;
+    }
+    
+    private static String readLine(InputStream input) throws IOException {
+        var line = new StringBuilder();
+        for (int b; (b = input.read()) != '\n'; ) {
+            assertFalse(b < 0, "The response ended early.");
+            if (b != '\r') {
+                line.append((char)b);
+            }
+        }
+        return line.toString();
+    }
+    
+}
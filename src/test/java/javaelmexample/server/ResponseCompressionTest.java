@@ -0,0 +1,149 @@
+package javaelmexample.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+public class ResponseCompressionTest {
+    
+    @Test
+    void testSmallBody_sentAsIs() throws IOException {
+        var exchange = new TestExchange();
+        var content  = contentOf(ResponseCompression.MIN_SIZE - 1);
+        var body     = ResponseCompression.responseBody(exchange, 200, "gzip");
+        body.write(content);
+        body.close();
+        
+        assertEquals(200,            exchange.statusCode);
+        assertEquals(content.length, exchange.length);
+        assertNull  (exchange.getResponseHeaders().getFirst("Content-Encoding"));
+        assertArrayEquals(content, exchange.body.toByteArray());
+        assertEquals(content.length, body.bytes());
+    }
+    
+    @Test
+    void testLargeBody_streamedCompressed() throws IOException {
+        for (var encoding : ResponseCompression.ENCODINGS) {
+            var exchange = new TestExchange();
+            var content  = contentOf(100 * ResponseCompression.MIN_SIZE);
+            var body     = ResponseCompression.responseBody(exchange, 200, encoding);
+            // In small pieces -- the first ones are held back until the body is known to be large.
+            for (int offset = 0; offset < content.length; offset += 100) {
+                body.write(content, offset, Math.min(100, content.length - offset));
+            }
+            body.close();
+            body.discard();
+            
+            assertEquals(0,        exchange.length, encoding);   // Chunked.
+            assertEquals(encoding, exchange.getResponseHeaders().getFirst("Content-Encoding"));
+            assertArrayEquals(content, decode(exchange.body.toByteArray(), encoding), encoding);
+            assertEquals(exchange.body.size(), body.bytes(), encoding);
+        }
+    }
+    
+    @Test
+    void testJsonBytes_compressedOnce() throws IOException {
+        var content = contentOf(10 * ResponseCompression.MIN_SIZE);
+        var json    = new JsonBytes(content);
+        for (var encoding : ResponseCompression.ENCODINGS) {
+            var encoded = json.bytes(encoding);
+            assertArrayEquals(content, decode(encoded, encoding), encoding);
+            assertSame(encoded, json.bytes(encoding), encoding);
+        }
+        assertSame(content, json.bytes());
+    }
+    
+    @Test
+    void testDiscardedDeflater_reusedClean() throws IOException {
+        var content = contentOf(10 * ResponseCompression.MIN_SIZE);
+        for (var encoding : ResponseCompression.ENCODINGS) {
+            // Abandon the responses half way -- their deflaters go back to the pool with input still in them.
+            for (int i = 0; i < 3; i++) {
+                var body = ResponseCompression.responseBody(new TestExchange(), 200, encoding);
+                body.write(content, 0, content.length / 2);
+                body.discard();
+            }
+            // More than the pool holds so every pooled deflater (the discarded ones included) is taken.
+            for (int i = 0; i < 70; i++) {
+                assertArrayEquals(content, decode(ResponseCompression.compress(content, encoding), encoding), encoding);
+            }
+        }
+    }
+    
+    private static byte[] contentOf(int size) {
+        var buffer = new StringBuilder();
+        for (int i = 0; buffer.length() < size; i++) {
+            buffer.append("{\"id\":\"" + i + "\",\"firstName\":\"First" + (i*31 % 97) + "\"},");
+        }
+        return buffer.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static byte[] decode(byte[] bytes, String encoding) throws IOException {
+        var input = new ByteArrayInputStream(bytes);
+        try (var stream = encoding.equals("gzip") ? new GZIPInputStream(input) : new InflaterInputStream(input)) {
+            return stream.readAllBytes();
+        }
+    }
+    
+    // Just what the response body uses.
+    private static class TestExchange extends HttpExchange {
+        
+        private final Headers               responseHeaders = new Headers();
+        private final ByteArrayOutputStream body            = new ByteArrayOutputStream();
+        
+        private int  statusCode = -1;
+        private long length     = -2;
+        
+        @Override
+        public void sendResponseHeaders(int statusCode, long length) {
+            this.statusCode = statusCode;
+            this.length     = length;
+        }
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+        @Override
+        public OutputStream getResponseBody() {
+            return body;
+        }
+        @Override
+        public int getResponseCode() {
+            return statusCode;
+        }
+        
+        @Override public Headers           getRequestHeaders()                       { return new Headers(); }
+        @Override public URI               getRequestURI()                           { return URI.create("/"); }
+        @Override public String            getRequestMethod()                        { return "GET"; }
+        @Override public HttpContext       getHttpContext()                          { return null; }
+        @Override public void              close()                                   { }
+        @Override public InputStream       getRequestBody()                          { return InputStream.nullInputStream(); }
+        @Override public InetSocketAddress getRemoteAddress()                        { return null; }
+        @Override public InetSocketAddress getLocalAddress()                         { return null; }
+        @Override public String            getProtocol()                             { return "HTTP/1.1"; }
+        @Override public Object            getAttribute(String name)                 { return null; }
+        @Override public void              setAttribute(String name, Object value)   { }
+        @Override public void              setStreams(InputStream i, OutputStream o) { }
+        @Override public HttpPrincipal     getPrincipal()                            { return null; }
+    }
+    
+}
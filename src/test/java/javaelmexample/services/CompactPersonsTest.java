@@ -0,0 +1,74 @@
+package javaelmexample.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+public class CompactPersonsTest {
+    
+    @Test
+    void testRoundTrip() {
+        var compact = new CompactPersons();
+        var persons = new Person[] {
+                new Person("A1", "Alice", "Smith",   "Ally", Cape.Color("red")),
+                new Person("B2", "Bob",   "Smith",   null,   Cape.None()),
+                new Person("C3", "",      "",        "",     Cape.Color("")),
+                new Person("D4", "Émile", "Zoë 文字", "😀",   Cape.Color("red")),
+        };
+        for (var person : persons) {
+            assertEquals(person, compact.decode(person.id, compact.encode(person)));
+        }
+    }
+    
+    @Test
+    void testSharedValuesAreCoded() {
+        var compact  = new CompactPersons();
+        var longName = "Name".repeat(100);
+        var first    = compact.encode(new Person("A1", "Al", longName, null, Cape.Color(longName)));
+        var second   = compact.encode(new Person("B2", "Al", longName, null, Cape.Color(longName)));
+        
+        // The last name and the color are packed once (both records only hold their codes).
+        assertEquals(first.length, second.length);
+        assertTrue(first.length < 16);
+    }
+    
+    @Test
+    void testLongTexts() {
+        var compact = new CompactPersons();
+        for (var length : new int[] { 63, 64, 127, 128, 8191, 8192, 16383, 16384, 100_000 }) {
+            var text   = "x".repeat(length);
+            var person = new Person("L" + length, text, "Last", text, Cape.None());
+            assertEquals(person, compact.decode(person.id, compact.encode(person)));
+        }
+    }
+    
+    @Test
+    void testDictionaryOverflow() {
+        var compact = new CompactPersons();
+        var count   = CompactPersons.DICTIONARY_CAPACITY + 1000;
+        var records = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(compact.encode(personOf(i)));
+        }
+        
+        // Past the capacity, the new values are packed in the records and still read back.
+        for (int i = 0; i < count; i++) {
+            assertEquals(personOf(i), compact.decode("P" + i, records.get(i)));
+        }
+        
+        // The values with codes keep them.
+        var known = personOf(12);
+        assertEquals(known, compact.decode(known.id, compact.encode(known)));
+        var packed = new Person("X", "First", "Last-new", null, Cape.Color("color-new"));
+        assertEquals(packed, compact.decode(packed.id, compact.encode(packed)));
+    }
+    
+    private static Person personOf(int index) {
+        return new Person("P" + index, "First" + index, "Last" + index, (index % 2 == 0) ? null : "Nick",
+                          Cape.Color("color" + index));
+    }
+    
+}
@@ -0,0 +1,165 @@
+package javaelmexample.services;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+public class LayeredMapTest {
+    
+    @Test
+    void testBranchIsolation() {
+        var base = new LayeredMap<String>();
+        base.put("a", "A");
+        base.put("b", "B");
+        base.put("c", "C");
+        
+        var branch = base.branch();
+        assertEquals("B", branch.put("b", "B2"));
+        assertEquals("C", branch.remove("c"));
+        assertNull(branch.put("d", "D"));
+        
+        assertEquals(List.of("a=A", "b=B2", "d=D"), entries(branch, null));
+        assertEquals(3, branch.size());
+        assertNull(branch.get("c"));
+        
+        // The base is untouched.
+        assertEquals(List.of("a=A", "b=B", "c=C"), entries(base, null));
+        assertEquals(3, base.size());
+        assertEquals("C", base.get("c"));
+    }
+    
+    @Test
+    void testReset() {
+        var base = new LayeredMap<String>();
+        base.put("a", "A");
+        
+        var branch = base.branch();
+        branch.remove("a");
+        branch.put("b", "B");
+        assertEquals(List.of("b=B"), entries(branch, null));
+        
+        // Dropping the branch goes back to the base -- a new branch sees none of the old changes.
+        var reset = base.branch();
+        assertEquals(List.of("a=A"), entries(reset, null));
+        assertEquals(1, reset.size());
+        assertNull(reset.get("b"));
+    }
+    
+    @Test
+    void testSiblingBranches() {
+        var base = new LayeredMap<String>();
+        base.put("a", "A");
+        
+        var first  = base.branch();
+        var second = base.branch();
+        first .put("a", "A1");
+        second.remove("a");
+        
+        assertEquals("A1", first.get("a"));
+        assertNull(second.get("a"));
+        assertEquals("A", base.get("a"));
+        assertEquals(1, first.size());
+        assertEquals(0, second.size());
+    }
+    
+    @Test
+    void testRemoveThenPutInBranch() {
+        var base = new LayeredMap<String>();
+        base.put("a", "A");
+        
+        var branch = base.branch();
+        branch.remove("a");
+        assertNull(branch.remove("a"));
+        assertEquals(0, branch.size());
+        
+        assertNull(branch.put("a", "A2"));
+        assertEquals("A2", branch.get("a"));
+        assertEquals(1, branch.size());
+        assertEquals("A", base.get("a"));
+    }
+    
+    @Test
+    void testEntriesAfterKey() {
+        var base = new LayeredMap<String>();
+        for (var key : List.of("a", "b", "c", "d", "e")) {
+            base.put(key, key.toUpperCase());
+        }
+        var branch = base.branch();
+        branch.remove("c");
+        branch.put("cc", "CC");
+        
+        assertEquals(List.of("cc=CC", "d=D", "e=E"), entries(branch, "b"));
+        assertEquals(List.of("cc=CC", "d=D", "e=E"), entries(branch, "c"));
+        assertEquals(List.of("d=D", "e=E"),          entries(branch, "cc"));
+        assertEquals(List.of("c=C", "d=D", "e=E"),   entries(base,   "b"));
+        assertEquals(List.of(),                      entries(branch, "e"));
+    }
+    
+    @Test
+    void testCompacted() {
+        var map = new LayeredMap<String>();
+        map.put("a", "A");
+        map.put("b", "B");
+        for (int i = 1; i < LayeredMap.MAX_DEPTH - 1; i++) {
+            map = map.branch();
+            map.put("k" + i, "V" + i);
+            assertSame(map, map.compacted());
+        }
+        map = map.branch();
+        map.remove("a");
+        
+        var expected  = entries(map, null);
+        var compacted = map.compacted();
+        assertNotSame(map, compacted);
+        assertEquals(expected,   entries(compacted, null));
+        assertEquals(map.size(), compacted.size());
+        
+        // The compacted map is a new base that can be branched again.
+        var branch = compacted.branch();
+        branch.put("a", "A2");
+        assertEquals("A2", branch.get("a"));
+        assertNull(compacted.get("a"));
+    }
+    
+    @Test
+    void testEntriesAcrossLayers() {
+        var random   = new Random(42);
+        var map      = new LayeredMap<String>();
+        var expected = new TreeMap<String, String>();
+        for (int layer = 1; layer < LayeredMap.MAX_DEPTH; layer++) {
+            // The same keys are put and removed again and again in the different layers.
+            for (int i = 0; i < 50; i++) {
+                var key = "k" + random.nextInt(40);
+                if (random.nextInt(3) == 0) {
+                    assertEquals(expected.remove(key), map.remove(key));
+                } else {
+                    assertEquals(expected.put(key, key + "@" + layer), map.put(key, key + "@" + layer));
+                }
+            }
+            map = map.branch();
+        }
+        
+        assertEquals(expected.size(), map.size());
+        for (var afterKey : List.of("", "k1", "k25", "k39", "k9", "z")) {
+            var expectedEntries = expected.tailMap(afterKey, false).entrySet().stream()
+                                .map(entry -> entry.getKey() + "=" + entry.getValue())
+                                .collect(toList());
+            assertEquals(expectedEntries, entries(map, afterKey), afterKey);
+        }
+    }
+    
+    private static List<String> entries(LayeredMap<String> map, String afterKey) {
+        return map.entries(afterKey)
+                  .map(entry -> entry.getKey() + "=" + entry.getValue())
+                  .collect(toList());
+    }
+    
+}
@@ -0,0 +1,145 @@
+package javaelmexample.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PersonJournalTest {
+    
+    @TempDir
+    Path directory;
+    
+    private final Person alice = new Person("A1", "Alice", "Smith", "Ally", Cape.Color("red"));
+    private final Person bob   = new Person("B2", "Bob",   "Jones", null,   Cape.None());
+    private final Person carol = new Person("C3", "Carol", "Smith", null,   Cape.Color("blue"));
+    
+    @Test
+    void testReplayInOrder() throws IOException {
+        var crashed = journalOf(List.of(alice, bob, carol));
+        
+        var changes = recover(crashed);
+        assertEquals(List.of("A1=" + alice, "B2=" + bob, "C3=" + carol, "B2=null"), changes);
+    }
+    
+    @Test
+    void testTornTailIsTruncated() throws IOException {
+        var crashed     = journalOf(List.of(alice, bob, carol));
+        var journalFile = journalFileOf(crashed);
+        var fullSize    = Files.size(journalFile);
+        truncate(journalFile, fullSize - 3);
+        
+        // The deletion (the last record) is torn so it is dropped and cut off the file.
+        var changes = recover(crashed);
+        assertEquals(List.of("A1=" + alice, "B2=" + bob, "C3=" + carol), changes);
+        assertTrue(Files.size(journalFile) < fullSize - 3);
+        
+        // Once truncated, the journal replays the same.
+        assertEquals(changes, recover(crashed));
+    }
+    
+    @Test
+    void testCorruptTailIsTruncated() throws IOException {
+        var crashed     = journalOf(List.of(alice, bob, carol));
+        var journalFile = journalFileOf(crashed);
+        var bytes       = Files.readAllBytes(journalFile);
+        bytes[bytes.length - 1] ^= 0x55;
+        Files.write(journalFile, bytes);
+        
+        var changes = recover(crashed);
+        assertEquals(List.of("A1=" + alice, "B2=" + bob, "C3=" + carol), changes);
+        assertTrue(Files.size(journalFile) < bytes.length);
+    }
+    
+    @Test
+    void testGarbageAfterLastRecordIsTruncated() throws IOException {
+        var crashed     = journalOf(List.of(alice, bob, carol));
+        var journalFile = journalFileOf(crashed);
+        var fullSize    = Files.size(journalFile);
+        Files.write(journalFile, new byte[] { 0, 0, 0, 5, 1, 2, 3, 4, 9 }, StandardOpenOption.APPEND);
+        
+        var changes = recover(crashed);
+        assertEquals(List.of("A1=" + alice, "B2=" + bob, "C3=" + carol, "B2=null"), changes);
+        assertEquals(fullSize, Files.size(journalFile));
+    }
+    
+    @Test
+    void testChangesAfterRecoveryGoToNewJournal() throws IOException {
+        var crashed = journalOf(List.of(alice, bob, carol));
+        truncate(journalFileOf(crashed), Files.size(journalFileOf(crashed)) - 1);
+        
+        var persons = new LinkedHashMap<String, Person>();
+        var journal = PersonJournal.open(crashed, 0);
+        journal.recover((id, person) -> apply(persons, id, person));
+        journal.start(() -> new ArrayList<>(persons.values()));
+        var dave = new Person("D4", "Dave", "Jones", null, Cape.None());
+        persons.put(dave.id, journal.appendPut(dave).getResult().get());
+        journal.close();
+        
+        var recovered = new LinkedHashMap<String, Person>();
+        PersonJournal.open(crashed, 0).recover((id, person) -> apply(recovered, id, person));
+        assertEquals(Map.of("A1", alice, "B2", bob, "C3", carol, "D4", dave), recovered);
+    }
+    
+    //== Helpers ==
+    
+    // Write the puts of the persons and the deletion of the second one then copy the directory as if crashed
+    //   -- a close would snapshot and delete the journal.
+    private Path journalOf(List<Person> persons) throws IOException {
+        var journal = PersonJournal.open(directory.resolve("live"), 0);
+        journal.recover((id, person) -> {});
+        journal.start(List::of);
+        for (var person : persons) {
+            journal.appendPut(person).getResult().get();
+        }
+        journal.appendDelete(persons.get(1).id, persons.get(1)).getResult().get();
+        
+        var crashed = Files.createDirectories(directory.resolve("crashed"));
+        try (var files = Files.list(directory.resolve("live"))) {
+            for (var file : (Iterable<Path>)files::iterator) {
+                Files.copy(file, crashed.resolve(file.getFileName()));
+            }
+        }
+        journal.close();
+        return crashed;
+    }
+    
+    private static Path journalFileOf(Path directory) throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("journal-"))
+                        .findFirst()
+                        .orElseThrow();
+        }
+    }
+    
+    private static void truncate(Path file, long size) throws IOException {
+        try (var channel = Files.newByteChannel(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+    
+    private static List<String> recover(Path directory) throws IOException {
+        var changes = new ArrayList<String>();
+        PersonJournal.open(directory, 0).recover((id, person) -> changes.add(id + "=" + person));
+        return changes;
+    }
+    
+    private static void apply(Map<String, Person> persons, String id, Person person) {
+        if (person == null) {
+            persons.remove(id);
+        } else {
+            persons.put(id, person);
+        }
+    }
+    
+}
@@ -0,0 +1,140 @@
+package javaelmexample.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import functionalj.list.FuncList;
+import functionalj.promise.Promise;
+import javaelmexample.server.BulkResult;
+
+public class PersonServiceTest {
+    
+    @TempDir
+    Path directory;
+    
+    @Test
+    void testChangesAreDurableAndInOrder() throws Exception {
+        var journal = PersonJournal.open(directory, 0);
+        var service = PersonService.persistent(journal);
+        var threads = 4;
+        var rounds  = 200;
+        var pool    = Executors.newFixedThreadPool(threads);
+        var done    = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            var thread   = t;
+            var promises = new ArrayList<Promise<Person>>();
+            pool.execute(() -> {
+                // Each thread changes its own IDs and one shared ID without waiting for the journal in between.
+                for (int i = 0; i < rounds; i++) {
+                    promises.add(service.put("T" + thread + "-" + (i % 10), personOf("T" + thread + "-" + (i % 10), "round" + i)));
+                    promises.add(service.put("shared", personOf("shared", "t" + thread + "r" + i)));
+                    if (i % 3 == 0) {
+                        promises.add(service.delete("T" + thread + "-" + ((i + 5) % 10)));
+                    }
+                }
+                promises.forEach(promise -> promise.getResult());
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        pool.shutdown();
+        
+        var expected = new HashMap<String, Person>();
+        service.list().getResult().get().forEach(person -> expected.put(person.id, person));
+        
+        // Without the snapshot of the close -- replaying the journal gives the same persons.
+        var recovered = new HashMap<String, Person>();
+        PersonJournal.open(directory, 0).recover((id, person) -> {
+            if (person == null) {
+                recovered.remove(id);
+            } else {
+                recovered.put(id, person);
+            }
+        });
+        assertEquals(expected, recovered);
+        journal.close();
+    }
+    
+    @Test
+    void testConditionalChangeSeesAcceptedChange() throws Exception {
+        var journal = PersonJournal.open(directory, 0);
+        var service = PersonService.persistent(journal);
+        var first   = personOf("A1", "first");
+        var second  = personOf("A1", "second");
+        
+        // The second put is checked against the first even if it is not yet applied.
+        var put1 = service.put("A1", first);
+        var put2 = service.put("A1", second, service.versionOf(first));
+        assertEquals(first,  put1.getResult().get());
+        assertEquals(second, put2.getResult().get());
+        assertEquals(second, service.get("A1").getResult().get());
+        
+        var delete = service.delete("A1", service.versionOf(second));
+        assertEquals(second, delete.getResult().get());
+        assertNull(service.get("A1").getResult().get());
+        journal.close();
+    }
+    
+    @Test
+    void testBulkChanges() throws Exception {
+        var journal = PersonJournal.open(directory, 0);
+        var service = PersonService.persistent(journal);
+        
+        var posted = service.postAll(FuncList.of(personOf("A1", "a"), personOf(null, "b"), personOf("A1", "a2"))).getResult().get();
+        assertEquals(List.of(200, 200, 200), posted.map(BulkResult::status).toJavaList());
+        assertEquals("A1", posted.get(0).id());
+        assertEquals("a2", service.get("A1").getResult().get().firstName);
+        var newId = posted.get(1).id();
+        
+        var put = service.putAll(FuncList.of(personOf(newId, "b2"), personOf(null, "c"))).getResult().get();
+        assertEquals(List.of(200, 400), put.map(BulkResult::status).toJavaList());
+        assertEquals("b2", service.get(newId).getResult().get().firstName);
+        
+        var deleted = service.deleteAll(FuncList.of("A1", "missing", "A1")).getResult().get();
+        assertEquals(List.of(200, 404, 404), deleted.map(BulkResult::status).toJavaList());
+        assertEquals(List.of(0, 1, 2),       deleted.map(BulkResult::index).toJavaList());
+        
+        var recovered = new HashMap<String, Person>();
+        PersonJournal.open(directory, 0).recover((id, person) -> {
+            if (person == null) {
+                recovered.remove(id);
+            } else {
+                recovered.put(id, person);
+            }
+        });
+        assertEquals(Map.of(newId, personOf(newId, "b2")), recovered);
+        journal.close();
+    }
+    
+    @Test
+    void testNoOpChangeKeepsVersion() throws IOException {
+        var service = new PersonService();
+        service.put("A1", personOf("A1", "first")).getResult();
+        var version = service.version();
+        
+        assertNull(service.delete("missing").getResult().get());
+        assertEquals(version, service.version());
+        
+        service.delete("A1").getResult();
+        assertTrue(service.version() != version);
+    }
+    
+    private static Person personOf(String id, String firstName) {
+        return new Person(id, firstName, "Last", null, Cape.None());
+    }
+    
+}
@@ -0,0 +1,83 @@
+package javaelmexample.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PersonSnapshotTest {
+    
+    @TempDir
+    Path directory;
+    
+    @Test
+    void testRoundTrip() throws IOException {
+        var persons = List.of(
+                new Person("A1", "Alice", "Smith",  "Ally", Cape.Color("red")),
+                new Person("B2", "Bob",   "Jones",  null,   Cape.None()),
+                new Person(null, "Émile", "Zoë 文字", "",     Cape.Color("")));
+        var path = directory.resolve("persons" + PersonSnapshot.EXTENSION);
+        PersonSnapshot.write(path, persons, 42L);
+        
+        var read       = new ArrayList<Person>();
+        var generation = PersonSnapshot.read(path, read::add);
+        assertEquals(42L,     generation);
+        assertEquals(persons, read);
+        assertFalse(Files.exists(path.resolveSibling(path.getFileName() + ".tmp")));
+    }
+    
+    @Test
+    void testEmpty() throws IOException {
+        var path = directory.resolve("empty" + PersonSnapshot.EXTENSION);
+        PersonSnapshot.write(path, List.of(), 0L);
+        
+        var read = new ArrayList<Person>();
+        assertEquals(0L, PersonSnapshot.read(path, read::add));
+        assertEquals(List.of(), read);
+    }
+    
+    @Test
+    void testLarge() throws IOException {
+        var persons = new ArrayList<Person>();
+        for (int i = 0; i < 50_000; i++) {
+            persons.add(new Person("P" + i, "First" + i, "Last" + (i % 100), (i % 3 == 0) ? null : "Nick" + i,
+                                   (i % 2 == 0) ? Cape.None() : Cape.Color("color" + (i % 7))));
+        }
+        var path = directory.resolve("large" + PersonSnapshot.EXTENSION);
+        PersonSnapshot.write(path, persons, 7L);
+        
+        var read = new ArrayList<Person>();
+        assertEquals(7L,      PersonSnapshot.read(path, read::add));
+        assertEquals(persons, read);
+    }
+    
+    @Test
+    void testOverwrite() throws IOException {
+        var path = directory.resolve("persons" + PersonSnapshot.EXTENSION);
+        PersonSnapshot.write(path, List.of(new Person("A1", "Alice", "Smith", null, Cape.None())), 1L);
+        var persons = List.of(new Person("B2", "Bob", "Jones", null, Cape.None()));
+        PersonSnapshot.write(path, persons, 2L);
+        
+        var read = new ArrayList<Person>();
+        assertEquals(2L,      PersonSnapshot.read(path, read::add));
+        assertEquals(persons, read);
+    }
+    
+    @Test
+    void testNotSnapshot() throws IOException {
+        var shortFile = Files.write(directory.resolve("short" + PersonSnapshot.EXTENSION), new byte[] { 1, 2, 3 });
+        assertThrows(IOException.class, () -> PersonSnapshot.read(shortFile, person -> {}));
+        
+        var wrongFile = Files.write(directory.resolve("wrong" + PersonSnapshot.EXTENSION), new byte[64]);
+        assertThrows(IOException.class, () -> PersonSnapshot.read(wrongFile, person -> {}));
+    }
+    
+}